@@ -0,0 +1,77 @@
+package cn.xuyanwu.autodeployment;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 增量上传在本地生成增量指令的耗时，新文件在旧文件的基础上随机修改了 changes 处
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaBenchmark {
+    @Param({"16","64"})
+    public int sizeMb;
+
+    @Param({"10","1000"})
+    public int changes;
+
+    private ByteBuffer buffer;
+    private int length;
+    private int blockSize;
+    private Map<Integer, List<Integer>> weakIndex;
+    private List<byte[]> strongs;
+
+    @Setup
+    public void setup() throws Exception {
+        length = sizeMb * 1024 * 1024;
+        Random random = new Random(length);
+        byte[] old = new byte[length];
+        random.nextBytes(old);
+        byte[] data = old.clone();
+        for (int i = 0; i < changes; i++) {
+            data[random.nextInt(length)] ^= 0xff;
+        }
+        blockSize = DeltaUploader.blockSize(length);
+
+        //与服务器上 signature.py 的输出相同
+        weakIndex = new HashMap<>();
+        strongs = new ArrayList<>();
+        ByteBuffer oldBuffer = ByteBuffer.wrap(old);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int offset = 0; offset + blockSize <= length; offset += blockSize) {
+            int[] sum = DeltaUploader.adler32(oldBuffer,offset,blockSize);
+            weakIndex.computeIfAbsent((sum[1] << 16) | sum[0],k -> new ArrayList<>()).add(strongs.size());
+            md5.update(old,offset,blockSize);
+            strongs.add(md5.digest());
+        }
+        buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data).flip();
+    }
+
+    @Benchmark
+    public long writeDelta() throws Exception {
+        DeltaUploader.DeltaWriter writer = new DeltaUploader.DeltaWriter(new DataOutputStream(new NullOutputStream()));
+        DeltaUploader.writeDelta(buffer,length,blockSize,weakIndex,strongs,writer);
+        return writer.getLiteral();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len) {
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.io.FileUtil;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 增量上传和普通 sftp 上传的网络流量：服务器上已有 v1，上传随机修改了 changes 处的 v2
+ * 每次测量只上传一次，sent、received 是 session 实际收发的字节数（加密后的 ssh 协议数据），结果是所有测量的总和，除以 Cnt 为每次上传的流量
+ * 增量上传需要在服务器上执行 python 脚本，这里的命令直接由本机的 sh 执行，sftp 根目录是 /，远程路径就是本地路径
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaTrafficBenchmark {
+    private static final Log NOOP = str -> {
+    };
+
+    @Param({"16","64"})
+    public int sizeMb;
+
+    @Param({"10","1000"})
+    public int changes;
+
+    private EmbeddedSshServer server;
+    private Session session;
+    private Path dir;
+    private Path oldFile;
+    private File newFile;
+    private String remoteFile;
+
+    /**
+     * 每次上传的流量
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Traffic {
+        public long sent;
+        public long received;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            sent = 0;
+            received = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("AutoDeployment-bench-delta").toAbsolutePath();
+        server = new EmbeddedSshServer(Paths.get("/"));
+        server.sshd.setCommandFactory((channel,cmd) -> new ProcessShellFactory("/bin/sh","/bin/sh","-c",cmd).createShell(channel));
+        server.start();
+        session = LinuxConnetionHelper.createSession(server.config());
+
+        int length = sizeMb * 1024 * 1024;
+        Random random = new Random(length);
+        byte[] old = new byte[length];
+        random.nextBytes(old);
+        byte[] data = old.clone();
+        for (int i = 0; i < changes; i++) {
+            data[random.nextInt(length)] ^= 0xff;
+        }
+        oldFile = dir.resolve("v1.bin");
+        Files.write(oldFile,old);
+        newFile = dir.resolve("v2.bin").toFile();
+        Files.write(newFile.toPath(),data);
+        remoteFile = dir.resolve("app.bin").toString();
+    }
+
+    /**
+     * 每次上传前把服务器上的文件恢复为 v1
+     */
+    @Setup(Level.Iteration)
+    public void restore() throws Exception {
+        Files.copy(oldFile,Paths.get(remoteFile),StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        session.disconnect();
+        server.close();
+        FileUtil.del(dir.toFile());
+    }
+
+    @Benchmark
+    public void delta(Traffic traffic) throws Exception {
+        measure(traffic,() -> {
+            if (!DeltaUploader.upload(session,newFile.getPath(),remoteFile,Collections.singletonList(remoteFile),NOOP)) {
+                throw new IllegalStateException("增量上传失败，服务器上需要 python");
+            }
+        });
+    }
+
+    @Benchmark
+    public void put(Traffic traffic) throws Exception {
+        measure(traffic,() -> {
+            try (InputStream input = new BufferedInputStream(new FileInputStream(newFile))) {
+                RemoteFileSystem.of(session).put(input,remoteFile,null,ChannelSftp.OVERWRITE);
+            }
+        });
+    }
+
+    private void measure(Traffic traffic,HostDeployment.Step upload) throws Exception {
+        SessionTraffic sessionTraffic = SessionTraffic.of(session);
+        long sent = sessionTraffic.getSent();
+        long received = sessionTraffic.getReceived();
+        upload.run();
+        traffic.sent += sessionTraffic.getSent() - sent;
+        traffic.received += sessionTraffic.getReceived() - received;
+    }
+}
@@ -0,0 +1,255 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.io.FileUtil;
+import com.alibaba.fastjson.JSON;
+import com.intellij.openapi.project.Project;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.AbstractSftpEventListenerAdapter;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.Handle;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在本机完整运行 json 和 sh 部署，记录连接、认证、每个文件的上传、每条命令以及看到第一行应用日志的时间
+ * 服务器是进程内的 ssh/sftp 服务器和模拟的 shell，可以通过代理模拟网络延迟和带宽
+ *
+ * <pre>
+ * ./gradlew deploymentHarness -Platency=150 -Pbandwidth=20 -Psize=16
+ * </pre>
+ * 参数：--latency=往返延迟（毫秒） --bandwidth=带宽（Mbit/s，0 为不限制） --size=上传文件大小（MB）
+ * --scenario=json|sh|all --stop=停止应用耗时（毫秒） --startup=应用启动耗时（毫秒） --release（json 使用发布目录）
+ * --output=报告目录 --verbose
+ */
+public class DeploymentHarness {
+    private static final long TIME_OUT = 10 * 60 * 1000;
+
+    private final Map<String, String> options;
+    private final boolean verbose;
+
+    public DeploymentHarness(Map<String, String> options) {
+        this.options = options;
+        this.verbose = options.containsKey("verbose");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--","").split("=",2);
+            options.put(kv[0],kv.length > 1 ? kv[1] : "true");
+        }
+        DeploymentHarness harness = new DeploymentHarness(options);
+        String scenario = options.getOrDefault("scenario","all");
+        for (String name : "all".equals(scenario) ? Arrays.asList("json","sh") : Collections.singletonList(scenario)) {
+            harness.run(name);
+        }
+        System.exit(0);
+    }
+
+    private long option(String name,long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+
+    /**
+     * 运行一次部署并输出各阶段耗时
+     */
+    public List<DeploymentRecorder.Event> run(String scenario) throws Exception {
+        long latency = option("latency",0);
+        long bandwidth = option("bandwidth",0);
+        long size = option("size",8);
+        Path project = Files.createTempDirectory("AutoDeployment-harness-project");
+        Path remote = Files.createTempDirectory("AutoDeployment-harness-remote");
+        writeArtifact(remote.resolve("www/app/app.jar"),1);   //服务器上已经部署的旧版本
+        DeploymentRecorder recorder = new DeploymentRecorder();
+        FakeApp app = new FakeApp(option("stop",500),option("startup",2000));
+        EmbeddedSshServer server = startServer(remote,recorder,app);
+        ThrottledProxy proxy = new ThrottledProxy(server.getPort(),latency,bandwidth * 1_000_000).start();
+        DeploymentExecutor executor = new DeploymentExecutor(null);
+        AutoDeployment autoDeployment = null;
+        try {
+            Config config = new Config("127.0.0.1",proxy.getPort(),EmbeddedSshServer.USER,EmbeddedSshServer.PASSWORD);
+            config.setArtifactCache(false);
+            config.setReleaseMode(options.containsKey("release"));
+            File file = "sh".equals(scenario) ? writeSH(project,config,size) : writeJSON(project,config,size);
+
+            CountDownLatch done = new CountDownLatch(1);
+            Log log = str -> {
+                if (verbose) System.out.print(str);
+                if (str.contains(FakeApp.LOG_PREFIX + "Starting") && !recorder.contains("日志")) {
+                    recorder.mark("日志","第一行应用日志");
+                }
+                if (str.contains("停机时间：")) {
+                    recorder.mark("停机",str.trim());
+                }
+                if (str.contains("自动部署失败")) {
+                    recorder.mark("失败",str.trim());
+                    done.countDown();
+                } else if (str.contains(FakeApp.LOG_PREFIX + "Started")) {
+                    done.countDown();
+                }
+            };
+            SessionPool.getInstance().clear();  //每次都重新建立连接
+            recorder.reset();
+            autoDeployment = new AutoDeployment(project(project.toString(),executor),file,log);
+            autoDeployment.deployment();
+            if (!done.await(TIME_OUT,TimeUnit.MILLISECONDS)) {
+                recorder.mark("超时","部署超时");
+            }
+            recorder.mark("结束","部署结束");
+        } finally {
+            if (autoDeployment != null) autoDeployment.close();
+            proxy.close();
+            server.close();
+            executor.dispose();
+            FileUtil.del(project.toFile());
+            FileUtil.del(remote.toFile());
+        }
+        List<DeploymentRecorder.Event> events = recorder.getEvents();
+        report(scenario,latency,bandwidth,size,events);
+        return events;
+    }
+
+    /**
+     * 启动使用模拟 shell 的服务器，并记录连接、认证和 sftp 文件的读写时间
+     */
+    private EmbeddedSshServer startServer(Path root,DeploymentRecorder recorder,FakeApp app) throws Exception {
+        EmbeddedSshServer server = new EmbeddedSshServer(root);
+        server.sshd.setShellFactory(channel -> new FakeShell(root,recorder,app,null));
+        server.sshd.setCommandFactory((channel,command) -> new FakeShell(root,recorder,app,command));
+        server.sshd.addSessionListener(new SessionListener() {
+            @Override
+            public void sessionCreated(Session session) {
+                recorder.mark("连接","TCP 连接建立");
+            }
+
+            @Override
+            public void sessionEvent(Session session,Event event) {
+                if (event == Event.KexCompleted && !session.isAuthenticated()) {
+                    recorder.mark("连接","密钥交换完成");
+                } else if (event == Event.Authenticated) {
+                    recorder.mark("连接","认证完成");
+                }
+            }
+        });
+        Map<String, Long> opened = new ConcurrentHashMap<>();
+        server.sftp.addSftpEventListener(new AbstractSftpEventListenerAdapter() {
+            @Override
+            public void open(ServerSession session,String remoteHandle,Handle localHandle) {
+                if (localHandle instanceof FileHandle) {
+                    opened.put(remoteHandle,recorder.now());
+                }
+            }
+
+            @Override
+            public void closed(ServerSession session,String remoteHandle,Handle localHandle,Throwable thrown) {
+                Long begin = opened.remove(remoteHandle);
+                if (begin != null) {
+                    //虚拟文件系统中的路径，已经是以 / 开头的远程路径
+                    String path = localHandle.getFile().toString();
+                    long size = root.resolve(path.replaceFirst("^/","")).toFile().length();
+                    recorder.span("sftp",path + "（" + size / 1024 + " KB）",begin);
+                }
+            }
+        });
+        return server.start();
+    }
+
+    private static File writeJSON(Path project,Config config,long size) throws Exception {
+        writeArtifact(project.resolve("target/app.jar"),size);
+        config.setLocalFile("/target/app.jar");
+        config.setRemoteFile("/www/app/app.jar");
+        config.setStopCMD("app stop");
+        config.setStartCMD("app start");
+        config.setLogCMD("app log");
+        Path file = project.resolve("autoDeployment/harness.json");
+        Files.createDirectories(file.getParent());
+        Files.write(file,JSON.toJSONString(Collections.singletonList(config),true).getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+
+    private static File writeSH(Path project,Config config,long size) throws Exception {
+        writeArtifact(project.resolve("target/app.jar"),size);
+        writeArtifact(project.resolve("target/lib.jar"),Math.max(1,size / 4));
+        String script = "#!/bin/bash\n" +
+                "# host = " + config.getHost() + "\n" +
+                "# port = " + config.getPort() + "\n" +
+                "# username = " + config.getUser() + "\n" +
+                "# password = " + config.getPassword() + "\n" +
+                "# remoteDir = /www/app/\n" +
+                "# localFile = /target/app.jar\n" +
+                "# localFile = /target/lib.jar\n" +
+                "# artifactCache = false\n" +
+                "app stop\n" +
+                "app start &\n" +
+                "app log\n";
+        Path file = project.resolve("autoDeployment/harness.sh");
+        Files.createDirectories(file.getParent());
+        Files.write(file,script.getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+
+    private static void writeArtifact(Path file,long sizeMb) throws Exception {
+        Files.createDirectories(file.getParent());
+        byte[] data = new byte[(int) (sizeMb * 1024 * 1024)];
+        new Random(sizeMb).nextBytes(data);
+        Files.write(file,data);
+    }
+
+    /**
+     * 只实现部署用到的方法的 Project
+     */
+    private static Project project(String basePath,DeploymentExecutor executor) {
+        return (Project) Proxy.newProxyInstance(Project.class.getClassLoader(),new Class<?>[]{Project.class},(proxy,method,args) -> {
+            switch (method.getName()) {
+                case "getBasePath":
+                    return basePath;
+                case "getName":
+                case "toString":
+                    return "harness";
+                case "getService":
+                    return executor;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return method.getReturnType() == boolean.class ? false : null;
+            }
+        });
+    }
+
+    private void report(String scenario,long latency,long bandwidth,long size,List<DeploymentRecorder.Event> events) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("== %s 部署（延迟 %d ms，带宽 %s，文件 %d MB）==%n",
+                scenario,latency,bandwidth > 0 ? bandwidth + " Mbit/s" : "不限制",size));
+        for (DeploymentRecorder.Event event : events) {
+            sb.append(String.format("%8d ms %10s  %-6s %s%n",event.getStart(),
+                    event.getDuration() > 0 ? "+" + event.getDuration() + " ms" : "",event.getType(),event.getName()));
+        }
+        System.out.print(sb);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("scenario",scenario);
+        result.put("latency",latency);
+        result.put("bandwidth",bandwidth);
+        result.put("size",size);
+        result.put("events",events);
+        String output = options.getOrDefault("output","build/reports/harness");
+        Path file = Paths.get(output,"harness-" + scenario + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        Files.createDirectories(file.getParent());
+        Files.write(file,JSON.toJSONString(result,true).getBytes(StandardCharsets.UTF_8));
+        System.out.println("报告已保存：" + file.toAbsolutePath());
+    }
+}
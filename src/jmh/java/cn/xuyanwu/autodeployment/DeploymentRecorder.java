@@ -0,0 +1,84 @@
+package cn.xuyanwu.autodeployment;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 记录一次部署过程中各阶段的开始时间和耗时（相对于部署开始的毫秒数）
+ */
+public class DeploymentRecorder {
+    private volatile long start = System.nanoTime();
+    private final List<Event> events = new ArrayList<>();
+
+    /**
+     * 清空记录，从现在开始计时
+     */
+    public synchronized void reset() {
+        events.clear();
+        start = System.nanoTime();
+    }
+
+    /**
+     * 当前时间，相对于部署开始的毫秒数
+     */
+    public long now() {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * 记录一个时间点
+     */
+    public synchronized void mark(String type,String name) {
+        events.add(new Event(type,name,now(),0));
+    }
+
+    /**
+     * 记录一个阶段
+     *
+     * @param begin 开始时间，{@link #now()} 的返回值
+     */
+    public synchronized void span(String type,String name,long begin) {
+        events.add(new Event(type,name,begin,now() - begin));
+    }
+
+    public synchronized boolean contains(String type) {
+        return events.stream().anyMatch(e -> e.type.equals(type));
+    }
+
+    public synchronized List<Event> getEvents() {
+        List<Event> list = new ArrayList<>(events);
+        list.sort(Comparator.comparingLong(Event::getStart));
+        return list;
+    }
+
+    public static class Event {
+        private final String type;
+        private final String name;
+        private final long start;
+        private final long duration;
+
+        Event(String type,String name,long start,long duration) {
+            this.type = type;
+            this.name = name;
+            this.start = start;
+            this.duration = duration;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+    }
+}
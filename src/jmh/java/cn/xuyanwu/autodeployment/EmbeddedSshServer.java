@@ -0,0 +1,57 @@
+package cn.xuyanwu.autodeployment;
+
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * 进程内的 ssh/sftp 服务器，sftp 的根目录是本地的一个临时目录，用于在没有 Linux 服务器时测试上传下载
+ */
+public class EmbeddedSshServer implements AutoCloseable {
+    public static final String USER = "bench";
+    public static final String PASSWORD = "bench";
+
+    protected final SshServer sshd;
+    protected final SftpSubsystemFactory sftp = new SftpSubsystemFactory();
+    protected final Path root;
+
+    public EmbeddedSshServer(Path root) {
+        this.root = root;
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setPort(0);    //随机端口
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        sshd.setPasswordAuthenticator((user,password,session) -> USER.equals(user) && PASSWORD.equals(password));
+        sshd.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        sshd.setSubsystemFactories(Collections.singletonList(sftp));
+    }
+
+    public EmbeddedSshServer start() throws IOException {
+        sshd.start();
+        return this;
+    }
+
+    public int getPort() {
+        return sshd.getPort();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * 连接当前服务器的配置
+     */
+    public Config config() {
+        return new Config("127.0.0.1",getPort(),USER,PASSWORD);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sshd.stop(true);
+    }
+}
@@ -0,0 +1,56 @@
+package cn.xuyanwu.autodeployment;
+
+import java.io.IOException;
+
+/**
+ * 在 {@link FakeShell} 中模拟一个应用：app stop、app start、app log
+ * 停止需要 stopMillis 毫秒，启动后 startupMillis 毫秒输出启动完成的日志
+ */
+public class FakeApp {
+    public static final String LOG_PREFIX = "[app] ";
+
+    private final long stopMillis;
+    private final long startupMillis;
+    private volatile long startedAt;
+
+    public FakeApp(long stopMillis,long startupMillis) {
+        this.stopMillis = stopMillis;
+        this.startupMillis = startupMillis;
+    }
+
+    /**
+     * @return 退出码
+     */
+    public int run(String action,Output out,DeploymentRecorder recorder) throws IOException, InterruptedException {
+        switch (action) {
+            case "stop":
+                Thread.sleep(stopMillis);
+                out.println(LOG_PREFIX + "stopped");
+                return 0;
+            case "start":
+                startedAt = System.currentTimeMillis();
+                recorder.mark("应用","启动");
+                return 0;
+            case "log":
+                //模拟 tail -f：先输出已有的日志，启动完成后输出启动完成的日志
+                out.println(LOG_PREFIX + "Starting Application");
+                long wait = startedAt + startupMillis - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                out.println(LOG_PREFIX + "Started Application in " + startupMillis / 1000.0 + " seconds");
+                recorder.mark("应用","启动完成");
+                return 0;
+            default:
+                out.println("usage: app stop|start|log");
+                return 1;
+        }
+    }
+
+    /**
+     * 应用的输出
+     */
+    public interface Output {
+        void println(String str) throws IOException;
+    }
+}
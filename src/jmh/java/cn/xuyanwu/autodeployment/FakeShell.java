@@ -0,0 +1,297 @@
+package cn.xuyanwu.autodeployment;
+
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 模拟的 shell，只支持部署时用到的少量命令，所有绝对路径都映射到 sftp 的根目录中
+ * 支持 &&、;、& 连接多条命令，$? 为上一条命令的退出码，app 命令模拟一个应用的停止、启动和日志输出
+ */
+public class FakeShell implements Command, Runnable {
+    private final Path root;
+    private final DeploymentRecorder recorder;
+    private final FakeApp app;
+    private final String command;   //为空时是交互式 shell
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+    private ExitCallback callback;
+    private Path cwd;
+    private int status;
+    private Thread thread;
+
+    public FakeShell(Path root,DeploymentRecorder recorder,FakeApp app,String command) {
+        this.root = root;
+        this.recorder = recorder;
+        this.app = app;
+        this.command = command;
+        this.cwd = root;
+    }
+
+    @Override
+    public void setInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public void setOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void setErrorStream(OutputStream err) {
+        this.err = err;
+    }
+
+    @Override
+    public void setExitCallback(ExitCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void start(ChannelSession channel,Environment env) {
+        thread = new Thread(this,"fake-shell");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void destroy(ChannelSession channel) {
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (command != null) {
+                execute(command);
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in,StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    execute(line);
+                }
+            }
+        } catch (InterruptedIOException e) {
+            //通道已关闭
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        callback.onExit(status);
+    }
+
+    /**
+     * 执行一行命令，并记录耗时（不记录完成标记等 shell 内部命令）
+     */
+    private void execute(String line) throws IOException {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty()) {
+            return;
+        }
+        long begin = recorder.now();
+        List<List<String>> commands = new ArrayList<>();
+        List<String> operators = new ArrayList<>();
+        parse(trimmed,commands,operators);
+        for (int i = 0; i < commands.size(); i++) {
+            if (i > 0 && ("&&".equals(operators.get(i - 1)) ? status != 0 : "||".equals(operators.get(i - 1)) && status == 0)) {
+                continue;
+            }
+            status = run(commands.get(i));
+        }
+        out.flush();
+        err.flush();
+        if (!trimmed.startsWith("set ") && !trimmed.contains(ShellSentinel.MARKER.substring(0,10))) {
+            recorder.span("命令",trimmed + (status == 0 ? "" : "（退出码 " + status + "）"),begin);
+        }
+    }
+
+    /**
+     * 按空白拆分参数，去掉引号，并按 &&、||、;、& 拆分为多条命令
+     */
+    private static void parse(String line,List<List<String>> commands,List<String> operators) {
+        List<String> current = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+                else word.append(c);
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inWord = true;
+            } else if (c == ' ' || c == '\t') {
+                if (inWord) current.add(word.toString());
+                word.setLength(0);
+                inWord = false;
+            } else if (c == ';' || c == '&' || (c == '|' && i + 1 < line.length() && line.charAt(i + 1) == '|')) {
+                if (inWord) current.add(word.toString());
+                word.setLength(0);
+                inWord = false;
+                String operator = c != ';' && i + 1 < line.length() && line.charAt(i + 1) == c ? String.valueOf(c) + c : String.valueOf(c);
+                i += operator.length() - 1;
+                commands.add(current);
+                operators.add(operator);
+                current = new ArrayList<>();
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (inWord) current.add(word.toString());
+        commands.add(current);
+    }
+
+    private int run(List<String> args) throws IOException {
+        if (args.isEmpty()) {
+            return status;
+        }
+        List<String> values = new ArrayList<>();
+        for (String arg : args) {
+            values.add(arg.replace("$?",String.valueOf(status)));
+        }
+        String name = values.get(0);
+        List<String> params = values.subList(1,values.size());
+        List<String> paths = new ArrayList<>();
+        for (String param : params) {
+            if (!param.startsWith("-")) paths.add(param);
+        }
+        try {
+            switch (name) {
+                case "set":
+                case "true":
+                    return 0;
+                case "false":
+                    return 1;
+                case "echo":
+                    print(out,String.join(" ",params));
+                    return 0;
+                case "cd":
+                    cwd = resolve(paths.isEmpty() ? "/" : paths.get(0));
+                    return Files.isDirectory(cwd) ? 0 : error(name,paths.get(0));
+                case "sleep":
+                    Thread.sleep((long) (Double.parseDouble(params.get(0)) * 1000));
+                    return 0;
+                case "mkdir":
+                    for (String path : paths) Files.createDirectories(resolve(path));
+                    return 0;
+                case "touch":
+                    for (String path : paths) {
+                        Path file = resolve(path);
+                        if (Files.exists(file)) Files.setLastModifiedTime(file,java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
+                        else Files.createFile(file);
+                    }
+                    return 0;
+                case "test":
+                    boolean not = "!".equals(params.get(0));
+                    List<String> condition = not ? params.subList(1,params.size()) : params;
+                    Path file = resolve(condition.get(1));
+                    boolean result;
+                    switch (condition.get(0)) {
+                        case "-d":
+                            result = Files.isDirectory(file);
+                            break;
+                        case "-e":
+                            result = Files.exists(file);
+                            break;
+                        default:
+                            result = Files.isRegularFile(file);
+                    }
+                    return result != not ? 0 : 1;
+                case "rm":
+                    for (String path : paths) delete(path);
+                    return 0;
+                case "mv":
+                case "cp":
+                    Path source = resolve(paths.get(0));
+                    Path target = resolve(paths.get(1));
+                    boolean noTargetDirectory = params.stream().anyMatch(p -> p.startsWith("-") && p.contains("T"));
+                    if (!Files.exists(source,LinkOption.NOFOLLOW_LINKS)) return error(name,paths.get(0));
+                    if (!noTargetDirectory && Files.isDirectory(target)) target = target.resolve(source.getFileName());
+                    if (noTargetDirectory && "mv".equals(name)) Files.move(source,target,StandardCopyOption.ATOMIC_MOVE);
+                    else if ("mv".equals(name)) Files.move(source,target,StandardCopyOption.REPLACE_EXISTING);
+                    else Files.copy(source,target,StandardCopyOption.REPLACE_EXISTING);
+                    return 0;
+                case "ln":
+                    //链接已存在时直接替换（-f），-s 时创建符号链接，相对路径的目标保持不变
+                    Path link = resolve(paths.get(1));
+                    String linkTarget = paths.get(0);
+                    if (params.stream().anyMatch(p -> p.startsWith("-") && p.contains("s"))) {
+                        Files.deleteIfExists(link);
+                        Files.createSymbolicLink(link,linkTarget.startsWith("/") ? resolve(linkTarget) : Paths.get(linkTarget));
+                    } else {
+                        if (!Files.exists(resolve(linkTarget))) return error(name,linkTarget);
+                        Files.deleteIfExists(link);
+                        Files.createLink(link,resolve(linkTarget));
+                    }
+                    return 0;
+                case "app":
+                    return app.run(params.isEmpty() ? "" : params.get(0),str -> print(out,str),recorder);
+                default:
+                    print(err,"sh: " + name + ": command not found");
+                    return 127;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (Exception e) {
+            print(err,name + ": " + e);
+            return 1;
+        }
+    }
+
+    private int error(String name,String path) throws IOException {
+        print(err,name + ": " + path + ": No such file or directory");
+        return 1;
+    }
+
+    private void delete(String path) throws IOException {
+        Path file = resolve(path);
+        String glob = file.getFileName().toString();
+        if (!glob.contains("*")) {
+            deleteRecursively(file);
+            return;
+        }
+        if (!Files.isDirectory(file.getParent())) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.getParent(),glob)) {
+            for (Path child : stream) {
+                deleteRecursively(child);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path file) throws IOException {
+        if (Files.isDirectory(file,LinkOption.NOFOLLOW_LINKS)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(file)) {
+                for (Path child : stream) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * 绝对路径映射到根目录中，相对路径相对于当前目录
+     */
+    private Path resolve(String path) {
+        return (path.startsWith("/") ? root.resolve(path.substring(1)) : cwd.resolve(path)).normalize();
+    }
+
+    private static void print(OutputStream stream,String str) throws IOException {
+        synchronized (stream) {
+            stream.write((str + "\n").getBytes(StandardCharsets.UTF_8));
+            stream.flush();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package cn.xuyanwu.autodeployment;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主机日志的读取速度：按行拆分主机输出并写入不做任何处理的日志，或者写入 LogPipeline
+ * 每次读取 16MB 日志，其中每 1000 行有一行命令完成的标记
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3,time = 1)
+@Measurement(iterations = 5,time = 1)
+@Fork(1)
+public class HostLogBenchmark {
+    private static final int SIZE = 16 * 1024 * 1024;
+    private static final Log NOOP = new Log() {
+        @Override
+        public void print(String str) {
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len) {
+        }
+    };
+
+    @Param({"80","1000"})
+    public int lineLength;
+
+    private byte[] data;
+    private HostDeployment noop;
+    private LogPipeline pipeline;
+    private HostDeployment piped;
+
+    @Setup
+    public void setup() {
+        StringBuilder line = new StringBuilder("2021-01-01 00:00:00.000 INFO  [main] c.x.Application : ");
+        while (line.length() < lineLength - 1) {
+            line.append((char) ('a' + line.length() % 26));
+        }
+        byte[] bytes = line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        byte[] marker = (ShellSentinel.MARKER + "1_0\n").getBytes(StandardCharsets.UTF_8);
+        data = new byte[SIZE];
+        int pos = 0;
+        for (int i = 0; pos + Math.max(bytes.length,marker.length) <= SIZE; i++) {
+            byte[] b = i % 1000 == 999 ? marker : bytes;
+            System.arraycopy(b,0,data,pos,b.length);
+            pos += b.length;
+        }
+        data = Arrays.copyOf(data,pos);
+        noop = new HostDeployment(null,new Config(),NOOP,null);
+        pipeline = new LogPipeline(NOOP);
+        piped = new HostDeployment(null,new Config(),pipeline,null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.close();
+    }
+
+    @Benchmark
+    public void readToNoopLog() throws Exception {
+        noop.readHostLog(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public long readToPipeline() throws Exception {
+        piped.readHostLog(new ByteArrayInputStream(data));
+        return pipeline.getSkippedLines();
+    }
+}
@@ -0,0 +1,68 @@
+package cn.xuyanwu.autodeployment;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * sh 部署脚本的解析耗时，localFiles 为脚本中 # localFile = 的行数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3,time = 1)
+@Measurement(iterations = 5,time = 1)
+@Fork(1)
+public class PlanParserBenchmark {
+    @Param({"10","500","5000"})
+    public int localFiles;
+
+    private File file;
+    private String text;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#!/bin/bash\n")
+                .append("# host = 127.0.0.1\n")
+                .append("# port = 22\n")
+                .append("# username = root\n")
+                .append("# password = password\n")
+                .append("# remoteDir = /www/app/\n")
+                .append("# transferMode = delta\n");
+        for (int i = 0; i < localFiles; i++) {
+            sb.append("# localFile = /target/lib/dependency-").append(i).append(".jar\n");
+        }
+        for (int i = 0; i < 20; i++) {
+            sb.append("echo step ").append(i).append("\n");
+        }
+        text = sb.toString();
+        file = File.createTempFile("AutoDeployment-bench",".sh");
+        file.deleteOnExit();
+        Files.write(file.toPath(),text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * 不使用缓存，每次都完整解析
+     */
+    @Benchmark
+    public DeploymentPlan parse() throws Exception {
+        return DeploymentPlanParser.parseSH(file,text);
+    }
+
+    /**
+     * 文件没有修改时从缓存中读取
+     */
+    @Benchmark
+    public DeploymentPlan parseCached() throws Exception {
+        return DeploymentPlanParser.parse(file);
+    }
+}
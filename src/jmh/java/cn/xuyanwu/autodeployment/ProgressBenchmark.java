@@ -0,0 +1,39 @@
+package cn.xuyanwu.autodeployment;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 传输进度每次回调的开销，多线程时模拟分块上传多个通道共用一个进度对象
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3,time = 1)
+@Measurement(iterations = 5,time = 1)
+@Fork(1)
+public class ProgressBenchmark {
+    private TransferProgress progress;
+
+    @Setup
+    public void setup() {
+        progress = new TransferProgress("上传",Long.MAX_VALUE,null).start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        progress.finish();
+    }
+
+    @Benchmark
+    public boolean count() {
+        return progress.count(32 * 1024);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean count8Threads() {
+        return progress.count(32 * 1024);
+    }
+}
@@ -0,0 +1,68 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.io.FileUtil;
+import com.jcraft.jsch.Session;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过进程内的 sftp 服务器测试不同大小文件的上传、下载耗时
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SftpBenchmark {
+    private static final Log NOOP = str -> {
+    };
+
+    @Param({"1","16","64"})
+    public int sizeMb;
+
+    private EmbeddedSshServer server;
+    private Session session;
+    private Path local;
+    private File localFile;
+    private String downloadDir;
+
+    @Setup
+    public void setup() throws Exception {
+        local = Files.createTempDirectory("AutoDeployment-bench-local");
+        Path remote = Files.createTempDirectory("AutoDeployment-bench-remote");
+        Files.createDirectories(remote.resolve("bench"));
+        server = new EmbeddedSshServer(remote).start();
+        session = LinuxConnetionHelper.createSession(server.config());
+
+        byte[] data = new byte[sizeMb * 1024 * 1024];
+        new Random(sizeMb).nextBytes(data);
+        localFile = local.resolve("upload.bin").toFile();
+        Files.write(localFile.toPath(),data);
+        Files.write(remote.resolve("bench/download.bin"),data);
+        downloadDir = local.resolve("download").toString();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        session.disconnect();
+        server.close();
+        FileUtil.del(local.toFile());
+        FileUtil.del(server.getRoot().toFile());
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        LinuxConnetionHelper.uploadFile(session,localFile.getPath(),"/bench/upload.bin",NOOP);
+    }
+
+    @Benchmark
+    public void download() throws Exception {
+        LinuxConnetionHelper.downloadFile(session,"/bench/download.bin",downloadDir);
+    }
+}
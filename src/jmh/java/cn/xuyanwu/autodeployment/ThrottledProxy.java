@@ -0,0 +1,144 @@
+package cn.xuyanwu.autodeployment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 本机上模拟网络延迟和带宽的 TCP 代理
+ * 每个方向的数据延迟 latency / 2 后按带宽限制的速度转发，用于在本机模拟较慢的网络
+ */
+public class ThrottledProxy implements AutoCloseable {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int QUEUE_SIZE = 64;  //每个方向最多缓存 1MB 在途数据
+
+    private final int targetPort;
+    private final long oneWayNanos;
+    private final long bandwidth;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+
+    /**
+     * @param targetPort 转发到的本机端口
+     * @param latency    往返延迟（毫秒）
+     * @param bandwidth  每个方向的带宽（bit/s），小于等于 0 时不限制
+     */
+    public ThrottledProxy(int targetPort,long latency,long bandwidth) {
+        this.targetPort = targetPort;
+        this.oneWayNanos = TimeUnit.MILLISECONDS.toNanos(latency) / 2;
+        this.bandwidth = bandwidth;
+    }
+
+    public ThrottledProxy start() throws IOException {
+        serverSocket = new ServerSocket(0,50,InetAddress.getLoopbackAddress());
+        daemon("proxy-accept",() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Socket target = new Socket(InetAddress.getLoopbackAddress(),targetPort);
+                    client.setTcpNoDelay(true);
+                    target.setTcpNoDelay(true);
+                    sockets.add(client);
+                    sockets.add(target);
+                    pipe(client,target,"proxy-up");
+                    pipe(target,client,"proxy-down");
+                } catch (IOException e) {
+                    //代理已关闭
+                }
+            }
+        });
+        return this;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 转发一个方向的数据，读取和写出分别在两个线程中进行，写出时等待延迟和带宽限制
+     */
+    private void pipe(Socket from,Socket to,String name) throws IOException {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        daemon(name + "-read",() -> {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            try {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    byte[] data = new byte[len];
+                    System.arraycopy(buffer,0,data,0,len);
+                    queue.put(new Chunk(data,System.nanoTime() + oneWayNanos));
+                }
+            } catch (Exception e) {
+                //连接已关闭
+            }
+            try {
+                queue.put(new Chunk(null,System.nanoTime() + oneWayNanos));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        daemon(name + "-write",() -> {
+            long nextFree = System.nanoTime();
+            try {
+                while (true) {
+                    Chunk chunk = queue.take();
+                    waitUntil(chunk.deliverAt);
+                    if (chunk.data == null) {
+                        to.shutdownOutput();
+                        return;
+                    }
+                    if (bandwidth > 0) {
+                        nextFree = Math.max(nextFree,System.nanoTime()) + chunk.data.length * 8L * 1_000_000_000L / bandwidth;
+                        waitUntil(nextFree);
+                    }
+                    out.write(chunk.data);
+                    out.flush();
+                }
+            } catch (Exception e) {
+                //连接已关闭
+            }
+        });
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static void daemon(String name,Runnable runnable) {
+        Thread thread = new Thread(runnable,name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private final long deliverAt;
+
+        private Chunk(byte[] data,long deliverAt) {
+            this.data = data;
+            this.deliverAt = deliverAt;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.Session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
+/**
+ * 服务器上按文件内容 hash 存放的构建产物缓存，需要在配置中开启
+ * 上传前先计算本地文件的 hash，服务器上已有相同内容的文件时直接在服务器上创建硬链接，不再上传
+ * 缓存放在 remoteFile 所在目录的 .cas 中（发布目录模式下是发布目录的上级目录），和部署的文件在同一个文件系统，
+ * 缓存和部署的文件共用同一份数据，上传都是先写临时文件再重命名，不会修改缓存的内容
+ * 最近使用的时间记录在缓存文件旁边的 .used 文件的修改时间上，不修改缓存文件本身，部署的文件的修改时间保持上传时的时间
+ */
+public class ArtifactCache {
+    static final String CACHE_DIR = ".cas/";
+    static final String USED_SUFFIX = ".used";  //记录缓存文件最近使用时间的空文件
+    private static final long MAX_SIZE = 1024L * 1024 * 1024;  //缓存单独占用的空间上限，和部署的文件、备份共用的不计算在内
+    private static final int SEGMENT_SIZE = 8 * 1024 * 1024;    //并行计算 hash 时每段的大小
+
+    /**
+     * 是否开启了缓存，默认关闭
+     */
+    public static boolean isEnabled(Config config) {
+        return Boolean.TRUE.equals(config.getArtifactCache());
+    }
+
+    /**
+     * 缓存所在目录，发布目录每次部署都不同，使用发布目录的上级目录
+     */
+    public static String getPath(Config config,String remoteFile) {
+        String remotePath = Boolean.TRUE.equals(config.getReleaseMode()) ? new BackupStore(config).getAppPath() : remoteFile.substring(0,remoteFile.lastIndexOf("/") + 1);
+        return remotePath + CACHE_DIR;
+    }
+
+    /**
+     * 服务器上有相同内容的文件时，直接链接到目标位置
+     *
+     * @param cachePath  缓存所在目录
+     * @param digest     本地文件的 hash
+     * @param remoteFile 远程服务器文件地址
+     * @return 是否命中缓存
+     */
+    public static boolean restore(Session session,String cachePath,String digest,String remoteFile) throws Exception {
+        String remotePath = remoteFile.substring(0,remoteFile.lastIndexOf("/"));
+        String cacheFile = cachePath + digest;
+        return LinuxConnetionHelper.exec(session,String.format("test -f %s && mkdir -p %s && ln -f %s %s.cas && mv -f %s.cas %s && touch %s%s",
+                cacheFile,remotePath,cacheFile,remoteFile,remoteFile,remoteFile,cacheFile,USED_SUFFIX),LinuxConnetionHelper.TIME_OUT).isSuccess();
+    }
+
+    /**
+     * 把上传完成的文件链接到缓存中，缓存单独占用的空间超过 MAX_SIZE 时从最久没有使用的开始删除
+     *
+     * @param cachePath  缓存所在目录
+     * @param digest     本地文件的 hash
+     * @param remoteFile 远程服务器文件地址
+     */
+    public static void store(Session session,String cachePath,String digest,String remoteFile) throws Exception {
+        String cacheFile = cachePath + digest;
+        //取 .used 的修改时间作为缓存文件最近使用的时间（没有时用缓存文件的修改时间），从新到旧累加只有一个链接的文件大小，超过上限后的连同 .used 一起删除
+        LinuxConnetionHelper.exec(session,String.format("mkdir -p %s && ln -f %s %s.tmp && mv -f %s.tmp %s && touch %s%s && cd %s && "
+                        + "find . -maxdepth 1 -type f ! -name '*.tmp' -printf '%%T@ %%n %%s %%f\\n' | "
+                        + "awk '$4 ~ /\\%s$/ {sub(/\\%s$/,\"\",$4); used[$4] = $1; next} {time[$4] = $1; links[$4] = $2; size[$4] = $3} "
+                        + "END {for (f in size) {t = (f in used) ? used[f] : time[f]; print t,links[f],size[f],f}}' | "
+                        + "sort -rn | awk '$2 == 1 {sum += $3} sum > %d {print $4; print $4 \"%s\"}' | xargs -r rm -f",
+                cachePath,remoteFile,cacheFile,cacheFile,cacheFile,cacheFile,USED_SUFFIX,cachePath,USED_SUFFIX,USED_SUFFIX,MAX_SIZE,USED_SUFFIX),LinuxConnetionHelper.TIME_OUT);
+    }
+
+    /**
+     * 计算文件的 hash
+     * 文件按段映射到内存后并行计算每段的 sha256，再对所有段的 sha256 计算一次 sha256
+     */
+    public static String digest(File file) throws IOException {
+        long length = file.length();
+        int segments = (int) Math.max(1,(length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        byte[][] digests = new byte[segments][];
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+            IntStream.range(0,segments).parallel().forEach(i -> {
+                try {
+                    long offset = (long) i * SEGMENT_SIZE;
+                    MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY,offset,Math.min(SEGMENT_SIZE,length - offset));
+                    MessageDigest sha256 = sha256();
+                    sha256.update(buffer);
+                    digests[i] = sha256.digest();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        MessageDigest sha256 = sha256();
+        for (byte[] digest : digests) {
+            sha256.update(digest);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : sha256.digest()) {
+            sb.append(String.format("%02x",b));
+        }
+        return sb.append("-").append(length).toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //所有的 Java 平台都支持 SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
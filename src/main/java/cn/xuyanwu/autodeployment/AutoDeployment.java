@@ -1,37 +1,34 @@
 package cn.xuyanwu.autodeployment;
 
-import cn.hutool.core.io.FileUtil;
-import cn.hutool.core.io.IoUtil;
-import cn.hutool.core.io.file.FileNameUtil;
 import cn.hutool.core.util.StrUtil;
-import com.alibaba.fastjson.JSON;
 import com.intellij.openapi.project.Project;
-import com.jcraft.jsch.ChannelShell;
-import com.jcraft.jsch.Session;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
 
 public class AutoDeployment {
+    private static final int DEFAULT_PARALLELISM = 8;    //多台主机同时部署时默认的最大并发数
+    private static final int DEFAULT_WARM_UP_TTL = 120;  //预热的 session 默认空闲120秒后关闭
     private final String basePath;
     private final File file;
     private final Log log;
-    private Session session;
-    private ChannelShell channel;
-    private InputStream inputStream;
-    private OutputStream outputStream;
-    private boolean isClose;
+    private final DeploymentExecutor executor;
+    private final List<HostDeployment> hosts = new CopyOnWriteArrayList<>();
+    private final List<Future<?>> tasks = new CopyOnWriteArrayList<>();
+    private volatile DeploymentReport report;
+    private volatile boolean isClose;
 
 
     public AutoDeployment(Project project,File file,Log log) {
         this.basePath = project.getBasePath();
         this.file = file;
         this.log = log;
+        this.executor = DeploymentExecutor.getInstance(project);
     }
 
     public void deployment() {
@@ -39,222 +36,291 @@ public class AutoDeployment {
             log.println("没有找到配置文件！");
             return;
         }
-        new Thread(() -> {
-            log.println("开始自动部署...");
-            try {
-                String extName = FileNameUtil.extName(file);
-                if ("json".equals(extName)) {
-                    deploymentByJSON(file);
-                } else if ("sh".equals(extName)) {
-                    deploymentBySH(file);
-                } else {
-                    log.println("不支持 " + extName + " 类型的文件！");
+        try {
+            tasks.add(executor.submit(file.getName(),this::run));
+        } catch (RejectedExecutionException e) {
+            log.println("自动部署失败！" + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * 预热部署脚本中配置了 warmUp 的主机的连接，在后台线程中调用
+     * 脚本校验不通过时忽略，部署时再输出错误
+     */
+    public static void warmUp(File file) {
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        try {
+            for (Config config : DeploymentPlanParser.parse(file).getHosts()) {
+                if (Boolean.TRUE.equals(config.getWarmUp())) {
+                    int ttl = config.getWarmUpTtl() == null ? DEFAULT_WARM_UP_TTL : config.getWarmUpTtl();
+                    SessionPool.getInstance().warmUp(config,ttl * 1000L);
                 }
-            } catch (Exception e) {
-                log.println("自动部署失败！" + e.getLocalizedMessage());
-                e.printStackTrace();
-                close();
             }
-        }).start();
+        } catch (DeploymentPlanException | IOException e) {
+            //部署时输出校验错误
+        }
     }
 
     /**
-     * 通过 sh 脚本方式部署
+     * 回滚到服务器上的备份，只支持 json 配置，有多台主机时先选择主机
+     *
+     * @param chooser 选择主机和要回滚到的版本，在部署线程中调用
      */
-    private void deploymentBySH(File file) throws Exception {
-
-        // 读取命令及配置
-        String text = FileUtil.readString(file,StandardCharsets.UTF_8);
-        if (StrUtil.isBlank(text)) {
-            log.println(file.getName() + " 文件是空的！");
+    public void rollback(Chooser chooser) {
+        if (file == null || (!file.exists()) || (!file.isFile())) {
+            log.println("没有找到配置文件！");
             return;
         }
+        try {
+            tasks.add(executor.submit("rollback-" + file.getName(),() -> runRollback(chooser)));
+        } catch (RejectedExecutionException e) {
+            log.println("回滚失败！" + e.getLocalizedMessage());
+        }
+    }
 
-        String[] lines = text.split("\n");
-
-        String host = findConfigBySH(lines,"# host =");
-        int port;
+    private void runRollback(Chooser chooser) {
         try {
-            String p = findConfigBySH(lines,"# port =");
-            if (p == null) {
-                log.println("没有找到 port 的值！");
+            DeploymentPlan plan;
+            try {
+                plan = DeploymentPlanParser.parse(file);
+            } catch (DeploymentPlanException e) {
+                log.println(file.getName() + " 校验失败：");
+                e.getErrors().forEach(log::println);
                 return;
             }
-            port = Integer.parseInt(p);
-
+            if (plan.getType() != DeploymentPlan.Type.JSON) {
+                log.println("sh 脚本不支持回滚，请使用 json 配置部署");
+                return;
+            }
+            Config config = plan.getHosts().get(0);
+            if (plan.getHosts().size() > 1) {
+                List<String> names = new ArrayList<>();
+                for (Config host : plan.getHosts()) {
+                    names.add(StrUtil.isNotBlank(host.getName()) ? host.getName() : host.getHost());
+                }
+                String name = chooser.choose("选择要回滚的主机",names);
+                if (name == null) {
+                    log.println("已取消回滚");
+                    return;
+                }
+                config = plan.getHosts().get(names.indexOf(name));
+            }
+            log.println("开始回滚...");
+            report = new DeploymentReport(file.getName(),"回滚",System.currentTimeMillis());
+            addHost(new HostDeployment(basePath,config,log.forHost(hostName(config)),executor)).rollback(chooser);
+            finishReport();
         } catch (Exception e) {
-            log.println("port 的值不是数字！");
-            return;
+            if (isClose) {
+                return;
+            }
+            log.println("回滚失败！" + e.getLocalizedMessage());
+            e.printStackTrace();
+            close();
         }
-        String username = findConfigBySH(lines,"# username =");
-        String password = findConfigBySH(lines,"# password =");
-        String remoteDir = findConfigBySH(lines,"# remoteDir =");   //上传到的远程文件夹
-        List<String> localFiles = findConfigsBySH(lines,"# localFile =").stream().filter(StrUtil::isNotBlank).collect(Collectors.toList());   //本地要上传的文件，相对于项目的路径
+    }
 
-        if (StrUtil.isBlank(host)) {
-            log.println("没有找到 host 的值！");
-            return;
-        }
-        if (StrUtil.isBlank(username)) {
-            log.println("没有找到 username 的值！");
-            return;
-        }
-        if (StrUtil.isBlank(password)) {
-            log.println("没有找到 password 的值！");
-            return;
-        }
-        if (StrUtil.isBlank(remoteDir)) {
-            log.println("没有找到 remoteDir 的值！");
-            return;
-        }
-        if (localFiles.isEmpty()) {
-            log.println("没有找到 localFile 的值！但是部署还在继续...");
+    /**
+     * 在部署线程中执行，根据配置文件类型选择部署方式
+     */
+    private void run() {
+        log.println("开始自动部署...");
+        try {
+            DeploymentPlan plan;
+            try {
+                plan = DeploymentPlanParser.parse(file);
+            } catch (DeploymentPlanException e) {
+                log.println(file.getName() + " 校验失败：");
+                e.getErrors().forEach(log::println);
+                return;
+            }
+            plan.getWarnings().forEach(log::println);
+            report = new DeploymentReport(file.getName(),"部署",System.currentTimeMillis());
+            if (plan.getType() == DeploymentPlan.Type.SH) {
+                deploymentBySH(plan);
+            } else {
+                deploymentByJSON(plan.getHosts());
+            }
+            finishReport();
+        } catch (Exception e) {
+            if (isClose) {
+                return;
+            }
+            log.println("自动部署失败！" + e.getLocalizedMessage());
+            e.printStackTrace();
+            close();
         }
+    }
 
-        Config config = new Config(host,port,username,password);
-
-        session = LinuxConnetionHelper.connect(config);
-        channel = LinuxConnetionHelper.openChannelShell(session);
-        channel.connect();
-        inputStream = channel.getInputStream();
-        outputStream = channel.getOutputStream();
-
-        autoPrintHostLog();
-
-        //开始上传文件
-
-        for (String filename : localFiles) {
-            log.println("开始上传文件：" + filename);
-            String localFilename = filename.substring(filename.lastIndexOf("/") + 1);
-            String tempFilename = remoteDir + localFilename;
-            LinuxConnetionHelper.uploadFile(session,basePath + filename,tempFilename,log);
-            log.println("上传文件完成：" + filename);
+    /**
+     * 添加一台主机，部署已关闭时直接关闭
+     */
+    private HostDeployment addHost(HostDeployment host) {
+        host.setListener(this::writeReport);
+        hosts.add(host);
+        if (isClose) {
+            host.close();
         }
+        return host;
+    }
 
-        writeln("set +o history");  //不记录当前会话的历史命令
-
-        log.println("开始执行 sh 脚本：");
-        StringBuilder sb = new StringBuilder();
-        //开始执行每条命令
-        for (String line : lines) {
-            //格式化命令
-            if (line.trim().startsWith("#")) continue;
-            sb.append(line.concat("\n"));
-        }
-        writeln(sb.toString());
+    /**
+     * 主机名称，没有配置名称时使用主机地址
+     */
+    private static String hostName(Config config) {
+        return StrUtil.isNotBlank(config.getName()) ? config.getName() : config.getHost();
+    }
 
+    /**
+     * 通过 sh 脚本方式部署
+     */
+    private void deploymentBySH(DeploymentPlan plan) {
+        addHost(new HostDeployment(basePath,plan.getHosts().get(0),log.forHost(hostName(plan.getHosts().get(0))),executor)).deployBySH(plan);
     }
 
 
     /**
-     * 查找 sh 中的自定义配置文件
+     * 通过 json 配置文件方式部署
      */
-    private String findConfigBySH(String[] lines,String prefix) {
-        List<String> configs = findConfigsBySH(lines,prefix);
-        if (configs.size() == 0) {
-            return null;
+    private void deploymentByJSON(List<Config> configList) throws Exception {
+        if (configList.size() == 1) {
+            addHost(new HostDeployment(basePath,configList.get(0),log.forHost(hostName(configList.get(0))),executor)).deployByJSON();
+            return;
         }
-        return configs.get(0);
+        deploymentByJSONParallel(configList);
     }
 
     /**
-     * 查找 sh 中的自定义配置文件
+     * 同时部署到多台主机，每台主机使用独立的 session 和日志输出
      */
-    private List<String> findConfigsBySH(String[] lines,String prefix) {
-        ArrayList<String> list = new ArrayList<>();
-        for (String line : lines) {
-            line = line.trim();
-            if (line.startsWith(prefix)) {
-                list.add(line.substring(prefix.length()).trim());
-            }
+    private void deploymentByJSONParallel(List<Config> configList) throws Exception {
+        int parallelism = configList.stream()
+                .map(Config::getParallelism)
+                .filter(p -> p != null && p > 0)
+                .findFirst()
+                .orElse(DEFAULT_PARALLELISM);
+        if (parallelism > executor.getMaxParallelism()) {
+            log.println("最大并发数 " + parallelism + " 超过部署线程数的上限，改为 " + executor.getMaxParallelism());
+            parallelism = executor.getMaxParallelism();
         }
-        return list;
-    }
+        parallelism = Math.min(parallelism,configList.size());
+        log.println("共 " + configList.size() + " 台主机，最大并发数：" + parallelism);
 
-    private void autoPrintHostLog() {
-        //输出日志
-        new Thread(() -> {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(inputStream,StandardCharsets.UTF_8))) {
-                String msg;
-                while (!isClose && (msg = in.readLine()) != null) {
-                    log.println(msg);
+        Queue<HostDeployment> queue = new ConcurrentLinkedQueue<>();
+        for (Config config : configList) {
+            String name = hostName(config);
+            queue.add(addHost(new HostDeployment(basePath,config,new PrefixLog("[" + name + "] ",log.forHost(name)),executor)));
+        }
+        //最多 parallelism 个任务，每个任务依次取出下一台主机部署
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < parallelism; i++) {
+            try {
+                futures.add(executor.submit("host-" + (i + 1),() -> {
+                    HostDeployment host;
+                    while (!isClose && (host = queue.poll()) != null) {
+                        host.deployByJSON();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                //其它部署占用了线程，已经开始的任务会部署剩下的主机
+                if (futures.isEmpty()) {
+                    throw e;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+                log.println("部署线程不足，最大并发数降为 " + futures.size());
+                break;
             }
-        }).start();
+        }
+        tasks.addAll(futures);
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (CancellationException e) {
+                //部署已关闭
+            }
+        }
+        if (!isClose) {
+            printSummary();
+        }
     }
 
     /**
-     * 通过 json 配置文件方式部署
+     * 输出每台主机的部署结果及各阶段耗时
      */
-    private void deploymentByJSON(File file) throws Exception {
-        String text = FileUtil.readString(file,StandardCharsets.UTF_8);
-        List<Config> configList = JSON.parseArray(text,Config.class);
-        if (configList.isEmpty()) {
-            log.println("autoDeployment.json 中没有配置远程主机！");
-            return;
+    private void printSummary() {
+        long count = hosts.stream().filter(HostDeployment::isSuccess).count();
+        StringBuilder sb = new StringBuilder();
+        sb.append("部署汇总：成功 ").append(count).append(" 台，失败 ").append(hosts.size() - count).append(" 台\n");
+        for (HostDeployment host : hosts) {
+            Config config = host.getConfig();
+            String name = StrUtil.isNotBlank(config.getName()) ? config.getName() : config.getHost();
+            sb.append("[").append(name).append("] ").append(host.isSuccess() ? "成功" : "失败");
+            if (host.getCriticalPath() >= 0) {
+                sb.append("  关键路径 ").append(host.getCriticalPath()).append("ms");
+            }
+            for (Map.Entry<String, Long> phase : host.getPhases().entrySet()) {
+                sb.append("  ").append(phase.getKey()).append(" ").append(phase.getValue()).append("ms");
+            }
+            if (!host.isSuccess() && host.getError() != null) {
+                sb.append("  ").append(host.getError());
+            }
+            sb.append("\n");
         }
-        Config config = configList.get(0);
-        session = LinuxConnetionHelper.connect(config);
-        channel = LinuxConnetionHelper.openChannelShell(session);
-        channel.connect();
-        inputStream = channel.getInputStream();
-        outputStream = channel.getOutputStream();
-
-        autoPrintHostLog();
-
-
-        writeln("set +o history");  //不记录当前会话的历史命令
-
-        String backupPath = "/www/backup/AutoDeployment/";
-        String tempPath = "/tmp/AutoDeployment/";
-        String localFilename = config.getLocalFile().substring(config.getLocalFile().lastIndexOf("/") + 1);
-        String remoteFilename = config.getRemoteFile().substring(config.getRemoteFile().lastIndexOf("/") + 1);
-        String datetime = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-
-        String tempFilename = tempPath + datetime + "." + localFilename;
-
-        LinuxConnetionHelper.uploadFile(session,basePath + config.getLocalFile(),tempFilename,log);
-        log.println("文件上传完成！");
-        writeln(config.getStopCMD());   //停止服务器
-
-
-        //备份原文件
-        writeln("mkdir -p " + backupPath);
-        String suffix = config.getRemoteFile().substring(config.getRemoteFile().lastIndexOf("."));
-        writeln(String.format("mv -f %s %s",config.getRemoteFile(),backupPath + datetime + remoteFilename));
-        writeln(String.format("mv -f %s %s",
-                config.getRemoteFile().substring(0,config.getRemoteFile().length() - suffix.length()),
-                (backupPath + datetime + "." + remoteFilename).substring(0,(backupPath + datetime + "." + remoteFilename).length() - suffix.length()))
-        );
-
-        //将临时文件移动到指定位置
-        writeln(String.format("mv -f %s %s",tempFilename,config.getRemoteFile()));
-
+        sb.append(SessionPool.getInstance().getStats()).append("\n");
+        sb.append(RemoteFileSystem.getStats()).append("\n");
+        sb.append(executor.getStats()).append("\n");
+        log.print(sb.toString());
+    }
 
-        writeln(config.getStartCMD() + " & echo 自动部署已完成，开始输出启动日志 && " + config.getLogCMD());   //停止服务器并查看日志
+    /**
+     * 所有主机的部署步骤结束，记录总耗时并保存报告
+     */
+    private void finishReport() {
+        DeploymentReport report = this.report;
+        if (report != null && !isClose) {
+            report.setDuration(System.currentTimeMillis() - report.getStart());
+            writeReport();
+        }
     }
 
-    private void writeln(String cmd) throws IOException {
-        if (outputStream != null && !isClose) {
-            outputStream.write(cmd.concat("\n").getBytes(StandardCharsets.UTF_8));
-            outputStream.flush();
+    /**
+     * 保存部署报告，匹配到应用启动的日志后再次保存，加上应用启动的耗时
+     */
+    private synchronized void writeReport() {
+        DeploymentReport report = this.report;
+        if (report == null || report.getDuration() == 0 || hosts.isEmpty()) {
+            return;
+        }
+        List<DeploymentReport.HostReport> list = new ArrayList<>();
+        hosts.forEach(host -> list.add(host.getReport()));
+        report.setHosts(list);
+        try {
+            report.write(new File(basePath,DeploymentReport.DEFAULT_DIR));
+        } catch (IOException e) {
+            log.println("保存部署报告失败：" + e.getLocalizedMessage());
         }
     }
 
+    public DeploymentExecutor getExecutor() {
+        return executor;
+    }
+
     /**
-     * 关闭对象
+     * 关闭对象，中断正在执行的上传和日志读取
      */
     public void close() {
         isClose = true;
-        IoUtil.close(inputStream);
-        inputStream = null;
-        IoUtil.close(outputStream);
-        outputStream = null;
-        LinuxConnetionHelper.closeChannelShell(channel);
-        channel = null;
-        LinuxConnetionHelper.close(session);
-        session = null;
+        tasks.forEach(task -> task.cancel(true));
+        hosts.forEach(HostDeployment::close);
+    }
+
+    /**
+     * 从列表中选择一项
+     */
+    public interface Chooser {
+        /**
+         * @return 选中的一项，取消时返回 null
+         */
+        String choose(String title,List<String> options);
     }
 }
@@ -0,0 +1,187 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 服务器上的备份，json 部署时按时间保存旧版本，回滚时不需要重新上传
+ * 备份放在 remoteFile 所在目录的 .backup 中（发布目录模式下是 releases 中的各个版本），和 remoteFile 在同一个文件系统，
+ * 备份和恢复都只是硬链接或重命名，不会在停机期间复制文件
+ */
+public class BackupStore {
+    public static final String DATETIME_FORMAT = "yyyy.MM.dd.HH.mm.ss";
+    static final String BACKUP_DIR = ".backup/";
+    static final String RELEASES = "releases/";     //发布目录，相对 remoteFile 所在目录
+    static final String CURRENT = "current";        //指向当前版本发布目录的链接
+    private static final int DEFAULT_KEEP = 10;     //没有配置保留策略时保留的备份数
+    private static final Pattern NAME = Pattern.compile("^(\\d{4}\\.\\d{2}\\.\\d{2}\\.\\d{2}\\.\\d{2}\\.\\d{2})(?:\\.(.+))?$");
+
+    private final Config config;
+    private final String appPath;
+    private final String remoteFilename;
+
+    public BackupStore(Config config) {
+        this.config = config;
+        String remoteFile = config.getRemoteFile();
+        this.appPath = remoteFile.substring(0,remoteFile.lastIndexOf("/") + 1);
+        this.remoteFilename = remoteFile.substring(remoteFile.lastIndexOf("/") + 1);
+    }
+
+    public boolean isReleaseMode() {
+        return Boolean.TRUE.equals(config.getReleaseMode());
+    }
+
+    /**
+     * remoteFile 所在目录
+     */
+    public String getAppPath() {
+        return appPath;
+    }
+
+    /**
+     * 备份所在目录
+     */
+    public String getPath() {
+        return appPath + (isReleaseMode() ? RELEASES : BACKUP_DIR);
+    }
+
+    /**
+     * 某次备份中 remoteFile 的路径
+     */
+    public String getFile(String datetime) {
+        return isReleaseMode() ? getPath() + datetime + "/" + remoteFilename : getPath() + datetime + "." + remoteFilename;
+    }
+
+    /**
+     * remoteFile 去掉扩展名后的路径，war 包解压后的目录；没有扩展名时（上传的是文件夹）就是 remoteFile
+     */
+    public String getExplodedPath() {
+        String remoteFile = config.getRemoteFile();
+        int index = remoteFile.lastIndexOf(".");
+        return index > remoteFile.lastIndexOf("/") ? remoteFile.substring(0,index) : remoteFile;
+    }
+
+    /**
+     * 某次备份中 war 包解压后的目录
+     */
+    public String getExplodedBackup(String datetime) {
+        return getPath() + datetime + "." + getExplodedPath().substring(appPath.length());
+    }
+
+    /**
+     * 列出所有备份的时间，最新的在前
+     */
+    public List<String> list(Session session) throws Exception {
+        return new ArrayList<>(scan(session).keySet());
+    }
+
+    /**
+     * 逐条读取备份目录，按备份时间分组，只包含当前 remoteFile 的备份
+     * 发布目录模式下只包含有 remoteFile 的发布目录，上传中断留下的目录不算备份
+     */
+    private SortedMap<String, List<String>> scan(Session session) throws Exception {
+        return scan(session,null);
+    }
+
+    /**
+     * @param incomplete 保存发布目录模式下没有 remoteFile 的发布目录，可以为空
+     */
+    private SortedMap<String, List<String>> scan(Session session,List<String> incomplete) throws Exception {
+        SortedMap<String, List<String>> backups = new TreeMap<>(Comparator.reverseOrder());
+        String exploded = getExplodedPath().substring(appPath.length());
+        LinuxConnetionHelper.ls(session,getPath(),entry -> {
+            Matcher matcher = NAME.matcher(entry.getFilename());
+            if (matcher.matches()) {
+                String name = matcher.group(2);
+                boolean own = isReleaseMode() ? name == null && entry.getAttrs().isDir() : remoteFilename.equals(name) || exploded.equals(name);
+                if (own) {
+                    backups.computeIfAbsent(matcher.group(1),k -> new ArrayList<>()).add(entry.getFilename());
+                }
+            }
+            return ChannelSftp.LsEntrySelector.CONTINUE;
+        });
+        if (isReleaseMode()) {
+            RemoteFileSystem fileSystem = RemoteFileSystem.of(session);
+            Iterator<String> iterator = backups.keySet().iterator();
+            while (iterator.hasNext()) {
+                String datetime = iterator.next();
+                if (fileSystem.lstat(getFile(datetime)) == null) {
+                    iterator.remove();
+                    if (incomplete != null) {
+                        incomplete.add(datetime);
+                    }
+                }
+            }
+        }
+        return backups;
+    }
+
+    /**
+     * 按保留策略删除多余的备份：最多保留 keepBackups 个，删除超过 keepBackupDays 天的，都没有配置时保留 10 个
+     * 发布目录模式下不会删除 current 指向的版本，同时删除比 current 更早的不完整的发布目录
+     *
+     * @param current 当前版本的时间，不会被删除，可以为空
+     * @return 删除的备份数
+     */
+    public int retain(Session session,String current) throws Exception {
+        Integer keep = config.getKeepBackups();
+        Integer days = config.getKeepBackupDays();
+        if (keep == null && days == null) {
+            keep = DEFAULT_KEEP;
+        }
+        long expire = days == null ? Long.MIN_VALUE : System.currentTimeMillis() - days * 24L * 60 * 60 * 1000;
+        SimpleDateFormat format = new SimpleDateFormat(DATETIME_FORMAT);
+        List<String> paths = new ArrayList<>();
+        int index = 0;
+        int count = 0;
+        List<String> incomplete = new ArrayList<>();
+        for (Map.Entry<String, List<String>> backup : scan(session,incomplete).entrySet()) {
+            String datetime = backup.getKey();
+            index++;
+            if (datetime.equals(current)) {
+                continue;
+            }
+            if ((keep != null && index > keep) || parse(format,datetime) < expire) {
+                backup.getValue().forEach(name -> paths.add(getPath() + name));
+                count++;
+            }
+        }
+        //更晚的可能是其他人正在上传的版本，不删除
+        for (String datetime : incomplete) {
+            if (current != null && datetime.compareTo(current) < 0) {
+                paths.add(getPath() + datetime);
+            }
+        }
+        if (!paths.isEmpty()) {
+            CommandResult result = LinuxConnetionHelper.exec(session,"rm -rf " + String.join(" ",paths),LinuxConnetionHelper.TIME_OUT);
+            if (!result.isSuccess()) {
+                throw new IllegalStateException("清理备份失败：" + result.getStderr());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 删除某次部署的发布目录，部署在切换前失败时使用
+     */
+    public void discard(Session session,String datetime) throws Exception {
+        CommandResult result = LinuxConnetionHelper.exec(session,"rm -rf " + getPath() + datetime,LinuxConnetionHelper.TIME_OUT);
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("删除发布目录失败：" + result.getStderr());
+        }
+    }
+
+    private static long parse(SimpleDateFormat format,String datetime) {
+        try {
+            return format.parse(datetime).getTime();
+        } catch (ParseException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
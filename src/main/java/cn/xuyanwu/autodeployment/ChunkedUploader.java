@@ -0,0 +1,210 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分块并行上传
+ * 把大文件分成多个分块，通过同一个 session 上的多个 sftp 通道同时上传，
+ * 上传完成后在服务器上按顺序拼接，并用 md5 校验拼接后的文件
+ */
+public class ChunkedUploader {
+    private static final int DEFAULT_CHUNK_SIZE = 32;   //默认分块大小（MB）
+    private static final int DEFAULT_CHANNELS = 4;  //默认通道数
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 分块并行上传文件
+     *
+     * @param localFile  本地文件路径
+     * @param remoteFile 远程服务器文件地址
+     * @param chunkSize  分块大小（MB），为空时使用默认值
+     * @param channels   同时上传的通道数，为空时使用默认值
+     */
+    public static void upload(Session session,String localFile,String remoteFile,Integer chunkSize,Integer channels,Log log) throws Exception {
+        File file = new File(localFile);
+        long length = file.length();
+        long partSize = (chunkSize == null || chunkSize <= 0 ? DEFAULT_CHUNK_SIZE : chunkSize) * 1024L * 1024L;
+        int parts = (int) Math.max(1,(length + partSize - 1) / partSize);
+        int channelCount = Math.min(parts,channels == null || channels <= 0 ? DEFAULT_CHANNELS : channels);
+        if (parts == 1) {
+            LinuxConnetionHelper.uploadFile(session,localFile,remoteFile,log);
+            return;
+        }
+        String remotePath = remoteFile.substring(0,remoteFile.lastIndexOf("/"));
+        String tempFile = remoteFile + ".chunked";
+        log.println("远程服务器路径：" + remoteFile);
+        log.println("本地上传路径：" + localFile);
+        log.println("分块上传，共 " + parts + " 块，每块 " + partSize / 1024 / 1024 + " MB，通道数：" + channelCount);
+        exec(session,"mkdir -p " + remotePath);
+
+        long start = System.currentTimeMillis();
+        DeploymentExecutor executor = DeploymentExecutor.current();
+        AtomicInteger nextPart = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();     //正在上传分块的任务数
+        List<FutureTask<?>> tasks = new ArrayList<>();
+        boolean completed = false;
+        //所有分块共用一个进度监控
+        TransferProgress progress = new TransferProgress("上传",length,log).start();
+        try {
+            RemoteFileSystem fileSystem = RemoteFileSystem.of(session);
+            fileSystem.mkdirs(tempFile.substring(0,tempFile.lastIndexOf("/") + 1));
+            for (int i = 0; i < channelCount; i++) {
+                tasks.add(new FutureTask<>(() -> {
+                    running.incrementAndGet();
+                    try {
+                        return fileSystem.execute(channelSftp -> {
+                            try (FileChannel fileChannel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+                                int part;
+                                while ((part = nextPart.getAndIncrement()) < parts) {
+                                    long offset = part * partSize;
+                                    InputStream input = new RangeInputStream(fileChannel,offset,Math.min(partSize,length - offset));
+                                    channelSftp.put(input,tempFile + "." + part,progress,ChannelSftp.OVERWRITE);
+                                }
+                            }
+                            return null;
+                        });
+                    } finally {
+                        synchronized (running) {
+                            running.decrementAndGet();
+                            running.notifyAll();
+                        }
+                    }
+                }));
+            }
+            FutureTask<String> md5 = new FutureTask<>(() -> md5(file));
+            tasks.add(md5);
+            //第一个任务在当前线程执行，其余的交给部署步骤线程池；不在部署线程中调用时都在当前线程执行
+            if (executor != null) {
+                for (FutureTask<?> task : tasks.subList(1,tasks.size())) {
+                    executor.submitStep("分块上传 " + file.getName(),task);
+                }
+            }
+            //线程池排队时当前线程直接执行还没有开始的任务，只等待已经开始的任务，不会因为排队互相等待
+            for (FutureTask<?> task : tasks) {
+                task.run();
+                task.get();
+            }
+            progress.finish();
+
+            //拼接分块并校验
+            String result = exec(session,String.format("for i in $(seq 0 %d); do cat %s.$i || exit 1; done > %s && rm -f %s.* && md5sum %s",
+                    parts - 1,tempFile,tempFile,tempFile,tempFile));
+            String remoteMd5 = result.trim().split("\\s+")[0];
+            if (!remoteMd5.equalsIgnoreCase(md5.get())) {
+                throw new IOException("分块上传校验失败，本地 md5：" + md5.get() + "，服务器 md5：" + remoteMd5);
+            }
+            exec(session,String.format("mv -f %s %s",tempFile,remoteFile));
+            completed = true;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            progress.finish();
+            if (!completed) {
+                //失败或被中断时不再上传新的分块，等正在上传的分块结束后删除服务器上的分块
+                nextPart.set(parts);
+                tasks.forEach(task -> task.cancel(false));
+                discard(session,tempFile,running,log);
+            }
+        }
+        log.println(String.format("分块上传完成：拼接校验后总耗时 %d ms，md5 校验通过",System.currentTimeMillis() - start));
+    }
+
+    /**
+     * 删除服务器上的分块和拼接的临时文件，当前线程被中断时也会删除，删除失败只输出日志
+     *
+     * @param running 正在上传分块的任务数，等这些任务结束后再删除
+     */
+    private static void discard(Session session,String tempFile,AtomicInteger running,Log log) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            long deadline = System.currentTimeMillis() + LinuxConnetionHelper.TIME_OUT;
+            synchronized (running) {
+                while (running.get() > 0 && System.currentTimeMillis() < deadline) {
+                    running.wait(Math.max(deadline - System.currentTimeMillis(),1));
+                }
+            }
+            exec(session,String.format("rm -f %s.*",tempFile));
+        } catch (Exception e) {
+            log.println("删除服务器上的分块失败：" + e.getMessage());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 计算本地文件的 md5
+     */
+    private static String md5(File file) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE * 16);
+            while (fileChannel.read(buffer) != -1) {
+                buffer.flip();
+                md5.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md5.digest()) {
+            sb.append(String.format("%02x",b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 执行命令并返回标准输出，命令执行失败时抛出异常
+     */
+    private static String exec(Session session,String cmd) throws Exception {
+        CommandResult result = LinuxConnetionHelper.exec(session,cmd,LinuxConnetionHelper.TIME_OUT);
+        if (!result.isSuccess()) {
+            throw new IOException("命令执行失败：" + cmd + " " + result.getStderr().trim());
+        }
+        return result.getStdout();
+    }
+
+    /**
+     * 读取文件中指定范围数据的输入流
+     */
+    static class RangeInputStream extends InputStream {
+        private final FileChannel fileChannel;
+        private long position;
+        private final long end;
+
+        RangeInputStream(FileChannel fileChannel,long offset,long length) {
+            this.fileChannel = fileChannel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b,0,1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b,int off,int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = fileChannel.read(ByteBuffer.wrap(b,off,(int) Math.min(len,end - position)),position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package cn.xuyanwu.autodeployment;
+
+/**
+ * 命令执行结果
+ */
+public class CommandResult {
+    private final String cmd;
+    private final String stdout;
+    private final String stderr;
+    private final int exitCode;
+    private final long duration;
+
+    public CommandResult(String cmd,String stdout,String stderr,int exitCode,long duration) {
+        this.cmd = cmd;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.exitCode = exitCode;
+        this.duration = duration;
+    }
+
+    public String getCmd() {
+        return cmd;
+    }
+
+    public String getStdout() {
+        return stdout;
+    }
+
+    public String getStderr() {
+        return stderr;
+    }
+
+    /**
+     * 命令的退出码，没有获取到时为 -1
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * 命令执行耗时（毫秒）
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public boolean isSuccess() {
+        return exitCode == 0;
+    }
+
+    @Override
+    public String toString() {
+        return cmd + " [exit " + exitCode + ", " + duration + " ms]";
+    }
+}
@@ -0,0 +1,99 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 压缩上传
+ * 读取本地文件时边压缩边发送到 exec 通道，由服务器上的 gzip 直接解压到目标文件，两端都不产生临时压缩文件
+ */
+public class CompressedUploader {
+    private static final int DEFAULT_LEVEL = 6;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 压缩上传文件
+     *
+     * @param localFile  本地文件路径
+     * @param remoteFile 远程服务器文件地址
+     * @param level      压缩级别 1-9，为空时使用默认级别
+     */
+    public static void upload(Session session,String localFile,String remoteFile,Integer level,Log log) throws Exception {
+        int compressionLevel = level == null ? DEFAULT_LEVEL : Math.max(1,Math.min(9,level));
+        File file = new File(localFile);
+        String remotePath = remoteFile.substring(0,remoteFile.lastIndexOf("/"));
+        String tempFile = remoteFile + ".gz.tmp";
+        log.println("远程服务器路径：" + remoteFile);
+        log.println("本地上传路径：" + localFile);
+        log.println("压缩上传，压缩级别：" + compressionLevel);
+
+        ChannelExec channelExec = LinuxConnetionHelper.openChannelExec(session);
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        String cmd = String.format("mkdir -p %s && gzip -dc > %s && mv -f %s %s",remotePath,tempFile,tempFile,remoteFile);
+        channelExec.setCommand(cmd);
+        LinuxConnetionHelper.ExecCompletion completion = new LinuxConnetionHelper.ExecCompletion(channelExec,error);
+        TransferProgress progress = new TransferProgress("上传",file.length(),log).start();
+        long start = System.currentTimeMillis();
+        CountingOutputStream counter;
+        try (InputStream input = new FileInputStream(file)) {
+            counter = new CountingOutputStream(channelExec.getOutputStream());
+            channelExec.connect();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(counter,BUFFER_SIZE) {
+                {
+                    def.setLevel(compressionLevel);
+                }
+            }) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = input.read(buffer)) != -1) {
+                    gzip.write(buffer,0,len);
+                    progress.add(len);
+                }
+            }
+            if (completion.await(LinuxConnetionHelper.TIME_OUT,cmd) != 0) {
+                throw new IOException("压缩上传失败：" + new String(error.toByteArray(),StandardCharsets.UTF_8).trim());
+            }
+        } finally {
+            progress.finish();
+            LinuxConnetionHelper.closeChannelExec(channelExec);
+        }
+
+        long time = Math.max(System.currentTimeMillis() - start,1);
+        long length = file.length();
+        long compressed = counter.getCount();
+        log.println(String.format("压缩上传完成：原始 %d bytes，压缩后 %d bytes，压缩率 %.1f%%，耗时 %d ms，有效速度 %.2f MB/s，网络速度 %.2f MB/s",
+                length,compressed,length == 0 ? 0 : compressed * 100.0 / length,time,
+                length / 1024.0 / 1024.0 / (time / 1000.0),compressed / 1024.0 / 1024.0 / (time / 1000.0)));
+    }
+
+    /**
+     * 统计写出字节数的输出流
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len) throws IOException {
+            out.write(b,off,len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
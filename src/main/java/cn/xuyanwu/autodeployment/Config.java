@@ -1,5 +1,6 @@
 package cn.xuyanwu.autodeployment;
 
+import java.util.List;
 
 public class Config {
     /*名称*/
@@ -12,7 +13,7 @@ public class Config {
     private String user;
     /*登录密码*/
     private String password;
-    /*本地 war 包地址，相对 target 目录*/
+    /*本地 war 包地址，相对 target 目录；以 / 结尾时上传整个文件夹*/
     private String localFile;
     /*远程 war 包地址，相对根目录*/
     private String remoteFile;
@@ -22,6 +23,50 @@ public class Config {
     private String stopCMD;
     /* 查看日志命令 */
     private String logCMD;
+    /* 同时部署多台主机时的最大并发数，取第一个配置了的值 */
+    private Integer parallelism;
+    /* 上传方式：sftp（默认）、delta（增量上传）、compress（压缩上传）、chunked（分块并行上传） */
+    private String transferMode;
+    /* 压缩上传时的压缩级别 1-9，默认 6 */
+    private Integer compressionLevel;
+    /* 分块并行上传时每块的大小（MB），默认 32 */
+    private Integer chunkSize;
+    /* 分块并行上传时同时使用的 sftp 通道数，默认 4 */
+    private Integer uploadChannels;
+    /* 是否使用服务器上的文件缓存，相同内容的文件不再重复上传，默认关闭 */
+    private Boolean artifactCache;
+    /* 是否使用发布目录：上传到 remoteFile 所在目录的 releases/<时间>/ 中，停止后切换 current 链接再启动，默认关闭 */
+    private Boolean releaseMode;
+    /* 服务器上最多保留的备份数（发布目录模式下是发布目录数），和 keepBackupDays 都没有配置时为 10 */
+    private Integer keepBackups;
+    /* 服务器上的备份最多保留的天数 */
+    private Integer keepBackupDays;
+    /* 上传文件夹时只上传匹配的文件，例如 *.js、/static/**，为空时上传所有文件 */
+    private List<String> includes;
+    /* 上传文件夹时不上传匹配的文件和文件夹，例如 *.map、node_modules */
+    private List<String> excludes;
+    /* 启动日志只输出这个级别及以上的日志：TRACE、DEBUG、INFO、WARN、ERROR、FATAL，在服务器上过滤 */
+    private String logLevel;
+    /* 启动日志始终输出匹配的行（awk 正则表达式），没有配置 logLevel 时只输出匹配的行 */
+    private String logInclude;
+    /* 启动日志不输出匹配的行（awk 正则表达式） */
+    private String logExclude;
+    /* 启动日志每秒最多输出的行数，超过的部分丢弃 */
+    private Integer logRate;
+    /* 启动成功的日志（awk 正则表达式），匹配后停止输出日志，部署结束；查看日志命令应只输出新的日志，例如 tail -n0 -f */
+    private String startedPattern;
+    /* 启动失败的日志（awk 正则表达式），匹配后停止输出日志，部署失败 */
+    private String failedPattern;
+    /* 是否预热连接：选中部署脚本或保存项目中的文件时在后台登录主机，部署时直接使用已登录的 session，默认关闭 */
+    private Boolean warmUp;
+    /* 预热的 session 空闲多少秒后关闭，默认 120 */
+    private Integer warmUpTtl;
+    /* ssh 加密算法，按优先级用逗号分隔，例如 aes128-ctr,aes256-ctr，为空时使用 JSch 默认的顺序 */
+    private String ciphers;
+    /* ssh 消息校验算法，按优先级用逗号分隔，例如 hmac-sha1,hmac-sha2-256 */
+    private String macs;
+    /* ssh 传输层的压缩级别 1-9（zlib@openssh.com），0 或不配置时不压缩 */
+    private Integer sshCompression;
 
     public Config() {
     }
@@ -112,4 +157,180 @@ public class Config {
     public void setLogCMD(String logCMD) {
         this.logCMD = logCMD;
     }
+
+    public Integer getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(Integer parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public String getTransferMode() {
+        return transferMode;
+    }
+
+    public void setTransferMode(String transferMode) {
+        this.transferMode = transferMode;
+    }
+
+    public Integer getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(Integer compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public Integer getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(Integer chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public Integer getUploadChannels() {
+        return uploadChannels;
+    }
+
+    public void setUploadChannels(Integer uploadChannels) {
+        this.uploadChannels = uploadChannels;
+    }
+
+    public Boolean getArtifactCache() {
+        return artifactCache;
+    }
+
+    public void setArtifactCache(Boolean artifactCache) {
+        this.artifactCache = artifactCache;
+    }
+
+    public Boolean getReleaseMode() {
+        return releaseMode;
+    }
+
+    public void setReleaseMode(Boolean releaseMode) {
+        this.releaseMode = releaseMode;
+    }
+
+    public Integer getKeepBackups() {
+        return keepBackups;
+    }
+
+    public void setKeepBackups(Integer keepBackups) {
+        this.keepBackups = keepBackups;
+    }
+
+    public Integer getKeepBackupDays() {
+        return keepBackupDays;
+    }
+
+    public void setKeepBackupDays(Integer keepBackupDays) {
+        this.keepBackupDays = keepBackupDays;
+    }
+
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    public void setIncludes(List<String> includes) {
+        this.includes = includes;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    public void setExcludes(List<String> excludes) {
+        this.excludes = excludes;
+    }
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public void setLogLevel(String logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    public String getLogInclude() {
+        return logInclude;
+    }
+
+    public void setLogInclude(String logInclude) {
+        this.logInclude = logInclude;
+    }
+
+    public String getLogExclude() {
+        return logExclude;
+    }
+
+    public void setLogExclude(String logExclude) {
+        this.logExclude = logExclude;
+    }
+
+    public Integer getLogRate() {
+        return logRate;
+    }
+
+    public void setLogRate(Integer logRate) {
+        this.logRate = logRate;
+    }
+
+    public String getStartedPattern() {
+        return startedPattern;
+    }
+
+    public void setStartedPattern(String startedPattern) {
+        this.startedPattern = startedPattern;
+    }
+
+    public String getFailedPattern() {
+        return failedPattern;
+    }
+
+    public void setFailedPattern(String failedPattern) {
+        this.failedPattern = failedPattern;
+    }
+
+    public Boolean getWarmUp() {
+        return warmUp;
+    }
+
+    public void setWarmUp(Boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    public Integer getWarmUpTtl() {
+        return warmUpTtl;
+    }
+
+    public void setWarmUpTtl(Integer warmUpTtl) {
+        this.warmUpTtl = warmUpTtl;
+    }
+
+    public String getCiphers() {
+        return ciphers;
+    }
+
+    public void setCiphers(String ciphers) {
+        this.ciphers = ciphers;
+    }
+
+    public String getMacs() {
+        return macs;
+    }
+
+    public void setMacs(String macs) {
+        this.macs = macs;
+    }
+
+    public Integer getSshCompression() {
+        return sshCompression;
+    }
+
+    public void setSshCompression(Integer sshCompression) {
+        this.sshCompression = sshCompression;
+    }
 }
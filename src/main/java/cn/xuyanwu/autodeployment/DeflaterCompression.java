@@ -0,0 +1,82 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.Compression;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * ssh 传输层的 zlib 压缩
+ * JSch 自带的压缩实现依赖 jzlib，这里改用 JDK 的 Deflater 和 Inflater，不需要额外的依赖；
+ * 和 JSch 的实现一样，压缩后写回原来的数组（空间不够时换成更大的数组），每个包都刷新输出，对方收到后可以立即解压
+ */
+public class DeflaterCompression implements Compression {
+    private static final int BUFFER_SIZE = 4096;
+    private static final int BUFFER_MARGIN = 32 + 20;   //加密填充和消息校验码需要的空间
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] inflated = new byte[BUFFER_SIZE];
+
+    @Override
+    public void init(int type,int level) {
+        if (type == DEFLATER) {
+            deflater = new Deflater(level);
+        } else if (type == INFLATER) {
+            inflater = new Inflater();
+        }
+    }
+
+    /**
+     * 压缩 buf[start, len[0])，结果从 start 开始写回，len[0] 为结果的结束位置
+     */
+    @Override
+    public byte[] compress(byte[] buf,int start,int[] len) {
+        deflater.setInput(Arrays.copyOfRange(buf,start,len[0]));
+        byte[] output = buf;
+        int end = start;
+        int n;
+        do {
+            n = deflater.deflate(buffer,0,buffer.length,Deflater.SYNC_FLUSH);
+            if (output.length < end + n + BUFFER_MARGIN) {
+                output = Arrays.copyOf(output,(end + n + BUFFER_MARGIN) * 2);
+            }
+            System.arraycopy(buffer,0,output,end,n);
+            end += n;
+        } while (n == buffer.length);
+        len[0] = end;
+        return output;
+    }
+
+    /**
+     * 解压 buf 中从 start 开始的 len[0] 个字节，结果从 start 开始写回，len[0] 为结果的长度
+     *
+     * @return 数据损坏时返回 null
+     */
+    @Override
+    public byte[] uncompress(byte[] buf,int start,int[] len) {
+        inflater.setInput(buf,start,len[0]);
+        int end = 0;
+        try {
+            while (true) {
+                if (inflated.length - end < BUFFER_SIZE) {
+                    inflated = Arrays.copyOf(inflated,inflated.length * 2);
+                }
+                int n = inflater.inflate(inflated,end,inflated.length - end);
+                end += n;
+                if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        byte[] output = buf.length - start < end ? Arrays.copyOf(buf,start + end) : buf;
+        System.arraycopy(inflated,0,output,start,end);
+        len[0] = end;
+        return output;
+    }
+}
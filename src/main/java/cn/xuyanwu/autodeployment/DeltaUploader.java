@@ -0,0 +1,279 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.io.IoUtil;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * 增量上传（rsync 算法）
+ * 服务器计算旧版本文件每个数据块的 adler32 和 md5，本地用滚动校验和在新文件中查找相同的数据块，
+ * 只发送变化的数据，由服务器上的脚本用旧文件和收到的数据重建出新文件
+ */
+public class DeltaUploader {
+    private static final int MOD = 65521;   //adler32 的模
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int MAX_LITERAL_SIZE = 64 * 1024;  //单条新数据指令的最大长度
+    private static final String SIGNATURE_SCRIPT = loadScript("/delta/signature.py");
+    private static final String PATCH_SCRIPT = loadScript("/delta/patch.py");
+
+    /**
+     * 增量上传文件
+     *
+     * @param localFile     本地文件路径
+     * @param remoteFile    远程服务器文件地址
+     * @param previousFiles 服务器上可能存在的旧版本文件，支持通配符，按顺序取第一个存在的
+     * @return 是否完成上传，服务器上没有旧版本或无法执行脚本时返回 false，需要改用普通上传
+     */
+    public static boolean upload(Session session,String localFile,String remoteFile,List<String> previousFiles,Log log) throws Exception {
+        File file = new File(localFile);
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            log.println("文件超过 2GB，不支持增量上传");
+            return false;
+        }
+        String python = execForOutput(session,"command -v python3 || command -v python").trim();
+        if (python.isEmpty()) {
+            log.println("服务器上没有找到 python，不支持增量上传");
+            return false;
+        }
+        int blockSize = blockSize(length);
+        long start = System.currentTimeMillis();
+
+        //读取服务器上旧版本的分块校验和
+        StringBuilder cmd = new StringBuilder(python).append(" -c \"").append(SIGNATURE_SCRIPT).append("\" ").append(blockSize);
+        for (String previousFile : previousFiles) {
+            cmd.append(" '").append(previousFile).append("'");
+        }
+        String signatureText = execForOutput(session,cmd.toString());
+        if (signatureText.isEmpty()) {
+            log.println("服务器上没有找到旧版本文件，不支持增量上传");
+            return false;
+        }
+        String[] lines = signatureText.split("\n");
+        String basis = lines[0].trim();
+        Map<Integer, List<Integer>> weakIndex = new HashMap<>();
+        List<byte[]> strongs = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            String[] values = lines[i].trim().split(" ");
+            if (values.length != 2) continue;
+            weakIndex.computeIfAbsent((int) Long.parseLong(values[0],16),k -> new ArrayList<>()).add(strongs.size());
+            strongs.add(hexToBytes(values[1]));
+        }
+        log.println("增量上传，旧版本文件：" + basis + "，块大小：" + blockSize + " bytes，共 " + strongs.size() + " 块");
+
+        String remotePath = remoteFile.substring(0,remoteFile.lastIndexOf("/"));
+        String tempFile = remoteFile + ".delta";
+        ChannelExec channelExec = LinuxConnetionHelper.openChannelExec(session);
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        String patchCmd = String.format("mkdir -p %s && %s -c \"%s\" %s %s %d && mv -f %s %s",
+                remotePath,python,PATCH_SCRIPT,basis,tempFile,blockSize,tempFile,remoteFile);
+        channelExec.setCommand(patchCmd);
+        LinuxConnetionHelper.ExecCompletion completion = new LinuxConnetionHelper.ExecCompletion(channelExec,error);
+        DeltaWriter writer;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY,0,length);
+            OutputStream out = channelExec.getOutputStream();
+            channelExec.connect();
+            writer = new DeltaWriter(new DataOutputStream(new BufferedOutputStream(out,MAX_LITERAL_SIZE + 5)));
+            writeDelta(buffer,(int) length,blockSize,weakIndex,strongs,writer);
+            writer.out.close();
+            int status = completion.await(LinuxConnetionHelper.TIME_OUT,patchCmd);
+            if (status != 0) {
+                throw new IOException("增量上传失败：" + new String(error.toByteArray(),StandardCharsets.UTF_8).trim());
+            }
+        } finally {
+            LinuxConnetionHelper.closeChannelExec(channelExec);
+        }
+
+        long sent = writer.out.size();
+        long received = signatureText.getBytes(StandardCharsets.UTF_8).length;
+        long time = Math.max(System.currentTimeMillis() - start,1);
+        log.println(String.format("增量上传完成：复用 %d 块，发送新数据 %d bytes，网络传输 %d bytes（整个文件 %d bytes，节省 %.1f%%），耗时 %d ms",
+                writer.getCopied(),writer.getLiteral(),sent + received,length,length == 0 ? 0 : 100.0 - (sent + received) * 100.0 / length,time));
+        return true;
+    }
+
+    /**
+     * 根据文件大小选择块大小，约为文件大小的平方根
+     */
+    static int blockSize(long length) {
+        int size = Integer.highestOneBit((int) Math.max(Math.sqrt(length),1));
+        return Math.max(MIN_BLOCK_SIZE,Math.min(MAX_BLOCK_SIZE,size));
+    }
+
+    /**
+     * 用滚动校验和在新文件中查找服务器上已有的数据块，生成增量指令
+     */
+    static void writeDelta(ByteBuffer buffer,int length,int blockSize,Map<Integer, List<Integer>> weakIndex,List<byte[]> strongs,DeltaWriter writer) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        int pos = 0;
+        int literalStart = 0;
+        int a = 0;
+        int b = 0;
+        if (length >= blockSize) {
+            int[] sum = adler32(buffer,0,blockSize);
+            a = sum[0];
+            b = sum[1];
+        }
+        while (pos + blockSize <= length) {
+            int match = -1;
+            List<Integer> candidates = weakIndex.get((b << 16) | a);
+            if (candidates != null) {
+                byte[] strong = md5(md5,buffer,pos,blockSize);
+                for (Integer index : candidates) {
+                    if (Arrays.equals(strong,strongs.get(index))) {
+                        match = index;
+                        break;
+                    }
+                }
+            }
+            if (match >= 0) {
+                writer.literal(buffer,literalStart,pos);
+                writer.copy(match);
+                pos += blockSize;
+                literalStart = pos;
+                if (pos + blockSize <= length) {
+                    int[] sum = adler32(buffer,pos,blockSize);
+                    a = sum[0];
+                    b = sum[1];
+                }
+            } else {
+                if (pos + blockSize < length) {
+                    //滚动计算下一个窗口的校验和
+                    int out = buffer.get(pos) & 0xff;
+                    int in = buffer.get(pos + blockSize) & 0xff;
+                    a = Math.floorMod(a - out + in,MOD);
+                    b = (int) Math.floorMod(b - (long) blockSize * out + a - 1,(long) MOD);
+                }
+                pos++;
+                if (pos - literalStart >= MAX_LITERAL_SIZE) {
+                    writer.literal(buffer,literalStart,pos);
+                    literalStart = pos;
+                }
+            }
+        }
+        writer.literal(buffer,literalStart,length);
+        writer.end(md5(md5,buffer,0,length));
+    }
+
+    /**
+     * 计算 adler32，返回 a 和 b 两部分
+     */
+    static int[] adler32(ByteBuffer buffer,int offset,int length) {
+        int a = 1;
+        int b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            a = (a + (buffer.get(i) & 0xff)) % MOD;
+            b = (b + a) % MOD;
+        }
+        return new int[]{a,b};
+    }
+
+    private static byte[] md5(MessageDigest md5,ByteBuffer buffer,int offset,int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        md5.update(slice);
+        return md5.digest();
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2,i * 2 + 2),16);
+        }
+        return bytes;
+    }
+
+    /**
+     * 执行命令并返回标准输出
+     */
+    private static String execForOutput(Session session,String cmd) throws Exception {
+        return LinuxConnetionHelper.exec(session,cmd,LinuxConnetionHelper.TIME_OUT).getStdout();
+    }
+
+    /**
+     * 读取服务器上执行的 python 脚本，转为可以放在命令行中的形式
+     */
+    private static String loadScript(String name) {
+        try (InputStream in = DeltaUploader.class.getResourceAsStream(name)) {
+            String script = IoUtil.read(in,StandardCharsets.UTF_8);
+            return "import base64;exec(base64.b64decode('" + Base64.encode(script) + "'))";
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 输出增量指令，连续的复制指令会合并为一条
+     */
+    static class DeltaWriter {
+        private final DataOutputStream out;
+        private int copyIndex = -1;
+        private int copyCount;
+        private long copied;
+        private long literal;
+
+        DeltaWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void copy(int index) throws IOException {
+            copied++;
+            if (copyCount > 0 && index == copyIndex + copyCount) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyIndex = index;
+            copyCount = 1;
+        }
+
+        void literal(ByteBuffer buffer,int start,int end) throws IOException {
+            if (end <= start) return;
+            flushCopy();
+            byte[] bytes = new byte[end - start];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(start);
+            slice.get(bytes);
+            out.writeByte('L');
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            literal += bytes.length;
+        }
+
+        void end(byte[] md5) throws IOException {
+            flushCopy();
+            out.writeByte('E');
+            out.write(md5);
+            out.flush();
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount > 0) {
+                out.writeByte('C');
+                out.writeInt(copyIndex);
+                out.writeInt(copyCount);
+                copyCount = 0;
+            }
+        }
+
+        long getCopied() {
+            return copied;
+        }
+
+        long getLiteral() {
+            return literal;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package cn.xuyanwu.autodeployment;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 项目级的部署线程池
+ * 部署任务、部署步骤和读取主机日志的任务都在这里执行，线程有名称、数量有上限，空闲后自动回收，
+ * 项目关闭时中断所有任务，并统计正在运行的部署和日志读取线程数，方便确认没有泄漏
+ * 传输进度只通知本项目的监听器，在这里执行的任务中创建的传输属于本项目
+ */
+public class DeploymentExecutor implements Disposable {
+    private static final int MAX_DEPLOY_THREADS = 32;  //同时执行的部署任务上限
+    private static final int MAX_READER_THREADS = 64;  //同时读取主机日志的线程上限
+    private static final int MAX_STEP_THREADS = 64;    //同时执行的部署步骤上限，超过时排队
+    private static final long KEEP_ALIVE = 60;  //空闲线程60秒后回收
+    private static final ThreadLocal<DeploymentExecutor> current = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor deployPool;
+    private final ThreadPoolExecutor readerPool;
+    private final ThreadPoolExecutor stepPool;
+    private final Set<HostDeployment> hosts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger deployments = new AtomicInteger();
+    private final AtomicInteger readers = new AtomicInteger();
+    private final AtomicInteger steps = new AtomicInteger();
+    private final List<TransferProgress.Listener> progressListeners = new CopyOnWriteArrayList<>();
+
+    public DeploymentExecutor(Project project) {
+        deployPool = createPool("AutoDeployment-deploy-",MAX_DEPLOY_THREADS);
+        readerPool = createPool("AutoDeployment-reader-",MAX_READER_THREADS);
+        stepPool = new ThreadPoolExecutor(MAX_STEP_THREADS,MAX_STEP_THREADS,KEEP_ALIVE,TimeUnit.SECONDS,new LinkedBlockingQueue<>(),threadFactory("AutoDeployment-step-"));
+        stepPool.allowCoreThreadTimeOut(true);
+    }
+
+    public static DeploymentExecutor getInstance(Project project) {
+        return project.getService(DeploymentExecutor.class);
+    }
+
+    /**
+     * 优先复用空闲线程，没有空闲线程时新建，线程数达到上限后拒绝新任务
+     */
+    private static ThreadPoolExecutor createPool(String prefix,int size) {
+        return new ThreadPoolExecutor(0,size,KEEP_ALIVE,TimeUnit.SECONDS,new SynchronousQueue<>(),threadFactory(prefix),(r,pool) -> {
+            throw new RejectedExecutionException("线程数已达到上限：" + size);
+        });
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r,prefix + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * 执行部署任务，取消返回的 Future 时会中断任务
+     *
+     * @param name 任务名称，执行期间附加到线程名称上
+     */
+    public Future<?> submit(String name,Runnable task) {
+        return deployPool.submit(named(name,deployments,task));
+    }
+
+    /**
+     * 执行部署步骤，步骤使用单独的线程池，不占用部署任务的线程；线程都在使用时排队等待，不会拒绝
+     * 步骤中不能等待其它步骤，否则排队时可能互相等待
+     *
+     * @param name 任务名称，执行期间附加到线程名称上
+     */
+    public Future<?> submitStep(String name,Runnable task) {
+        return stepPool.submit(named(name,steps,task));
+    }
+
+    /**
+     * 同时部署多台主机时的最大并发数：每台主机占用一个部署线程，还要留一个线程给整个部署任务
+     */
+    public int getMaxParallelism() {
+        return MAX_DEPLOY_THREADS - 1;
+    }
+
+    /**
+     * 执行读取主机日志的任务
+     *
+     * @param name 任务名称，执行期间附加到线程名称上
+     */
+    public Future<?> submitReader(String name,Runnable task) {
+        return readerPool.submit(named(name,readers,task));
+    }
+
+    private Runnable named(String name,AtomicInteger counter,Runnable task) {
+        return () -> {
+            Thread thread = Thread.currentThread();
+            String threadName = thread.getName();
+            thread.setName(threadName + " " + name);
+            counter.incrementAndGet();
+            current.set(this);
+            try {
+                task.run();
+            } finally {
+                current.remove();
+                counter.decrementAndGet();
+                thread.setName(threadName);
+            }
+        };
+    }
+
+    /**
+     * 当前线程正在执行的任务所属的线程池
+     *
+     * @return 不是在部署线程中时返回 null
+     */
+    static DeploymentExecutor current() {
+        return current.get();
+    }
+
+    /**
+     * 添加传输进度监听器，本项目的所有传输都会通知，不再使用时需要移除
+     */
+    public void addProgressListener(TransferProgress.Listener listener) {
+        progressListeners.add(listener);
+    }
+
+    public void removeProgressListener(TransferProgress.Listener listener) {
+        progressListeners.remove(listener);
+    }
+
+    List<TransferProgress.Listener> getProgressListeners() {
+        return progressListeners;
+    }
+
+    void register(HostDeployment host) {
+        hosts.add(host);
+    }
+
+    void unregister(HostDeployment host) {
+        hosts.remove(host);
+    }
+
+    /**
+     * 正在执行的部署任务数
+     */
+    public int getLiveDeployments() {
+        return deployments.get();
+    }
+
+    /**
+     * 正在读取主机日志的线程数
+     */
+    public int getLiveReaders() {
+        return readers.get();
+    }
+
+    /**
+     * 正在执行的部署步骤数
+     */
+    public int getLiveSteps() {
+        return steps.get();
+    }
+
+    /**
+     * 线程池中的线程总数
+     */
+    public int getThreadCount() {
+        return deployPool.getPoolSize() + readerPool.getPoolSize() + stepPool.getPoolSize();
+    }
+
+    /**
+     * 未关闭的主机部署按状态统计的数量
+     */
+    public Map<DeploymentState, Integer> getHostStates() {
+        Map<DeploymentState, Integer> states = new EnumMap<>(DeploymentState.class);
+        for (HostDeployment host : hosts) {
+            states.merge(host.getState(),1,Integer::sum);
+        }
+        return states;
+    }
+
+    /**
+     * 线程池统计信息
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("部署任务 %d 个，部署步骤 %d 个，日志读取 %d 个，线程 %d 个，未关闭的主机 %d 台",
+                getLiveDeployments(),getLiveSteps(),getLiveReaders(),getThreadCount(),hosts.size()));
+        Map<DeploymentState, Integer> states = getHostStates();
+        if (!states.isEmpty()) {
+            sb.append("（");
+            states.forEach((state,count) -> sb.append(state.getLabel()).append(" ").append(count).append("，"));
+            sb.setLength(sb.length() - 1);
+            sb.append("）");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 项目关闭时关闭所有主机并中断所有任务
+     */
+    @Override
+    public void dispose() {
+        hosts.forEach(HostDeployment::close);
+        deployPool.shutdownNow();
+        readerPool.shutdownNow();
+        stepPool.shutdownNow();
+        progressListeners.clear();
+    }
+}
@@ -0,0 +1,195 @@
+package cn.xuyanwu.autodeployment;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * 按依赖关系执行部署步骤，依赖的步骤都完成后立即开始，没有依赖关系的步骤同时执行
+ * 例如上传文件时同时创建远程目录和备份，连接服务器时同时检查本地文件
+ * 执行结束后根据每个步骤的开始和结束时间计算关键路径
+ */
+public class DeploymentGraph {
+    private final String name;
+    private final DeploymentExecutor executor;
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final List<Future<?>> tasks = new CopyOnWriteArrayList<>();
+    private volatile LongSupplier counter = () -> -1;
+    private volatile long start;
+    private volatile long end;
+
+    /**
+     * @param name 部署名称，附加到执行步骤的线程名称上
+     */
+    public DeploymentGraph(String name,DeploymentExecutor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    /**
+     * 添加一个步骤，依赖的步骤需要先添加
+     *
+     * @param step         步骤名称
+     * @param dependencies 依赖的步骤名称
+     */
+    public DeploymentGraph add(String step,HostDeployment.Step body,String... dependencies) {
+        if (nodes.containsKey(step)) {
+            throw new IllegalArgumentException("步骤重复：" + step);
+        }
+        List<Node> list = new ArrayList<>();
+        for (String dependency : dependencies) {
+            Node node = nodes.get(dependency);
+            if (node == null) {
+                throw new IllegalArgumentException("步骤 " + step + " 依赖的步骤不存在：" + dependency);
+            }
+            list.add(node);
+        }
+        nodes.put(step,new Node(step,body,list));
+        return this;
+    }
+
+    public boolean contains(String step) {
+        return nodes.containsKey(step);
+    }
+
+    /**
+     * 每个步骤开始和结束时读取计数器，记录步骤执行期间的增量，例如 session 的网络流量
+     *
+     * @param counter 暂时无法读取时返回 -1
+     */
+    public DeploymentGraph measure(LongSupplier counter) {
+        this.counter = counter;
+        return this;
+    }
+
+    /**
+     * 执行所有步骤并等待全部结束，步骤在部署线程池的步骤线程中执行，调用线程只等待
+     * 有步骤失败时依赖它的步骤不再执行，其它步骤继续执行，结束后抛出第一个失败步骤的异常
+     */
+    public void run() throws Exception {
+        start = System.currentTimeMillis();
+        try {
+            for (Node node : nodes.values()) {
+                CompletableFuture<?>[] dependencies = node.dependencies.stream().map(d -> d.future).toArray(CompletableFuture[]::new);
+                node.future = CompletableFuture.allOf(dependencies).thenRunAsync(() -> node.run(counter),r -> tasks.add(executor.submitStep(name + " " + node.name,r)));
+            }
+            CompletableFuture.allOf(nodes.values().stream().map(n -> n.future).toArray(CompletableFuture[]::new)).get();
+        } catch (InterruptedException | RuntimeException e) {
+            //提交失败（例如项目已关闭）时已经开始的步骤也要中断，不能没有人等待
+            cancel();
+            throw e;
+        } catch (ExecutionException e) {
+            for (Node node : nodes.values()) {
+                if (node.error != null) {
+                    throw node.error;
+                }
+            }
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+        } finally {
+            end = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 中断正在执行的步骤，还没有开始的步骤不再执行
+     */
+    public void cancel() {
+        nodes.values().forEach(node -> {
+            if (node.future != null) node.future.cancel(false);
+        });
+        tasks.forEach(task -> task.cancel(true));
+    }
+
+    /**
+     * 已执行的步骤的耗时（毫秒），按添加的顺序
+     */
+    public Map<String, Long> getDurations() {
+        Map<String, Long> durations = new LinkedHashMap<>();
+        for (Node node : nodes.values()) {
+            if (node.end > 0) {
+                durations.put(node.name,node.getDuration());
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * 已执行的步骤的耗时和计数器增量，按开始时间排序
+     *
+     * @param origin 开始时间的起点
+     */
+    public List<DeploymentReport.Phase> getPhases(long origin) {
+        return nodes.values().stream()
+                .filter(node -> node.end > 0)
+                .sorted(Comparator.comparingLong(node -> node.begin))
+                .map(node -> new DeploymentReport.Phase(node.name,node.begin - origin,node.getDuration(),node.bytes))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 关键路径：从最后结束的步骤开始，每次找它最后结束的依赖步骤
+     */
+    public List<String> getCriticalPath() {
+        Node last = nodes.values().stream().filter(n -> n.end > 0).max(Comparator.comparingLong(n -> n.end)).orElse(null);
+        LinkedList<String> path = new LinkedList<>();
+        while (last != null) {
+            path.addFirst(last.name);
+            last = last.dependencies.stream().filter(n -> n.end > 0).max(Comparator.comparingLong(n -> n.end)).orElse(null);
+        }
+        return path;
+    }
+
+    /**
+     * 关键路径上所有步骤的耗时之和（毫秒）
+     */
+    public long getCriticalPathTime() {
+        return getCriticalPath().stream().mapToLong(step -> nodes.get(step).getDuration()).sum();
+    }
+
+    /**
+     * 输出关键路径、实际耗时以及所有步骤依次执行时的耗时
+     */
+    public String summary() {
+        String path = getCriticalPath().stream().map(step -> step + " " + nodes.get(step).getDuration() + "ms").collect(Collectors.joining(" → "));
+        long serial = getDurations().values().stream().mapToLong(Long::longValue).sum();
+        return String.format("关键路径 %dms：%s（实际耗时 %dms，依次执行需要 %dms）",getCriticalPathTime(),path,end - start,serial);
+    }
+
+    private static class Node {
+        private final String name;
+        private final HostDeployment.Step body;
+        private final List<Node> dependencies;
+        private volatile CompletableFuture<Void> future;
+        private volatile Exception error;
+        private volatile long begin;
+        private volatile long end;
+        private volatile long bytes;
+
+        private Node(String name,HostDeployment.Step body,List<Node> dependencies) {
+            this.name = name;
+            this.body = body;
+            this.dependencies = dependencies;
+        }
+
+        private void run(LongSupplier counter) {
+            begin = System.currentTimeMillis();
+            long before = counter.getAsLong();
+            try {
+                body.run();
+            } catch (Exception e) {
+                error = e;
+                throw new CompletionException(e);
+            } finally {
+                long after = counter.getAsLong();
+                bytes = before >= 0 && after >= before ? after - before : 0;
+                end = System.currentTimeMillis();
+            }
+        }
+
+        private long getDuration() {
+            return end - begin;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package cn.xuyanwu.autodeployment;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.project.Project;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 项目级的部署日志存储，保存在 IDE 的系统目录中
+ * 第一次使用时打开，项目关闭时关闭，不会一直占用索引文件和内存映射
+ */
+public class DeploymentLogService implements Disposable {
+    private final Project project;
+    private DeploymentLogStore store;
+    private boolean disposed;
+
+    public DeploymentLogService(Project project) {
+        this.project = project;
+    }
+
+    public static DeploymentLogService getInstance(Project project) {
+        return project.getService(DeploymentLogService.class);
+    }
+
+    /**
+     * 打开本项目的日志存储
+     */
+    public synchronized DeploymentLogStore getStore() throws IOException {
+        if (disposed) {
+            throw new IOException("项目已关闭");
+        }
+        if (store == null) {
+            store = DeploymentLogStore.of(new File(PathManager.getSystemPath(),"autoDeployment/logs/" + project.getLocationHash()));
+        }
+        return store;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        disposed = true;
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+}
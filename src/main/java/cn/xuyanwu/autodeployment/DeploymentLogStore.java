@@ -0,0 +1,603 @@
+package cn.xuyanwu.autodeployment;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 本地的部署日志存储
+ * 每次部署的输出按记录追加到固定大小的分段文件中，分段文件通过内存映射读写，写满后切换到下一个分段，
+ * 超过最大分段数时删除最早的分段；另外用一个很小的索引文件记录每次部署的开始位置、主机编号和时间检查点，
+ * 打开或搜索历史日志时按索引定位后逐条读取记录，不会把整个日志读入内存，一直输出日志时堆内存也不会增长
+ * 项目关闭时由 DeploymentLogService 调用 close 释放索引文件和内存映射
+ */
+public class DeploymentLogStore {
+    private static final Logger LOG = Logger.getInstance(DeploymentLogStore.class);
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;   //每个分段 16MB
+    private static final int MAX_SEGMENTS = 16;     //最多保留 256MB 日志
+    private static final int HEADER_SIZE = 18;      //记录头：长度（int）、部署编号（int）、时间（long）、主机编号（short）
+    private static final int MAX_RECORD_SIZE = 64 * 1024;   //超过的日志拆分为多条记录
+    private static final int CHECKPOINT_SIZE = 64 * 1024;   //每写入 64KB 记录一个时间检查点
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX = "index";
+    private static final Map<File, DeploymentLogStore> instances = new HashMap<>();
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, File> segments = new TreeMap<>();   //分段的起始位置 -> 分段文件
+    private final Map<Long, MappedByteBuffer> readBuffers = new HashMap<>();    //写满的分段的只读映射
+    private final Map<Integer, Run> runs = new LinkedHashMap<>();
+    private MappedByteBuffer active;
+    private long activeBase;
+    private Writer index;
+    private int nextRunId = 1;
+    private boolean broken;     //写入失败后不再记录，不影响部署
+    private boolean closed;
+
+    private DeploymentLogStore(File directory,int segmentSize,int maxSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * 打开目录中的日志存储，同一个目录只打开一次
+     */
+    public static DeploymentLogStore of(File directory) throws IOException {
+        File key = directory.getAbsoluteFile();
+        synchronized (instances) {
+            DeploymentLogStore store = instances.get(key);
+            if (store == null) {
+                store = open(key,SEGMENT_SIZE,MAX_SEGMENTS);
+                instances.put(key,store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * 使用指定的分段大小打开，不和其他调用共用，测试中用较小的分段验证切换和删除
+     * 同一个目录需要一直使用相同的分段大小，分段文件名是按分段大小计算的起始位置
+     */
+    static DeploymentLogStore open(File directory,int segmentSize,int maxSegments) throws IOException {
+        DeploymentLogStore store = new DeploymentLogStore(directory.getAbsoluteFile(),segmentSize,maxSegments);
+        store.load();
+        return store;
+    }
+
+    private synchronized void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建日志目录：" + directory);
+        }
+        File[] files = directory.listFiles((dir,name) -> name.matches("\\d{20}" + SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                segments.put(Long.parseLong(file.getName().substring(0,20)),file);
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L,segmentFile(0));
+        }
+        activeBase = segments.lastKey();
+        active = map(segments.lastEntry().getValue(),FileChannel.MapMode.READ_WRITE);
+        //映射的文件初始全为 0，长度为 0 的记录表示已写入部分的结尾
+        int position = 0;
+        while (position + HEADER_SIZE <= active.capacity()) {
+            int length = active.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > active.capacity()) break;
+            position += HEADER_SIZE + length;
+        }
+        active.position(position);
+
+        File indexFile = new File(directory,INDEX);
+        if (indexFile.isFile()) {
+            for (String line : Files.readAllLines(indexFile.toPath(),StandardCharsets.UTF_8)) {
+                readIndex(line);
+            }
+        }
+        for (Run run : runs.values()) {
+            nextRunId = Math.max(nextRunId,run.id + 1);
+        }
+        rewriteIndex();
+    }
+
+    private void readIndex(String line) {
+        String[] values = line.split("\t",5);
+        try {
+            int id = Integer.parseInt(values[1]);
+            if ("R".equals(values[0])) {
+                runs.put(id,new Run(id,values[4],Long.parseLong(values[2]),Long.parseLong(values[3])));
+                return;
+            }
+            Run run = runs.get(id);
+            if (run == null) return;
+            switch (values[0]) {
+                case "H":
+                    run.hosts.add(values[4]);
+                    break;
+                case "T":
+                    run.checkpoints.add(new long[]{Long.parseLong(values[2]),Long.parseLong(values[3])});
+                    break;
+                case "E":
+                    run.end = Long.parseLong(values[2]);
+                    run.endOffset = Long.parseLong(values[3]);
+                    break;
+                default:
+            }
+        } catch (RuntimeException e) {
+            //忽略写入时中断的不完整索引行
+        }
+    }
+
+    /**
+     * 开始记录一次部署的日志，同时输出到 log
+     *
+     * @param name 部署脚本名称
+     */
+    public synchronized RunLog open(String name,Log log) {
+        if (closed) {
+            throw new IllegalStateException("日志存储已关闭：" + directory);
+        }
+        Run run = new Run(nextRunId++,name.replaceAll("[\t\r\n]"," "),System.currentTimeMillis(),position());
+        runs.put(run.id,run);
+        appendIndex("R",run.id,run.start,run.startOffset,run.name);
+        run.writing = true;
+        return new RunLog(run,0,log);
+    }
+
+    /**
+     * 所有部署记录，最近的在前
+     */
+    public synchronized List<Run> getRuns() {
+        List<Run> list = new ArrayList<>(runs.values());
+        Collections.reverse(list);
+        return list;
+    }
+
+    /**
+     * 输出一次部署的日志，每次最多输出 64KB
+     *
+     * @param host 只输出这台主机的日志，为空时输出所有日志
+     * @param from 从这个时间开始输出，按时间检查点定位，不需要从头读取
+     */
+    public void read(Run run,String host,long from,Log out) {
+        int hostId = host == null ? -1 : run.hosts.indexOf(host) + 1;
+        if (hostId == 0) {
+            return;
+        }
+        long offset = run.startOffset;
+        synchronized (this) {
+            for (long[] checkpoint : run.checkpoints) {
+                if (checkpoint[0] > from) break;
+                offset = checkpoint[1];
+            }
+        }
+        byte[] batch = new byte[MAX_RECORD_SIZE];
+        int[] size = {0};
+        scan(offset,run.endOffset,(runId,time,recordHost,buffer,position,length) -> {
+            if (runId != run.id || time < from || (hostId > 0 && recordHost != hostId)) {
+                return true;
+            }
+            if (size[0] + length > batch.length) {
+                out.write(batch,0,size[0]);
+                size[0] = 0;
+            }
+            buffer.position(position);
+            buffer.get(batch,size[0],length);
+            size[0] += length;
+            return true;
+        });
+        if (size[0] > 0) {
+            out.write(batch,0,size[0]);
+        }
+    }
+
+    /**
+     * 在所有部署日志中搜索关键字，直接比较字节，只解码匹配的行
+     *
+     * @param host  只搜索这台主机的日志，为空时搜索所有日志
+     * @param limit 最多返回的结果数
+     */
+    public List<Match> search(String keyword,String host,int limit) {
+        byte[] pattern = keyword.getBytes(StandardCharsets.UTF_8);
+        List<Match> matches = new ArrayList<>();
+        Map<Integer, Run> snapshot;
+        synchronized (this) {
+            snapshot = new HashMap<>(runs);
+        }
+        if (pattern.length == 0) {
+            return matches;
+        }
+        scan(0,-1,(runId,time,hostId,buffer,position,length) -> {
+            Run run = snapshot.get(runId);
+            if (run == null || (host != null && (hostId == 0 || !host.equals(run.getHost(hostId))))) {
+                return true;
+            }
+            int end = position + length;
+            int from = position;
+            int index;
+            while ((index = indexOf(buffer,from,end,pattern)) >= 0) {
+                int lineStart = index;
+                while (lineStart > position && buffer.get(lineStart - 1) != '\n') lineStart--;
+                int lineEnd = index + pattern.length;
+                while (lineEnd < end && buffer.get(lineEnd) != '\n') lineEnd++;
+                byte[] line = new byte[lineEnd - lineStart];
+                buffer.position(lineStart);
+                buffer.get(line);
+                matches.add(new Match(run,time,hostId == 0 ? null : run.getHost(hostId),new String(line,StandardCharsets.UTF_8).trim()));
+                if (matches.size() >= limit) return false;
+                from = lineEnd;
+            }
+            return true;
+        });
+        return matches;
+    }
+
+    private static int indexOf(ByteBuffer buffer,int from,int end,byte[] pattern) {
+        outer:
+        for (int i = from; i <= end - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 从 from 开始逐条读取记录，到 to 或已写入部分的结尾为止
+     * 只在确定读取范围时加锁，读取时使用各自的缓冲区副本，不影响正在写入的部署
+     */
+    private void scan(long from,long to,RecordVisitor visitor) {
+        List<Map.Entry<Long, ByteBuffer>> buffers = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            Long first = segments.floorKey(from);
+            for (Long base : segments.tailMap(first == null ? segments.firstKey() : first,true).keySet()) {
+                if (to >= 0 && base >= to) break;
+                ByteBuffer buffer;
+                try {
+                    if (base == activeBase) {
+                        buffer = active.duplicate();
+                        buffer.flip();
+                    } else {
+                        buffer = readBuffer(base);
+                    }
+                } catch (IOException e) {
+                    continue;
+                }
+                buffers.add(new AbstractMap.SimpleEntry<>(base,buffer));
+            }
+        }
+        for (Map.Entry<Long, ByteBuffer> entry : buffers) {
+            long base = entry.getKey();
+            ByteBuffer buffer = entry.getValue();
+            int position = (int) Math.max(from - base,0);
+            int limit = to >= 0 ? (int) Math.min(buffer.limit(),to - base) : buffer.limit();
+            while (position + HEADER_SIZE <= limit) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER_SIZE + length > limit) break;
+                if (!visitor.visit(buffer.getInt(position + 4),buffer.getLong(position + 8),buffer.getShort(position + 16),
+                        buffer,position + HEADER_SIZE,length)) {
+                    return;
+                }
+                position += HEADER_SIZE + length;
+            }
+        }
+    }
+
+    private ByteBuffer readBuffer(long base) throws IOException {
+        MappedByteBuffer buffer = readBuffers.get(base);
+        if (buffer == null) {
+            buffer = map(segments.get(base),FileChannel.MapMode.READ_ONLY);
+            readBuffers.put(base,buffer);
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * 追加一条日志，超过记录的最大长度时在 UTF-8 字符边界拆分为多条记录
+     */
+    private synchronized void append(Run run,int hostId,byte[] b,int off,int len) {
+        if (broken) {
+            return;
+        }
+        try {
+            long time = System.currentTimeMillis();
+            int end = off + len;
+            while (off < end) {
+                int length = Math.min(end - off,MAX_RECORD_SIZE);
+                if (off + length < end) {
+                    while (length > 1 && (b[off + length] & 0xC0) == 0x80) length--;
+                }
+                if (active.remaining() < HEADER_SIZE + length) {
+                    roll();
+                }
+                active.putInt(length).putInt(run.id).putLong(time).putShort((short) hostId).put(b,off,length);
+                off += length;
+            }
+            if (position() - run.lastCheckpoint >= CHECKPOINT_SIZE) {
+                long[] checkpoint = {time,position()};
+                run.lastCheckpoint = checkpoint[1];
+                run.checkpoints.add(checkpoint);
+                appendIndex("T",run.id,checkpoint[0],checkpoint[1],null);
+            }
+        } catch (IOException e) {
+            broken = true;
+            LOG.warn("写入部署日志失败，不再记录本项目的部署日志：" + directory,e);
+        }
+    }
+
+    /**
+     * 切换到下一个分段，删除超出数量的最早的分段和其中的部署记录
+     */
+    private void roll() throws IOException {
+        active.force();
+        readBuffers.put(activeBase,active);
+        activeBase += segmentSize;
+        File file = segmentFile(activeBase);
+        segments.put(activeBase,file);
+        active = map(file,FileChannel.MapMode.READ_WRITE);
+        boolean pruned = false;
+        while (segments.size() > maxSegments) {
+            Map.Entry<Long, File> first = segments.pollFirstEntry();
+            readBuffers.remove(first.getKey());
+            if (!first.getValue().delete()) {
+                first.getValue().deleteOnExit();   //Windows 上仍被映射的文件无法删除
+            }
+            pruned = true;
+        }
+        if (pruned) {
+            rewriteIndex();
+        }
+    }
+
+    private synchronized void finish(Run run) {
+        run.writing = false;
+        if (run.endOffset < 0 && !closed) {
+            run.end = System.currentTimeMillis();
+            run.endOffset = position();
+            appendIndex("E",run.id,run.end,run.endOffset,null);
+            active.force();
+        }
+    }
+
+    private synchronized int hostId(Run run,String host) {
+        int index = run.hosts.indexOf(host);
+        if (index < 0) {
+            run.hosts.add(host);
+            index = run.hosts.size() - 1;
+            appendIndex("H",run.id,index + 1,0,host.replaceAll("[\t\r\n]"," "));
+        }
+        return index + 1;
+    }
+
+    private long position() {
+        return activeBase + active.position();
+    }
+
+    /**
+     * 去掉已删除分段中的部署记录和检查点后重新写入索引
+     */
+    private void rewriteIndex() throws IOException {
+        long first = segments.firstKey();
+        runs.values().removeIf(run -> run.endOffset >= 0 ? run.endOffset <= first : run.startOffset < first && !run.writing);
+        for (Run run : runs.values()) {
+            run.checkpoints.removeIf(checkpoint -> checkpoint[1] < first);
+        }
+        if (index != null) index.close();
+        File indexFile = new File(directory,INDEX);
+        File temp = new File(directory,INDEX + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),StandardCharsets.UTF_8))) {
+            for (Run run : runs.values()) {
+                writer.write(line("R",run.id,run.start,run.startOffset,run.name));
+                for (int i = 0; i < run.hosts.size(); i++) {
+                    writer.write(line("H",run.id,i + 1,0,run.hosts.get(i)));
+                }
+                for (long[] checkpoint : run.checkpoints) {
+                    writer.write(line("T",run.id,checkpoint[0],checkpoint[1],null));
+                }
+                if (run.endOffset >= 0) {
+                    writer.write(line("E",run.id,run.end,run.endOffset,null));
+                }
+            }
+        }
+        Files.move(temp.toPath(),indexFile.toPath(),java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile,true),StandardCharsets.UTF_8));
+    }
+
+    private void appendIndex(String type,int id,long a,long b,String name) {
+        if (closed) {
+            return;
+        }
+        try {
+            index.write(line(type,id,a,b,name));
+            index.flush();
+        } catch (IOException e) {
+            LOG.warn("写入部署日志索引失败：" + directory,e);
+        }
+    }
+
+    /**
+     * 关闭索引文件，写入映射的分段并释放所有映射，之后不再记录日志，再次调用 of 时重新打开
+     * 映射在没有引用后由 GC 回收，关闭时正在读取的副本仍然有效
+     */
+    public void close() {
+        synchronized (instances) {
+            instances.remove(directory,this);
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            broken = true;
+            try {
+                active.force();
+                if (index != null) {
+                    index.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("关闭部署日志存储失败：" + directory,e);
+            }
+            index = null;
+            active = null;
+            readBuffers.clear();
+        }
+    }
+
+    private static String line(String type,int id,long a,long b,String name) {
+        return type + "\t" + id + "\t" + a + "\t" + b + (name == null ? "" : "\t" + name) + "\n";
+    }
+
+    private File segmentFile(long base) {
+        return new File(directory,String.format("%020d",base) + SEGMENT_SUFFIX);
+    }
+
+    private MappedByteBuffer map(File file,FileChannel.MapMode mode) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE)) {
+            //通道关闭后映射仍然有效
+            return channel.map(mode,0,segmentSize);
+        }
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return 是否继续读取
+         */
+        boolean visit(int runId,long time,int hostId,ByteBuffer buffer,int position,int length);
+    }
+
+    /**
+     * 一次部署的日志，写入存储的同时输出到下一个 Log
+     */
+    public class RunLog implements Log {
+        private final Run run;
+        private final int hostId;
+        private final Log log;
+
+        private RunLog(Run run,int hostId,Log log) {
+            this.run = run;
+            this.hostId = hostId;
+            this.log = log;
+        }
+
+        @Override
+        public void print(String str) {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            append(run,hostId,bytes,0,bytes.length);
+            log.print(str);
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len) {
+            append(run,hostId,b,off,len);
+            log.write(b,off,len);
+        }
+
+        @Override
+        public Log forHost(String host) {
+            return new RunLog(run,hostId(run,host),log.forHost(host));
+        }
+
+        /**
+         * 部署结束，记录结束位置
+         */
+        public void close() {
+            finish(run);
+        }
+    }
+
+    /**
+     * 一次部署
+     */
+    public static class Run {
+        private final int id;
+        private final String name;
+        private final long start;
+        private final long startOffset;
+        private final List<String> hosts = new CopyOnWriteArrayList<>();
+        private final List<long[]> checkpoints = new ArrayList<>();    //时间 -> 位置
+        private long end;
+        private long endOffset = -1;    //没有正常结束时为 -1，读取到已写入部分的结尾
+        private long lastCheckpoint;    //上一个检查点的位置
+        private boolean writing;    //正在写入，所在的分段被删除时也保留
+
+        private Run(int id,String name,long start,long startOffset) {
+            this.id = id;
+            this.name = name;
+            this.start = start;
+            this.startOffset = startOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * 结束时间，没有正常结束时为 0
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public List<String> getHosts() {
+            return Collections.unmodifiableList(hosts);
+        }
+
+        private String getHost(int hostId) {
+            return hostId > 0 && hostId <= hosts.size() ? hosts.get(hostId - 1) : null;
+        }
+    }
+
+    /**
+     * 搜索到的一行日志
+     */
+    public static class Match {
+        private final Run run;
+        private final long time;
+        private final String host;
+        private final String line;
+
+        private Match(Run run,long time,String host,String line) {
+            this.run = run;
+            this.time = time;
+            this.host = host;
+            this.line = line;
+        }
+
+        public Run getRun() {
+            return run;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * 主机名称，单台主机部署时为空
+         */
+        public String getHost() {
+            return host;
+        }
+
+        public String getLine() {
+            return line;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package cn.xuyanwu.autodeployment;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 解析并校验后的部署计划，由 {@link DeploymentPlanParser} 生成，创建后不再修改
+ */
+public class DeploymentPlan {
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final Type type;
+    private final List<Config> hosts;
+    private final String remoteDir;
+    private final List<String> localFiles;
+    private final String script;
+    private final List<String> warnings;
+
+    DeploymentPlan(File file,Type type,List<Config> hosts,String remoteDir,List<String> localFiles,String script,List<String> warnings) {
+        this.file = file;
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+        this.type = type;
+        this.hosts = Collections.unmodifiableList(hosts);
+        this.remoteDir = remoteDir;
+        this.localFiles = Collections.unmodifiableList(localFiles);
+        this.script = script;
+        this.warnings = Collections.unmodifiableList(warnings);
+    }
+
+    /**
+     * 文件是否在解析之后被修改过
+     */
+    boolean isStale() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * 要部署的主机，sh 脚本只有一台主机
+     */
+    public List<Config> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * sh 脚本中文件上传到的远程文件夹
+     */
+    public String getRemoteDir() {
+        return remoteDir;
+    }
+
+    /**
+     * sh 脚本中要上传的本地文件，相对于项目的路径
+     */
+    public List<String> getLocalFiles() {
+        return localFiles;
+    }
+
+    /**
+     * sh 脚本中去掉配置和注释后要执行的命令
+     */
+    public String getScript() {
+        return script;
+    }
+
+    /**
+     * 不影响部署的问题
+     */
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * 部署文件的类型
+     */
+    public enum Type {
+        SH,
+        JSON
+    }
+}
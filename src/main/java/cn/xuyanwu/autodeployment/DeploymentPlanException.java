@@ -0,0 +1,22 @@
+package cn.xuyanwu.autodeployment;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 部署文件校验失败，包含所有的错误
+ */
+public class DeploymentPlanException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> errors;
+
+    public DeploymentPlanException(List<String> errors) {
+        super(String.join("\n",errors));
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+}
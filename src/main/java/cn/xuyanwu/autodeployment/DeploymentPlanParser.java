@@ -0,0 +1,255 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson.JSON;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 部署文件解析
+ * sh 脚本只遍历一次所有行，同时收集配置和命令；json 文件解析为多台主机的配置，
+ * 校验时收集所有错误一起返回，不需要连接服务器。解析结果按文件路径缓存，文件修改后重新解析
+ */
+public class DeploymentPlanParser {
+    private static final Map<String, DeploymentPlan> cache = new ConcurrentHashMap<>();
+
+    /**
+     * 解析部署文件，文件没有修改时直接返回上次的结果
+     */
+    public static DeploymentPlan parse(File file) throws DeploymentPlanException, IOException {
+        String key = file.getAbsolutePath();
+        DeploymentPlan plan = cache.get(key);
+        if (plan != null && !plan.isStale()) {
+            return plan;
+        }
+        String name = file.getName();
+        String text = new String(Files.readAllBytes(file.toPath()),StandardCharsets.UTF_8);
+        if (text.trim().isEmpty()) {
+            throw new DeploymentPlanException(Collections.singletonList(name + " 文件是空的！"));
+        }
+        if (name.endsWith(".sh")) {
+            plan = parseSH(file,text);
+        } else if (name.endsWith(".json")) {
+            plan = parseJSON(file,text);
+        } else {
+            throw new DeploymentPlanException(Collections.singletonList("不支持 " + name.substring(name.lastIndexOf('.') + 1) + " 类型的文件！"));
+        }
+        cache.put(key,plan);
+        return plan;
+    }
+
+    /**
+     * 解析 sh 脚本，以 # key = value 格式的注释作为配置，其他非注释行作为要执行的命令
+     */
+    static DeploymentPlan parseSH(File file,String text) throws DeploymentPlanException {
+        List<String> errors = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        List<String> localFiles = new ArrayList<>();
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        StringBuilder script = new StringBuilder();
+        int start = 0;
+        int length = text.length();
+        while (start < length) {
+            int end = text.indexOf('\n',start);
+            if (end == -1) end = length;
+            String line = text.substring(start,end);
+            start = end + 1;
+            String trimmed = line.trim();
+            if (!trimmed.startsWith("#")) {
+                script.append(line).append("\n");
+                continue;
+            }
+            int index = trimmed.indexOf('=');
+            if (index == -1) {
+                continue;
+            }
+            String key = trimmed.substring(1,index).trim();
+            String value = trimmed.substring(index + 1).trim();
+            if ("localFile".equals(key)) {
+                if (!value.isEmpty()) localFiles.add(value);
+            } else if ("include".equals(key) || "exclude".equals(key)) {
+                //可以写多行，也可以在一行中用逗号分隔
+                for (String glob : value.split(",")) {
+                    if (!glob.trim().isEmpty()) ("include".equals(key) ? includes : excludes).add(glob.trim());
+                }
+            } else if (!value.isEmpty()) {
+                options.putIfAbsent(key,value);    //同一个配置有多个时使用第一个
+            }
+        }
+
+        String host = options.get("host");
+        String username = options.get("username");
+        String password = options.get("password");
+        String remoteDir = options.get("remoteDir");
+        Integer port = parseInt(options,"port",errors);
+        if (host == null) errors.add("没有找到 host 的值！");
+        if (!options.containsKey("port")) errors.add("没有找到 port 的值！");
+        else if (port != null && (port <= 0 || port > 65535)) errors.add("port 的值不正确：" + port);
+        if (username == null) errors.add("没有找到 username 的值！");
+        if (password == null) errors.add("没有找到 password 的值！");
+        if (remoteDir == null) errors.add("没有找到 remoteDir 的值！");
+        if (localFiles.isEmpty()) warnings.add("没有找到 localFile 的值！但是部署还在继续...");
+
+        Config config = new Config(host,port,username,password);
+        config.setTransferMode(options.get("transferMode"));
+        config.setCompressionLevel(parseInt(options,"compressionLevel",errors));
+        config.setChunkSize(parseInt(options,"chunkSize",errors));
+        config.setUploadChannels(parseInt(options,"uploadChannels",errors));
+        config.setIncludes(includes);
+        config.setExcludes(excludes);
+        config.setArtifactCache(parseBoolean(options,"artifactCache",errors));
+        config.setWarmUp(parseBoolean(options,"warmUp",errors));
+        config.setWarmUpTtl(parseInt(options,"warmUpTtl",errors));
+        config.setCiphers(options.get("ciphers"));
+        config.setMacs(options.get("macs"));
+        config.setSshCompression(parseInt(options,"sshCompression",errors));
+        validateOptions(config,"",errors);
+        if (!errors.isEmpty()) {
+            throw new DeploymentPlanException(errors);
+        }
+        return new DeploymentPlan(file,DeploymentPlan.Type.SH,Collections.singletonList(config),remoteDir,localFiles,script.toString(),warnings);
+    }
+
+    /**
+     * 解析 json 配置，每个元素是一台主机
+     */
+    static DeploymentPlan parseJSON(File file,String text) throws DeploymentPlanException {
+        List<Config> configList;
+        try {
+            configList = JSON.parseArray(text,Config.class);
+        } catch (Exception e) {
+            throw new DeploymentPlanException(Collections.singletonList(file.getName() + " 格式不正确：" + e.getLocalizedMessage()));
+        }
+        if (configList == null || configList.isEmpty()) {
+            throw new DeploymentPlanException(Collections.singletonList(file.getName() + " 中没有配置远程主机！"));
+        }
+        List<String> errors = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        for (int i = 0; i < configList.size(); i++) {
+            Config config = configList.get(i);
+            String prefix = "第 " + (i + 1) + " 台主机" + (StrUtil.isBlank(config.getName()) ? "" : "（" + config.getName() + "）") + "：";
+            if (StrUtil.isBlank(config.getHost())) errors.add(prefix + "没有找到 host 的值！");
+            if (config.getPort() == null) errors.add(prefix + "没有找到 port 的值！");
+            else if (config.getPort() <= 0 || config.getPort() > 65535) errors.add(prefix + "port 的值不正确：" + config.getPort());
+            if (StrUtil.isBlank(config.getUser())) errors.add(prefix + "没有找到 user 的值！");
+            if (StrUtil.isBlank(config.getPassword())) errors.add(prefix + "没有找到 password 的值！");
+            if (StrUtil.isBlank(config.getLocalFile())) errors.add(prefix + "没有找到 localFile 的值！");
+            String remoteFile = config.getRemoteFile();
+            if (StrUtil.isBlank(remoteFile)) {
+                errors.add(prefix + "没有找到 remoteFile 的值！");
+            } else if (StrUtil.endWith(config.getLocalFile(),"/")) {
+                //上传文件夹时 remoteFile 是服务器上的文件夹
+                if (!remoteFile.startsWith("/") || remoteFile.endsWith("/")) {
+                    errors.add(prefix + "上传文件夹时 remoteFile 需要是不以 / 结尾的绝对路径：" + remoteFile);
+                }
+            } else if (!remoteFile.startsWith("/") || remoteFile.lastIndexOf('.') < remoteFile.lastIndexOf('/')) {
+                errors.add(prefix + "remoteFile 需要是带扩展名的绝对路径：" + remoteFile);
+            }
+            if (StrUtil.isBlank(config.getStartCMD())) errors.add(prefix + "没有找到 startCMD 的值！");
+            if (StrUtil.isBlank(config.getStopCMD())) warnings.add(prefix + "没有配置 stopCMD");
+            if (StrUtil.isBlank(config.getLogCMD())) warnings.add(prefix + "没有配置 logCMD");
+            validateOptions(config,prefix,errors);
+            validateLogFilter(config,prefix,errors,warnings);
+        }
+        if (!errors.isEmpty()) {
+            throw new DeploymentPlanException(errors);
+        }
+        return new DeploymentPlan(file,DeploymentPlan.Type.JSON,configList,null,Collections.emptyList(),null,warnings);
+    }
+
+    /**
+     * 校验上传相关的配置
+     */
+    private static void validateOptions(Config config,String prefix,List<String> errors) {
+        try {
+            TransferMode.of(config.getTransferMode());
+        } catch (IllegalArgumentException e) {
+            errors.add(prefix + e.getMessage());
+        }
+        Integer level = config.getCompressionLevel();
+        if (level != null && (level < 1 || level > 9)) errors.add(prefix + "compressionLevel 的值需要在 1 到 9 之间：" + level);
+        if (config.getChunkSize() != null && config.getChunkSize() <= 0) errors.add(prefix + "chunkSize 的值需要大于 0：" + config.getChunkSize());
+        if (config.getUploadChannels() != null && config.getUploadChannels() <= 0) errors.add(prefix + "uploadChannels 的值需要大于 0：" + config.getUploadChannels());
+        if (config.getParallelism() != null && config.getParallelism() <= 0) errors.add(prefix + "parallelism 的值需要大于 0：" + config.getParallelism());
+        if (config.getKeepBackups() != null && config.getKeepBackups() <= 0) errors.add(prefix + "keepBackups 的值需要大于 0：" + config.getKeepBackups());
+        if (config.getKeepBackupDays() != null && config.getKeepBackupDays() <= 0) errors.add(prefix + "keepBackupDays 的值需要大于 0：" + config.getKeepBackupDays());
+        if (config.getWarmUpTtl() != null && config.getWarmUpTtl() <= 0) errors.add(prefix + "warmUpTtl 的值需要大于 0：" + config.getWarmUpTtl());
+        Integer sshCompression = config.getSshCompression();
+        if (sshCompression != null && (sshCompression < 0 || sshCompression > 9)) errors.add(prefix + "sshCompression 的值需要在 0 到 9 之间：" + sshCompression);
+        List<String> unsupported = TransportProbe.unsupported(config.getCiphers());
+        unsupported.addAll(TransportProbe.unsupported(config.getMacs()));
+        if (!unsupported.isEmpty()) errors.add(prefix + "不支持的加密或校验算法：" + String.join("、",unsupported));
+        try {
+            TarArchive.compile(config.getIncludes());
+            TarArchive.compile(config.getExcludes());
+        } catch (IllegalArgumentException e) {
+            errors.add(prefix + e.getMessage());
+        }
+    }
+
+    /**
+     * 校验启动日志的过滤配置，正则表达式在服务器上由 awk 执行，这里只检查括号等基本语法
+     */
+    private static void validateLogFilter(Config config,String prefix,List<String> errors,List<String> warnings) {
+        if (!LogFilter.isEnabled(config)) {
+            return;
+        }
+        if (StrUtil.isBlank(config.getLogCMD())) warnings.add(prefix + "没有配置 logCMD，日志过滤配置不会生效");
+        String level = config.getLogLevel();
+        if (StrUtil.isNotBlank(level) && !LogFilter.LEVELS.contains(level.trim().toUpperCase())) {
+            errors.add(prefix + "logLevel 的值需要是 " + String.join("、",LogFilter.LEVELS) + " 之一：" + level);
+        }
+        if (config.getLogRate() != null && config.getLogRate() <= 0) errors.add(prefix + "logRate 的值需要大于 0：" + config.getLogRate());
+        String[][] patterns = {{"logInclude",config.getLogInclude()},{"logExclude",config.getLogExclude()},
+                {"startedPattern",config.getStartedPattern()},{"failedPattern",config.getFailedPattern()}};
+        for (String[] pattern : patterns) {
+            if (StrUtil.isBlank(pattern[1])) continue;
+            try {
+                Pattern.compile(pattern[1]);
+            } catch (PatternSyntaxException e) {
+                errors.add(prefix + pattern[0] + " 不是正确的正则表达式：" + pattern[1]);
+            }
+        }
+    }
+
+    private static Integer parseInt(Map<String, String> options,String key,List<String> errors) {
+        String value = options.get(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            errors.add(key + " 的值不是数字！");
+            return null;
+        }
+    }
+
+    private static Boolean parseBoolean(Map<String, String> options,String key,List<String> errors) {
+        String value = options.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+            errors.add(key + " 的值只能是 true 或 false：" + value);
+            return null;
+        }
+        return Boolean.valueOf(value);
+    }
+
+    /**
+     * 清空缓存
+     */
+    public static void clear() {
+        cache.clear();
+    }
+}
@@ -0,0 +1,419 @@
+package cn.xuyanwu.autodeployment;
+
+import com.alibaba.fastjson.JSON;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * 一次部署的性能报告
+ * 记录每台主机各阶段的耗时、网络流量和吞吐量，以及连接、打开 shell 和应用启动的耗时，
+ * 每次部署保存为一个 json 文件，比较最近几次部署可以看出变慢的原因是网络、服务器还是应用启动
+ */
+public class DeploymentReport {
+    public static final String DEFAULT_DIR = ".idea/autoDeployment/reports";    //默认的报告目录，相对于项目路径
+    private static final int MAX_REPORTS = 100;     //最多保留的报告数
+    private static final String FILE_FORMAT = "yyyyMMdd-HHmmss";
+    private static final List<String> NETWORK_PHASES = Arrays.asList("连接","上传");
+    private static final List<String> APP_PHASES = Collections.singletonList("应用启动");
+
+    /* 部署脚本名称 */
+    private String script;
+    /* 部署或回滚 */
+    private String type;
+    /* 开始时间 */
+    private long start;
+    /* 总耗时（毫秒） */
+    private long duration;
+    private List<HostReport> hosts = new ArrayList<>();
+
+    public DeploymentReport() {
+    }
+
+    public DeploymentReport(String script,String type,long start) {
+        this.script = script;
+        this.type = type;
+        this.start = start;
+    }
+
+    /**
+     * 保存到目录中，文件名为开始时间和脚本名称，同一次部署重复保存时覆盖；超过最大数量时删除最早的报告
+     *
+     * @return 保存的文件
+     */
+    public File write(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建报告目录：" + directory);
+        }
+        File file = new File(directory,new SimpleDateFormat(FILE_FORMAT).format(new Date(start)) + "-" + script.replaceAll("[\\\\/:*?\"<>|.\\s]","_") + ".json");
+        Files.write(file.toPath(),JSON.toJSONString(this,true).getBytes(StandardCharsets.UTF_8));
+        List<File> files = list(directory);
+        for (int i = 0; i < files.size() - MAX_REPORTS; i++) {
+            Files.deleteIfExists(files.get(i).toPath());
+        }
+        return file;
+    }
+
+    /**
+     * 读取最近的 n 次部署，最早的在前，无法解析的报告会被跳过
+     */
+    public static List<DeploymentReport> loadRecent(File directory,int n) {
+        List<File> files = list(directory);
+        List<DeploymentReport> reports = new ArrayList<>();
+        for (File file : files.subList(Math.max(files.size() - n,0),files.size())) {
+            try {
+                reports.add(JSON.parseObject(new String(Files.readAllBytes(file.toPath()),StandardCharsets.UTF_8),DeploymentReport.class));
+            } catch (Exception e) {
+                //忽略损坏或手动修改过的报告
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * 按文件名（开始时间）排序的所有报告
+     */
+    private static List<File> list(File directory) {
+        File[] files = directory.listFiles((dir,name) -> name.endsWith(".json"));
+        List<File> list = files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+        list.sort(Comparator.comparing(File::getName));
+        return list;
+    }
+
+    /**
+     * 最近几次部署的对比：每台主机一行，列出各阶段耗时和上传速度；
+     * 最后一次部署比之前的中位数慢时，找出变慢最多的阶段并判断是网络、服务器还是应用启动的原因
+     */
+    public static String trend(List<DeploymentReport> reports) {
+        if (reports.isEmpty()) {
+            return "没有部署报告，完成一次部署后再查看\n";
+        }
+        Set<String> columns = new LinkedHashSet<>();
+        for (DeploymentReport report : reports) {
+            for (HostReport host : report.hosts) {
+                host.phases.forEach(phase -> columns.add(phase.name));
+            }
+        }
+        columns.add("应用启动");
+        columns.add("停机");
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss");
+        StringBuilder sb = new StringBuilder("最近 " + reports.size() + " 次部署（毫秒）：\n");
+        sb.append(pad("时间",-16)).append(pad("脚本",-20)).append(pad("主机",-16)).append(pad("结果",-6)).append(pad("总耗时",10));
+        for (String column : columns) {
+            sb.append(pad(column,10));
+        }
+        sb.append(pad("上传速度",14)).append("\n");
+        for (DeploymentReport report : reports) {
+            for (HostReport host : report.hosts) {
+                sb.append(pad(format.format(new Date(report.start)),-16)).append(pad(report.script,-20)).append(pad(host.name,-16))
+                        .append(pad(host.success ? "成功" : "失败",-6)).append(pad(String.valueOf(report.duration),10));
+                Map<String, Long> values = host.values();
+                for (String column : columns) {
+                    Long value = values.get(column);
+                    sb.append(pad(value == null || value < 0 ? "-" : String.valueOf(value),10));
+                }
+                Phase upload = host.getPhase("上传");
+                sb.append(pad(upload == null || upload.throughput <= 0 ? "-" : TransferProgress.formatSize(upload.throughput) + "/s",14)).append("\n");
+            }
+        }
+        sb.append(diagnose(reports));
+        return sb.toString();
+    }
+
+    /**
+     * 比较最后一次部署和之前相同主机的中位数，找出增加最多的阶段
+     */
+    private static String diagnose(List<DeploymentReport> reports) {
+        if (reports.size() < 2) {
+            return "";
+        }
+        DeploymentReport last = reports.get(reports.size() - 1);
+        StringBuilder sb = new StringBuilder();
+        for (HostReport host : last.hosts) {
+            Map<String, List<Long>> history = new HashMap<>();
+            for (DeploymentReport report : reports.subList(0,reports.size() - 1)) {
+                for (HostReport previous : report.hosts) {
+                    if (previous.name.equals(host.name) && previous.success) {
+                        previous.values().forEach((name,value) -> history.computeIfAbsent(name,k -> new ArrayList<>()).add(value));
+                    }
+                }
+            }
+            String slowest = null;
+            long increase = 0;
+            for (Map.Entry<String, Long> entry : host.values().entrySet()) {
+                List<Long> values = history.get(entry.getKey());
+                if (values == null || "停机".equals(entry.getKey()) || entry.getValue() < 0) continue;
+                long delta = entry.getValue() - median(values);
+                if (delta > increase) {
+                    increase = delta;
+                    slowest = entry.getKey();
+                }
+            }
+            //增加不到 1 秒或 20% 时不提示
+            long total = host.values().values().stream().filter(v -> v > 0).mapToLong(Long::longValue).sum();
+            if (slowest == null || increase < 1000 || increase * 5 < total) {
+                continue;
+            }
+            String reason = NETWORK_PHASES.contains(slowest) ? "网络" : APP_PHASES.contains(slowest) ? "应用启动" : "服务器";
+            sb.append(String.format("[%s] 最近一次部署的 %s 比之前的中位数慢 %dms，可能是%s的原因",host.name,slowest,increase,reason));
+            Phase phase = host.getPhase(slowest);
+            if (phase != null && phase.bytes > 0) {
+                sb.append(String.format("（传输 %s，%s/s）",TransferProgress.formatSize(phase.bytes),TransferProgress.formatSize(phase.throughput)));
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 按显示宽度补齐空格，中文字符占两个宽度
+     *
+     * @param width 正数时右对齐，负数时左对齐
+     */
+    private static String pad(String value,int width) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            length += value.charAt(i) >= 0x2E80 ? 2 : 1;
+        }
+        StringBuilder spaces = new StringBuilder(" ");
+        for (int i = length + 1; i < Math.abs(width); i++) {
+            spaces.append(' ');
+        }
+        return width > 0 ? spaces + value : value + spaces;
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public void setScript(String script) {
+        this.script = script;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    public List<HostReport> getHosts() {
+        return hosts;
+    }
+
+    public void setHosts(List<HostReport> hosts) {
+        this.hosts = hosts;
+    }
+
+    /**
+     * 一台主机的部署结果
+     */
+    public static class HostReport {
+        /* 主机名称 */
+        private String name;
+        private boolean success;
+        private String error;
+        /* 从连接池获取 session 的耗时，复用连接时接近 0 */
+        private long session = -1;
+        /* 打开 shell 通道的耗时 */
+        private long shell = -1;
+        /* 关键路径耗时，没有按依赖关系执行时为 -1 */
+        private long criticalPath = -1;
+        /* 停机时间 */
+        private long downtime = -1;
+        /* 从执行启动命令到匹配到启动成功的日志的耗时，没有配置 startedPattern 时为 -1 */
+        private long startup = -1;
+        /* 整个部署过程中 session 收发的字节数 */
+        private long bytes;
+        private List<Phase> phases = new ArrayList<>();
+
+        /**
+         * 各阶段耗时，加上应用启动和停机时间
+         */
+        private Map<String, Long> values() {
+            Map<String, Long> values = new LinkedHashMap<>();
+            phases.forEach(phase -> values.put(phase.name,phase.duration));
+            values.put("应用启动",startup);
+            values.put("停机",downtime);
+            return values;
+        }
+
+        private Phase getPhase(String name) {
+            return phases.stream().filter(phase -> phase.name.equals(name)).findFirst().orElse(null);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public void setSuccess(boolean success) {
+            this.success = success;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+
+        public long getSession() {
+            return session;
+        }
+
+        public void setSession(long session) {
+            this.session = session;
+        }
+
+        public long getShell() {
+            return shell;
+        }
+
+        public void setShell(long shell) {
+            this.shell = shell;
+        }
+
+        public long getCriticalPath() {
+            return criticalPath;
+        }
+
+        public void setCriticalPath(long criticalPath) {
+            this.criticalPath = criticalPath;
+        }
+
+        public long getDowntime() {
+            return downtime;
+        }
+
+        public void setDowntime(long downtime) {
+            this.downtime = downtime;
+        }
+
+        public long getStartup() {
+            return startup;
+        }
+
+        public void setStartup(long startup) {
+            this.startup = startup;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public List<Phase> getPhases() {
+            return phases;
+        }
+
+        public void setPhases(List<Phase> phases) {
+            this.phases = phases;
+        }
+    }
+
+    /**
+     * 一个阶段的耗时和网络流量
+     * 同时执行的阶段共用一个 session，流量是阶段执行期间 session 收发的所有字节
+     */
+    public static class Phase {
+        private String name;
+        /* 开始时间，相对于这台主机开始部署的毫秒数 */
+        private long start;
+        /* 耗时（毫秒） */
+        private long duration;
+        /* 收发的字节数 */
+        private long bytes;
+        /* 吞吐量（字节/秒） */
+        private long throughput;
+
+        public Phase() {
+        }
+
+        public Phase(String name,long start,long duration,long bytes) {
+            this.name = name;
+            this.start = start;
+            this.duration = duration;
+            this.bytes = bytes;
+            this.throughput = duration > 0 ? bytes * 1000 / duration : 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public void setStart(long start) {
+            this.start = start;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public void setDuration(long duration) {
+            this.duration = duration;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long getThroughput() {
+            return throughput;
+        }
+
+        public void setThroughput(long throughput) {
+            this.throughput = throughput;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package cn.xuyanwu.autodeployment;
+
+/**
+ * 单台主机部署的状态
+ */
+public enum DeploymentState {
+    CONNECTING("连接中"),
+    UPLOADING("上传中"),
+    RUNNING("执行命令"),
+    TAILING("输出日志"),
+    DONE("已结束");
+
+    private final String label;
+
+    DeploymentState(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
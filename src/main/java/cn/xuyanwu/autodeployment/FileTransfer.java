@@ -0,0 +1,69 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.Session;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * 根据配置的上传方式上传文件，服务器缓存中已有相同内容的文件时不再上传
+ * 本地路径是文件夹时打包上传整个文件夹
+ */
+public class FileTransfer {
+
+    /**
+     * 上传文件
+     *
+     * @param localFile     本地文件路径
+     * @param remoteFile    远程服务器文件地址
+     * @param previousFiles 服务器上可能存在的旧版本文件，增量上传时使用
+     */
+    public static void upload(Session session,Config config,String localFile,String remoteFile,List<String> previousFiles,Log log) throws Exception {
+        upload(session,config,localFile,remoteFile,previousFiles,null,log);
+    }
+
+    /**
+     * 上传文件
+     *
+     * @param digest 提前计算好的本地文件 hash，为空时在上传前计算
+     */
+    public static void upload(Session session,Config config,String localFile,String remoteFile,List<String> previousFiles,String digest,Log log) throws Exception {
+        if (new File(localFile).isDirectory()) {
+            TarUploader.upload(session,config,localFile,remoteFile,log);
+            return;
+        }
+        if (!ArtifactCache.isEnabled(config)) {
+            transfer(session,config,localFile,remoteFile,previousFiles,log);
+            return;
+        }
+        if (digest == null) {
+            digest = ArtifactCache.digest(new File(localFile));
+        }
+        String cachePath = ArtifactCache.getPath(config,remoteFile);
+        if (ArtifactCache.restore(session,cachePath,digest,remoteFile)) {
+            log.println("服务器上已有相同内容的文件，跳过上传：" + localFile);
+            return;
+        }
+        transfer(session,config,localFile,remoteFile,previousFiles,log);
+        ArtifactCache.store(session,cachePath,digest,remoteFile);
+    }
+
+    private static void transfer(Session session,Config config,String localFile,String remoteFile,List<String> previousFiles,Log log) throws Exception {
+        TransferMode mode = TransferMode.of(config.getTransferMode());
+        if (mode == TransferMode.DELTA) {
+            if (DeltaUploader.upload(session,localFile,remoteFile,previousFiles,log)) {
+                return;
+            }
+            log.println("改用 sftp 上传整个文件");
+        } else if (mode == TransferMode.COMPRESS) {
+            CompressedUploader.upload(session,localFile,remoteFile,config.getCompressionLevel(),log);
+            return;
+        } else if (mode == TransferMode.CHUNKED) {
+            ChunkedUploader.upload(session,localFile,remoteFile,config.getChunkSize(),config.getUploadChannels(),log);
+            return;
+        }
+        //发布目录每次部署都不同，未完成的上传放在 remoteFile 所在目录，下次部署时继续
+        String partPath = Boolean.TRUE.equals(config.getReleaseMode()) ? new BackupStore(config).getAppPath() : null;
+        LinuxConnetionHelper.uploadFile(session,localFile,remoteFile,partPath,log);
+    }
+}
@@ -0,0 +1,784 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.io.IoUtil;
+import com.jcraft.jsch.ChannelShell;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单台主机的部署过程，每台主机拥有自己的 session、shell 通道和日志输出
+ */
+public class HostDeployment {
+    private static final long COMMAND_TIME_OUT = 5 * 60 * 1000; //单条命令最长等待5分钟
+    private static final AtomicLong markerId = new AtomicLong();
+    private static final int MAX_UPLOADS = 4;  //sh 部署时最多同时上传的文件数
+    private static final int MAX_LINE_LENGTH = 64 * 1024;    //没有换行时最多缓存的输出字节数
+
+    private final String basePath;
+    private final Config config;
+    private final Log log;
+    private final DeploymentExecutor executor;
+    private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<>());    //各阶段耗时（毫秒）
+    private final Map<String, DeploymentReport.Phase> timeline = Collections.synchronizedMap(new LinkedHashMap<>());   //各阶段的开始时间、耗时和网络流量
+    private final Object writeLock = new Object();
+    private final Map<String, CompletableFuture<Integer>> markers = new ConcurrentHashMap<>();
+    private Session session;
+    private ChannelShell channel;
+    private InputStream inputStream;
+    private OutputStream outputStream;
+    private Future<?> reader;
+    private volatile DeploymentGraph graph;
+    private volatile DeploymentState state = DeploymentState.CONNECTING;
+    private volatile long stoppedAt;
+    private volatile long downtime = -1;        //停机时间（毫秒），没有停机时为 -1
+    private volatile long criticalPath = -1;    //关键路径耗时（毫秒）
+    private volatile long begin;        //开始部署的时间
+    private volatile long sessionTime = -1;     //获取 session 的耗时（毫秒）
+    private volatile long shellTime = -1;       //打开 shell 通道的耗时（毫秒）
+    private volatile long trafficStart = -1;    //获取 session 后的网络流量
+    private volatile long trafficEnd = -1;      //关闭时的网络流量
+    private volatile long startCommandAt;
+    private volatile long startup = -1;     //从执行启动命令到应用启动成功的耗时（毫秒）
+    private volatile Runnable listener;
+    private volatile boolean isClose;
+    private volatile boolean finished;      //部署步骤已执行完
+    private volatile boolean logFinished;   //已匹配到启动成功或失败的日志
+    private volatile boolean startFailed;
+    private volatile boolean success;
+    private volatile String error;
+
+    public HostDeployment(String basePath,Config config,Log log,DeploymentExecutor executor) {
+        this.basePath = basePath;
+        this.config = config;
+        this.log = log;
+        this.executor = executor;
+    }
+
+    /**
+     * 连接主机并打开 shell 通道，开始输出主机日志
+     */
+    public void open() throws Exception {
+        if (isClose) {
+            throw new IOException("部署已关闭");
+        }
+        executor.register(this);
+        phase("连接",() -> {
+            long start = System.currentTimeMillis();
+            session = LinuxConnetionHelper.connect(config);
+            sessionTime = System.currentTimeMillis() - start;
+            trafficStart = traffic();
+            start = System.currentTimeMillis();
+            channel = LinuxConnetionHelper.openChannelShell(session);
+            channel.connect();
+            shellTime = System.currentTimeMillis() - start;
+            inputStream = channel.getInputStream();
+            outputStream = channel.getOutputStream();
+        });
+        autoPrintHostLog();
+        writeln("set +o history");  //不记录当前会话的历史命令
+    }
+
+    /**
+     * 按 json 配置部署：上传、备份、停止、替换、启动，完成后按保留策略清理备份
+     * 连接服务器时同时检查本地文件，上传时同时在服务器上创建目录和备份
+     */
+    public void deployByJSON() {
+        execute("自动部署",() -> {
+            String datetime = new SimpleDateFormat(BackupStore.DATETIME_FORMAT).format(new Date());
+            BackupStore backups = new BackupStore(config);
+            if (!backups.isReleaseMode()) {
+                run(replaceGraph(backups,datetime));
+                return;
+            }
+            boolean[] switched = new boolean[1];
+            try {
+                run(releaseGraph(backups,datetime,switched));
+            } catch (Exception e) {
+                //切换前失败，current 还是原来的版本，删除这次的发布目录
+                if (!switched[0]) {
+                    discard(backups,datetime);
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * 按 sh 脚本部署：同时上传多个文件，全部上传完成后执行脚本
+     */
+    public void deployBySH(DeploymentPlan plan) {
+        execute("自动部署",() -> {
+            Map<String, String> digests = new ConcurrentHashMap<>();
+            DeploymentGraph graph = new DeploymentGraph(getName(),executor)
+                    .add("检查",() -> check(plan.getLocalFiles(),digests))
+                    .add("连接",this::open)
+                    .add("创建目录",() -> RemoteFileSystem.of(session).mkdirs(plan.getRemoteDir()),"连接");
+            List<String> uploads = new ArrayList<>();
+            for (String filename : plan.getLocalFiles()) {
+                String remoteFile = plan.getRemoteDir() + new File(filename).getName();
+                String step = "上传 " + filename;
+                if (graph.contains(step)) {
+                    continue;
+                }
+                //最多同时上传 MAX_UPLOADS 个文件，前面第 MAX_UPLOADS 个文件上传完成后再开始
+                List<String> dependencies = new ArrayList<>(Arrays.asList("检查","创建目录"));
+                if (uploads.size() >= MAX_UPLOADS) {
+                    dependencies.add(uploads.get(uploads.size() - MAX_UPLOADS));
+                }
+                graph.add(step,() -> {
+                    setState(DeploymentState.UPLOADING);
+                    log.println("开始上传文件：" + filename);
+                    FileTransfer.upload(session,config,basePath + filename,remoteFile,Collections.singletonList(remoteFile),digests.get(filename),log);
+                    log.println("上传文件完成：" + filename);
+                },dependencies.toArray(new String[0]));
+                uploads.add(step);
+            }
+            uploads.add("创建目录");
+            graph.add("执行脚本",() -> {
+                setState(DeploymentState.RUNNING);
+                log.println("开始执行 sh 脚本：");
+                writeln(plan.getScript());
+                setState(DeploymentState.TAILING);
+            },uploads.toArray(new String[0]));
+            run(graph);
+        });
+    }
+
+    /**
+     * 回滚到服务器上的一个备份，不需要重新上传
+     *
+     * @param chooser 从备份列表中选择要回滚到的版本
+     */
+    public void rollback(AutoDeployment.Chooser chooser) {
+        execute("回滚",() -> {
+            open();
+            BackupStore backups = new BackupStore(config);
+            List<String> list = backups.list(session);
+            if (list.isEmpty()) {
+                throw new IOException("没有找到备份：" + backups.getPath());
+            }
+            String backup = chooser.choose("选择 " + getName() + " 要回滚到的版本",list);
+            if (backup == null) {
+                log.println("已取消回滚");
+                close();
+                return;
+            }
+            log.println("开始回滚到 " + backup);
+            String datetime = new SimpleDateFormat(BackupStore.DATETIME_FORMAT).format(new Date());
+            String remoteFile = config.getRemoteFile();
+            if (backups.isReleaseMode()) {
+                phase("停止",this::stop);
+                phase("切换",() -> switchCurrent(backups,backup,datetime));
+            } else if (RemoteFileSystem.of(session).isDirectory(backups.getFile(backup))) {
+                //文件夹不能硬链接，先用 cp -al 复制一份只包含硬链接的文件夹，保留选择的备份；当前版本在恢复时重命名到备份中
+                String temp = remoteFile + "." + datetime + ".tmp";
+                phase("备份",() -> {
+                    int status = execAndWait(String.format("cp -al %s %s",backups.getFile(backup),temp));
+                    if (status != 0) {
+                        throw new IOException("复制备份失败，退出码：" + status);
+                    }
+                });
+                phase("停止",this::stop);
+                phase("恢复",() -> {
+                    int status = execAndWait(String.format("test -e %s && mv -f %s %s ; mv -f %s %s",
+                            remoteFile,remoteFile,backups.getFile(datetime),temp,remoteFile));
+                    if (status != 0) {
+                        throw new IOException("恢复备份失败，退出码：" + status);
+                    }
+                });
+            } else {
+                //回滚前先备份当前版本，回滚后还可以再切换回来
+                phase("备份",() -> {
+                    int status = execAndWait(String.format("test ! -e %s || ln -f %s %s",remoteFile,remoteFile,backups.getFile(datetime)));
+                    if (status != 0) {
+                        throw new IOException("备份当前版本失败，退出码：" + status + "，没有回滚");
+                    }
+                });
+                phase("停止",this::stop);
+                phase("恢复",() -> {
+                    String temp = remoteFile + "." + datetime + ".tmp";
+                    int status = execAndWait(String.format("test -d %s && mv -f %s %s ; ln -f %s %s && mv -f %s %s",
+                            backups.getExplodedPath(),backups.getExplodedPath(),backups.getExplodedBackup(datetime),
+                            backups.getFile(backup),temp,temp,remoteFile));
+                    if (status != 0) {
+                        throw new IOException("恢复备份失败，退出码：" + status);
+                    }
+                });
+            }
+            phase("启动",this::start);
+            phases.put("停机",downtime);
+        });
+    }
+
+    /**
+     * 执行部署步骤，失败时输出错误并关闭
+     *
+     * @param action 输出错误时的操作名称
+     */
+    private void execute(String action,Step step) {
+        begin = System.currentTimeMillis();
+        try {
+            step.run();
+            setState(DeploymentState.TAILING);
+            synchronized (this) {
+                success = !isClose && !startFailed;
+                finished = true;
+                //启动日志在部署步骤结束前已经匹配完，这时再关闭
+                if (logFinished) {
+                    close();
+                }
+            }
+        } catch (Exception e) {
+            if (isClose) {
+                error = "部署已取消";
+                return;
+            }
+            error = e.getLocalizedMessage();
+            log.println(action + "失败！" + error);
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * 按依赖关系执行部署步骤，结束后输出关键路径
+     */
+    private void run(DeploymentGraph graph) throws Exception {
+        this.graph = graph;
+        try {
+            graph.measure(this::traffic).run();
+        } finally {
+            phases.putAll(graph.getDurations());
+            graph.getPhases(begin).forEach(phase -> timeline.put(phase.getName(),phase));
+            if (downtime >= 0) {
+                phases.put("停机",downtime);
+            }
+            criticalPath = graph.getCriticalPathTime();
+            if (!isClose) {
+                log.println(graph.summary());
+            }
+        }
+    }
+
+    /**
+     * 检查本地文件是否存在，开启服务器缓存时提前计算 hash，和连接服务器同时进行
+     * 文件夹打包上传，不使用服务器缓存
+     *
+     * @param digests 保存计算好的 hash
+     */
+    private void check(List<String> files,Map<String, String> digests) throws Exception {
+        for (String filename : files) {
+            File file = new File(basePath + filename);
+            if (!file.exists()) {
+                throw new FileNotFoundException("本地文件不存在：" + file.getPath());
+            }
+            if (file.isFile() && ArtifactCache.isEnabled(config)) {
+                digests.put(filename,ArtifactCache.digest(file));
+            }
+        }
+    }
+
+    /**
+     * 上传到 remoteFile 所在目录的临时文件，同时用硬链接备份原文件，停止后只需要重命名替换
+     * 临时文件、备份和 remoteFile 在同一个文件系统，停机期间不会复制文件
+     * 上传文件夹时文件夹不能硬链接，替换时把原文件夹重命名到备份中
+     * <pre>
+     * 检查 ──────┐
+     * 连接 ─┬─ 上传 ─┬─ 停止 ─ 替换 ─ 启动 ─ 清理
+     *       └─ 备份 ─┘
+     * </pre>
+     */
+    private DeploymentGraph replaceGraph(BackupStore backups,String datetime) {
+        String remoteFile = config.getRemoteFile();
+        String remoteFilename = remoteFile.substring(remoteFile.lastIndexOf("/") + 1);
+        String tempFilename = backups.getAppPath() + "." + remoteFilename + "." + datetime + ".tmp";
+        List<String> previousFiles = Arrays.asList(remoteFile,backups.getPath() + "*." + remoteFilename);
+        Map<String, String> digests = new ConcurrentHashMap<>();
+        boolean directory = new File(basePath + config.getLocalFile()).isDirectory();
+        String exploded = backups.getExplodedPath();
+
+        return new DeploymentGraph(getName(),executor)
+                .add("检查",() -> check(Collections.singletonList(config.getLocalFile()),digests))
+                .add("连接",this::open)
+                .add("上传",() -> {
+                    setState(DeploymentState.UPLOADING);
+                    FileTransfer.upload(session,config,basePath + config.getLocalFile(),tempFilename,previousFiles,digests.get(config.getLocalFile()),log);
+                    log.println("文件上传完成！");
+                },"检查","连接")
+                //硬链接不需要停止服务器，也不会复制文件；第一次部署时还没有 remoteFile，不需要备份
+                .add("备份",() -> {
+                    int status = execAndWait(directory ? "mkdir -p " + backups.getPath()
+                            : String.format("mkdir -p %s && test ! -e %s || ln -f %s %s",backups.getPath(),remoteFile,remoteFile,backups.getFile(datetime)));
+                    if (status != 0) {
+                        throw new IOException("备份失败，退出码：" + status + "，没有替换原文件");
+                    }
+                },"连接")
+                .add("停止",this::stop,"上传","备份")
+                //war 包解压后的目录（上传文件夹时是原文件夹）移动到备份中，再用临时文件替换原文件
+                .add("替换",() -> {
+                    int status = execAndWait(directory
+                            ? String.format("test -e %s && mv -f %s %s ; mv -f %s %s",remoteFile,remoteFile,backups.getFile(datetime),tempFilename,remoteFile)
+                            : String.format("test -d %s && mv -f %s %s ; mv -f %s %s",exploded,exploded,backups.getExplodedBackup(datetime),tempFilename,remoteFile));
+                    if (status != 0) {
+                        throw new IOException("替换文件失败，退出码：" + status);
+                    }
+                },"停止")
+                .add("启动",this::start,"替换")
+                .add("清理",() -> retain(backups,null),"启动");
+    }
+
+    /**
+     * 发布目录模式：上传到 releases/&lt;时间&gt;/ 并校验，停止后只需要原子地切换 current 链接再启动
+     * remoteFile 是指向 current 中同名文件的链接，启动命令不需要修改；回滚时把 current 切换回之前的发布目录即可
+     * <pre>
+     * /www/app/app.jar -&gt; current/app.jar
+     * /www/app/current -&gt; releases/2021.06.01.12.00.00
+     * /www/app/releases/2021.06.01.12.00.00/app.jar
+     *
+     * 检查 ────────────┐
+     * 连接 ─ 创建目录 ─ 上传 ─ 校验 ─ 停止 ─ 切换 ─ 启动 ─ 清理
+     * </pre>
+     */
+    private DeploymentGraph releaseGraph(BackupStore backups,String datetime,boolean[] switched) {
+        String remoteFile = config.getRemoteFile();
+        String remoteFilename = remoteFile.substring(remoteFile.lastIndexOf("/") + 1);
+        String releaseFile = backups.getFile(datetime);
+        String current = backups.getAppPath() + BackupStore.CURRENT;
+        String localFile = basePath + config.getLocalFile();
+        List<String> previousFiles = Arrays.asList(current + "/" + remoteFilename,remoteFile);
+        Map<String, String> digests = new ConcurrentHashMap<>();
+        boolean[] linked = new boolean[1];
+
+        return new DeploymentGraph(getName(),executor)
+                .add("检查",() -> check(Collections.singletonList(config.getLocalFile()),digests))
+                .add("连接",this::open)
+                .add("创建目录",() -> execAndWait("mkdir -p " + backups.getPath() + datetime),"连接")
+                .add("上传",() -> {
+                    setState(DeploymentState.UPLOADING);
+                    FileTransfer.upload(session,config,localFile,releaseFile,previousFiles,digests.get(config.getLocalFile()),log);
+                    log.println("文件上传完成！");
+                },"检查","创建目录")
+                //停止前校验上传的文件，并检查 remoteFile 是否已经是指向 current 的链接
+                .add("校验",() -> {
+                    RemoteFileSystem fileSystem = RemoteFileSystem.of(session);
+                    SftpATTRS attrs = fileSystem.lstat(releaseFile);
+                    long size = attrs == null ? -1 : attrs.getSize();
+                    if (new File(localFile).isDirectory()) {
+                        if (attrs == null || !attrs.isDir()) {
+                            throw new IOException("上传的文件夹不存在：" + releaseFile);
+                        }
+                    } else if (size != new File(localFile).length()) {
+                        throw new IOException(String.format("上传的文件大小不一致：%s（%d 字节，本地 %d 字节）",releaseFile,size,new File(localFile).length()));
+                    }
+                    linked[0] = fileSystem.readlink(remoteFile) != null;
+                    String previous = fileSystem.readlink(current);
+                    if (previous != null) {
+                        log.println("当前版本：" + previous + "，可以在回滚中切换回该版本");
+                    }
+                },"上传")
+                .add("停止",this::stop,"校验")
+                .add("切换",() -> {
+                    switched[0] = true;
+                    if (!linked[0]) {
+                        //第一次使用发布目录，原文件重命名到备份中，再换成指向 current 的链接
+                        String backup = backups.getAppPath() + BackupStore.BACKUP_DIR;
+                        execAndWait(String.format("mkdir -p %s && mv -f %s %s",backup,remoteFile,backup + datetime + "." + remoteFilename));
+                        execAndWait(String.format("ln -sfn %s/%s %s",BackupStore.CURRENT,remoteFilename,remoteFile));
+                    }
+                    switchCurrent(backups,datetime,datetime);
+                },"停止")
+                .add("启动",this::start,"切换")
+                .add("清理",() -> retain(backups,datetime),"启动");
+    }
+
+    /**
+     * 先创建新链接再重命名覆盖 current，切换是原子的
+     *
+     * @param release  要切换到的发布目录
+     * @param datetime 当前时间，用于临时链接的名称
+     */
+    private void switchCurrent(BackupStore backups,String release,String datetime) throws Exception {
+        String current = backups.getAppPath() + BackupStore.CURRENT;
+        int status = execAndWait(String.format("ln -sfn %s %s.%s && mv -fT %s.%s %s",BackupStore.RELEASES + release,current,datetime,current,datetime,current));
+        if (status != 0) {
+            throw new IOException("切换 current 链接失败，退出码：" + status);
+        }
+        log.println("已切换到：" + current + " -> " + BackupStore.RELEASES + release);
+    }
+
+    /**
+     * 删除切换前失败的发布目录，已经取消或删除失败时留给下次部署的清理
+     */
+    private void discard(BackupStore backups,String datetime) {
+        Session current = session;
+        if (current == null || !current.isConnected()) {
+            return;
+        }
+        try {
+            backups.discard(current,datetime);
+            log.println("已删除未完成的发布目录：" + backups.getPath() + datetime);
+        } catch (Exception e) {
+            log.println("删除发布目录失败：" + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * 按保留策略清理备份，清理失败不影响部署结果
+     *
+     * @param current 当前版本的时间，不会被删除
+     */
+    private void retain(BackupStore backups,String current) {
+        try {
+            int count = backups.retain(session,current);
+            if (count > 0) {
+                log.println("已清理 " + count + " 个旧备份：" + backups.getPath());
+            }
+        } catch (Exception e) {
+            log.println("清理备份失败：" + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * 停止服务器，从这里开始计算停机时间
+     */
+    private void stop() throws Exception {
+        setState(DeploymentState.RUNNING);
+        stoppedAt = System.currentTimeMillis();
+        if (config.getStopCMD() != null && !config.getStopCMD().trim().isEmpty()) {
+            execAndWait(config.getStopCMD());
+        }
+    }
+
+    /**
+     * 启动服务器并查看日志，输出从停止到启动的停机时间
+     */
+    private void start() throws Exception {
+        String logCMD = config.getLogCMD() == null || config.getLogCMD().trim().isEmpty() ? "" : " && " + LogFilter.command(config);
+        startCommandAt = System.currentTimeMillis();
+        writeln(config.getStartCMD() + " & echo 自动部署已完成，开始输出启动日志" + logCMD);
+        setState(DeploymentState.TAILING);
+        downtime = System.currentTimeMillis() - stoppedAt;
+        log.println("停机时间：" + downtime + "ms（从执行停止命令到执行启动命令）");
+    }
+
+    /**
+     * 主机名称，没有配置名称时使用主机地址
+     */
+    public String getName() {
+        return config.getName() != null && !config.getName().trim().isEmpty() ? config.getName() : config.getHost();
+    }
+
+    /**
+     * 执行一个阶段并记录耗时
+     */
+    public void phase(String name,Step step) throws Exception {
+        long start = System.currentTimeMillis();
+        long before = traffic();
+        try {
+            step.run();
+        } finally {
+            long duration = System.currentTimeMillis() - start;
+            long after = traffic();
+            phases.put(name,duration);
+            timeline.put(name,new DeploymentReport.Phase(name,start - begin,duration,before >= 0 && after >= before ? after - before : 0));
+        }
+    }
+
+    /**
+     * session 已收发的字节数
+     *
+     * @return 还没有连接或无法统计时返回 -1
+     */
+    private long traffic() {
+        SessionTraffic traffic = SessionTraffic.of(session);
+        return traffic == null ? -1 : traffic.getTotal();
+    }
+
+    /**
+     * 在 shell 中执行命令，并等待命令执行完成
+     *
+     * @return 命令的退出码
+     */
+    public int execAndWait(String cmd) throws Exception {
+        if (isClose) {
+            throw new IOException("部署已关闭");
+        }
+        String id = String.valueOf(markerId.incrementAndGet());
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        markers.put(id,future);
+        try {
+            writeln(cmd + "\n" + ShellSentinel.echo(id));
+            return future.get(COMMAND_TIME_OUT,TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("命令执行超时：" + cmd);
+        } finally {
+            markers.remove(id);
+        }
+    }
+
+    private void autoPrintHostLog() {
+        InputStream inputStream = this.inputStream;
+        reader = executor.submitReader(config.getHost(),() -> {
+            try (InputStream in = inputStream) {
+                readHostLog(in);
+            } catch (Exception e) {
+                if (!isClose) e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * 读取主机输出直到结束，按字节拆分行，只有标记行才解码为字符串
+     * 超过 MAX_LINE_LENGTH 还没有换行时先输出已读取的部分，不会因为没有换行的输出无限占用内存
+     */
+    void readHostLog(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        byte[] line = new byte[8192];
+        int lineLength = 0;
+        int len;
+        while (!isClose && !logFinished && (len = in.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < len; i++) {
+                if (buffer[i] != '\n') continue;
+                if (lineLength == 0) {
+                    onLine(buffer,start,i + 1 - start);
+                } else {
+                    line = append(line,lineLength,buffer,start,i + 1 - start);
+                    onLine(line,0,lineLength + i + 1 - start);
+                    lineLength = 0;
+                }
+                start = i + 1;
+            }
+            if (start < len) {
+                line = append(line,lineLength,buffer,start,len - start);
+                lineLength += len - start;
+                if (lineLength >= MAX_LINE_LENGTH) {
+                    //在完整的字符处截断，剩余的字节留到下次输出
+                    int end = utf8Boundary(line,lineLength);
+                    log.write(line,0,end);
+                    System.arraycopy(line,end,line,0,lineLength - end);
+                    lineLength -= end;
+                }
+            }
+        }
+    }
+
+    /**
+     * 去掉末尾不完整的 utf-8 字符后的长度
+     */
+    private static int utf8Boundary(byte[] b,int len) {
+        for (int i = len - 1; i >= 0 && i >= len - 3; i--) {
+            int c = b[i] & 0xff;
+            if (c < 0x80) {
+                return len;
+            }
+            if (c >= 0xc0) {
+                int size = c >= 0xf0 ? 4 : c >= 0xe0 ? 3 : 2;
+                return i + size > len ? i : len;
+            }
+        }
+        return len;
+    }
+
+    private static byte[] append(byte[] line,int lineLength,byte[] b,int off,int len) {
+        if (lineLength + len > line.length) {
+            line = Arrays.copyOf(line,Math.max(line.length * 2,lineLength + len));
+        }
+        System.arraycopy(b,off,line,lineLength,len);
+        return line;
+    }
+
+    private void onLine(byte[] b,int off,int len) {
+        if (ShellSentinel.isMarker(b,off,len)) {
+            onMarker(new String(b,off,len,StandardCharsets.UTF_8));
+        } else if (LogFilter.isMarker(b,off,len)) {
+            onLogFinished(LogFilter.isStarted(new String(b,off,len,StandardCharsets.UTF_8)));
+        } else {
+            log.write(b,off,len);
+        }
+    }
+
+    /**
+     * 处理命令执行完成的标记
+     *
+     * @return 是否为标记行
+     */
+    private boolean onMarker(String line) {
+        String[] marker = ShellSentinel.parse(line);
+        if (marker == null) {
+            return false;
+        }
+        CompletableFuture<Integer> future = markers.get(marker[0]);
+        if (future != null) {
+            future.complete(ShellSentinel.exitCode(marker));
+        }
+        return true;
+    }
+
+    /**
+     * 服务器上的日志过滤匹配到启动成功或失败的日志，停止输出日志并结束部署
+     * 启动之后的步骤（例如清理备份）可能还没有执行完，这时只关闭 shell 通道，等步骤执行完再关闭
+     */
+    private void onLogFinished(boolean started) {
+        synchronized (this) {
+            if (started) {
+                startup = System.currentTimeMillis() - startCommandAt;
+                log.println("应用已启动，耗时 " + startup + "ms，停止输出日志");
+            } else {
+                startFailed = true;
+                success = false;
+                error = "应用启动失败";
+                log.println("应用启动失败，停止输出日志");
+            }
+            logFinished = true;
+        }
+        Runnable listener = this.listener;
+        if (listener != null) {
+            listener.run();
+        }
+        synchronized (this) {
+            if (finished) {
+                close();
+            } else {
+                closeShell();
+            }
+        }
+    }
+
+    public void writeln(String cmd) throws IOException {
+        synchronized (writeLock) {
+            OutputStream out = outputStream;
+            if (out != null && !isClose) {
+                out.write(cmd.concat("\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        }
+    }
+
+    public DeploymentState getState() {
+        return state;
+    }
+
+    public void setState(DeploymentState state) {
+        if (!isClose) {
+            this.state = state;
+        }
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public Map<String, Long> getPhases() {
+        return phases;
+    }
+
+    /**
+     * 关键路径耗时（毫秒），没有按依赖关系执行时为 -1
+     */
+    public long getCriticalPath() {
+        return criticalPath;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * 设置匹配到启动成功或失败的日志后的回调，用来更新部署报告
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 这台主机的性能报告
+     */
+    public DeploymentReport.HostReport getReport() {
+        DeploymentReport.HostReport report = new DeploymentReport.HostReport();
+        report.setName(getName());
+        report.setSuccess(success);
+        report.setError(error);
+        report.setSession(sessionTime);
+        report.setShell(shellTime);
+        report.setCriticalPath(criticalPath);
+        report.setDowntime(downtime);
+        report.setStartup(startup);
+        long traffic = session != null ? traffic() : trafficEnd;
+        report.setBytes(trafficStart >= 0 && traffic >= trafficStart ? traffic - trafficStart : 0);
+        List<DeploymentReport.Phase> list;
+        synchronized (timeline) {
+            list = new ArrayList<>(timeline.values());
+        }
+        list.sort(Comparator.comparingLong(DeploymentReport.Phase::getStart));
+        report.setPhases(list);
+        return report;
+    }
+
+    /**
+     * 关闭对象
+     */
+    public synchronized void close() {
+        if (isClose) {
+            return;
+        }
+        isClose = true;
+        //部署中途关闭时 session 可能还在传输数据，不能放回连接池
+        boolean interrupted = state != DeploymentState.TAILING;
+        state = DeploymentState.DONE;
+        markers.values().forEach(f -> f.completeExceptionally(new IOException("部署已关闭")));
+        if (graph != null) {
+            graph.cancel();
+        }
+        closeShell();
+        trafficEnd = traffic();
+        if (interrupted) {
+            LinuxConnetionHelper.closeLongSessionBySession(session);
+        } else {
+            LinuxConnetionHelper.close(session);
+        }
+        session = null;
+        executor.unregister(this);
+    }
+
+    /**
+     * 停止读取主机输出并关闭 shell 通道，session 继续使用
+     */
+    private synchronized void closeShell() {
+        if (reader != null) {
+            //匹配到启动日志时在读取线程中调用，读取循环会自己结束
+            if (!logFinished) reader.cancel(true);
+            reader = null;
+        }
+        synchronized (writeLock) {
+            IoUtil.close(outputStream);
+            outputStream = null;
+        }
+        IoUtil.close(inputStream);
+        inputStream = null;
+        LinuxConnetionHelper.closeChannelShell(channel);
+        channel = null;
+    }
+
+    /**
+     * 部署中的一个步骤
+     */
+    public interface Step {
+        void run() throws Exception;
+    }
+}
@@ -1,11 +1,19 @@
 package cn.xuyanwu.autodeployment;
 
+import cn.hutool.core.util.StrUtil;
 import com.jcraft.jsch.*;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.text.NumberFormat;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @description 用来创建与 linux 交互的会话，操作文件和执行 操作 命令
@@ -15,16 +23,32 @@ import java.util.*;
 public class LinuxConnetionHelper {
 
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(LinuxConnetionHelper.class);
-    private static final int TIME_OUT = 5 * 60 * 1000; //设置超时为5分钟
-    private static final Map<String, Session> cache = new HashMap<>(); //session缓存
+    static final int TIME_OUT = 5 * 60 * 1000; //设置超时为5分钟
+    private static final int ALIVE_INTERVAL = 30 * 1000;    //每30秒发送一次 keepalive
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r,"AutoDeployment-command-timeout");
+        thread.setDaemon(true);
+        return thread;
+    }); //命令超时定时器
 
-    public static SessionMonitor sessionMonitor;
+    /**
+     * 从连接池中获取连接，使用完后调用 {@link #close(Session)} 放回连接池
+     * @throws JSchException
+     */
+    public static Session connect(Config config) throws JSchException {
+        try {
+            return SessionPool.getInstance().borrow(config);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JSchException("连接已取消",e);
+        }
+    }
 
     /**
      * 创建 连接，需手动关闭
      * @throws JSchException
      */
-    public static Session connect(Config config) throws JSchException {
+    public static Session createSession(Config config) throws JSchException {
         //创建对象
         JSch jsch = new JSch();
         //创建会话
@@ -39,17 +63,42 @@ public class LinuxConnetionHelper {
         properties.setProperty("StrictHostKeyChecking","no");
 //        //默认值是 “yes” 此处是由于我们SFTP服务器的DNS解析有问题，则把UseDNS设置为“no”
 //        config.put("UseDNS", "no");
+        //加密、校验和压缩算法
+        if (StrUtil.isNotBlank(config.getCiphers())) {
+            properties.setProperty("cipher.c2s",config.getCiphers().replace(" ",""));
+            properties.setProperty("cipher.s2c",config.getCiphers().replace(" ",""));
+        }
+        if (StrUtil.isNotBlank(config.getMacs())) {
+            properties.setProperty("mac.c2s",config.getMacs().replace(" ",""));
+            properties.setProperty("mac.s2c",config.getMacs().replace(" ",""));
+        }
+        if (config.getSshCompression() != null && config.getSshCompression() > 0) {
+            properties.setProperty("compression.c2s","zlib@openssh.com,zlib,none");
+            properties.setProperty("compression.s2c","zlib@openssh.com,zlib,none");
+            properties.setProperty("compression_level",String.valueOf(config.getSshCompression()));
+            properties.setProperty("zlib@openssh.com",DeflaterCompression.class.getName());
+            properties.setProperty("zlib",DeflaterCompression.class.getName());
+        }
         session.setConfig(properties);
         //过期时间
         session.setTimeout(TIME_OUT);
+        //通过 keepalive 检测连接是否可用
+        session.setServerAliveInterval(ALIVE_INTERVAL);
+        session.setDaemonThread(true);
+        //统计网络流量
+        SessionTraffic traffic = new SessionTraffic(TIME_OUT);
+        session.setSocketFactory(traffic);
         //建立连接
         session.connect();
+        traffic.register(session);
 
         return session;
     }
 
     /**
-     * 创建  连接，无需手动关闭
+     * 创建  连接，从连接池中借出，借出期间不会被其它调用方使用
+     * 使用完后调用 {@link #close(Session)} 放回连接池；连接出错不再使用时调用 {@link #closeLongSessionBySession(Session)} 销毁，
+     * 两者都不调用时会一直占用该主机的连接数
      *
      * @param host
      * @param userName
@@ -58,51 +107,17 @@ public class LinuxConnetionHelper {
      * @throws JSchException
      */
     public static Session longConnect(String host,String userName,String password,int port) throws JSchException {
-        String key = host + userName + password + port;
-        Session session = cache.get(key);
-        if (session == null) {
-            //创建对象
-            JSch jsch = new JSch();
-            //创建会话
-            session = jsch.getSession(userName,host,port);
-            //输入密码
-            session.setPassword(password);
-            //配置信息
-            Properties config = new Properties();
-            //设置不用检查hostKey
-            //如果设置成“yes”，ssh就不会自动把计算机的密匙加入“$HOME/.ssh/known_hosts”文件，
-            //并且一旦计算机的密匙发生了变化，就拒绝连接。
-            config.setProperty("StrictHostKeyChecking","no");
-//        //默认值是 “yes” 此处是由于我们SFTP服务器的DNS解析有问题，则把UseDNS设置为“no”
-//        config.put("UseDNS", "no");
-            session.setConfig(config);
-            //过期时间
-            //session.setTimeout(TIME_OUT);
-            //建立连接，此时会在linux上新建一个进程，timeout 并不会结束进程，只有调用disconnect()才会结束此进程
-            session.connect();
-            cache.put(key,session);
-        } else {
-            //判断session是否失效
-            if (testSessionIsDown(key)) {
-                //session is down
-                //session 失去连接则清除
-                closeLongSessionByKey(key);
-                //重新生成session
-                session = longConnect(host,userName,password,port);
-            }
-        }
-        //创建定时器
-        createSessionMonitor();
-        return session;
+        return connect(new Config(host,port,userName,password));
     }
 
     /**
-     * 销毁 session
+     * 归还 session，连接池管理的 session 放回连接池，其它的直接销毁
      *
      * @param session
      */
     public static void close(Session session) {
-        if (session != null) {
+        if (session != null && !SessionPool.getInstance().release(session)) {
+            RemoteFileSystem.release(session);
             session.disconnect();
         }
     }
@@ -110,58 +125,30 @@ public class LinuxConnetionHelper {
     /**
      * 测试session是否失效
      *
-     * @param key
+     * @param session
      * @return
      */
-    public static boolean testSessionIsDown(String key) {
-        Session session = cache.get(key);
-        if (session == null) {
+    public static boolean testSessionIsDown(Session session) {
+        if (session == null || !session.isConnected()) {
             return true;
         }
-        ChannelExec channelExec = null;
         try {
-            channelExec = openChannelExec(session);
-            channelExec.setCommand("true");
-            channelExec.connect();
+            session.sendKeepAliveMsg();
             return false;
-        } catch (Throwable e) {
+        } catch (Exception e) {
             //session is down
             return true;
-        } finally {
-            if (channelExec != null) {
-                channelExec.disconnect();
-            }
-        }
-    }
-
-    /**
-     * 销毁 session
-     *
-     * @param key
-     */
-    public static synchronized void closeLongSessionByKey(String key) {
-        Session session = cache.get(key);
-        if (session != null) {
-            session.disconnect();
-            cache.remove(key);
         }
     }
 
     /**
-     * 销毁 session
+     * 销毁 session，不再放回连接池，借出的 session 同时归还占用的连接数
      *
      * @param session
      */
     public static void closeLongSessionBySession(Session session) {
-        Iterator iterator = cache.keySet().iterator();
-        while (iterator.hasNext()) {
-            String key = (String) iterator.next();
-            Session oldSession = cache.get(key);
-            if (session == oldSession) {
-                session.disconnect();
-                cache.remove(key);
-                return;
-            }
+        if (session != null) {
+            SessionPool.getInstance().invalidate(session);
         }
     }
 
@@ -191,7 +178,7 @@ public class LinuxConnetionHelper {
     }
 
     /**
-     * 下载文件
+     * 下载文件，连接断开后再次下载时从已下载的位置继续
      *
      * @param remoteFile 远程服务器的文件路径
      * @param localPath  需要保存文件的本地路径
@@ -199,40 +186,17 @@ public class LinuxConnetionHelper {
      * @throws SftpException
      */
     public static void downloadFile(Session session,String remoteFile,String localPath) throws Exception {
-        ChannelSftp channelSftp = openChannelSftp(session);
-        try {
-            String remoteFilePath = remoteFile.substring(0,remoteFile.lastIndexOf("/"));
-            String remoteFileName = remoteFile.substring(remoteFile.lastIndexOf("/") + 1,remoteFile.length());
-            if (localPath.charAt(localPath.length() - 1) != '/') {
-                localPath += '/';
-            }
-            File file = new File(localPath + remoteFileName);
-            if (!file.getParentFile().exists()) {
-                file.getParentFile().mkdirs();
-                file.createNewFile();
-            }
-            OutputStream output = new FileOutputStream(file);
-            try {
-                channelSftp.cd(remoteFilePath);
-                log.info("远程服务器路径：" + remoteFilePath);
-                log.info("本地下载路径：" + localPath + remoteFileName);
-                SftpATTRS attrs = channelSftp.lstat(remoteFile);
-                channelSftp.get(remoteFile,output,new FileSftpProgressMonitor(attrs.getSize()));
-            } catch (Exception e) {
-                throw e;
-            } finally {
-                output.flush();
-                output.close();
-            }
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            closeChannelSftp(channelSftp);
+        String remoteFileName = remoteFile.substring(remoteFile.lastIndexOf("/") + 1,remoteFile.length());
+        if (localPath.charAt(localPath.length() - 1) != '/') {
+            localPath += '/';
         }
+        log.info("远程服务器路径：" + remoteFile);
+        log.info("本地下载路径：" + localPath + remoteFileName);
+        ResumableTransfer.download(session,remoteFile,localPath + remoteFileName,null);
     }
 
     /**
-     * 上传文件
+     * 上传文件，连接断开后再次上传时从已上传的位置继续
      *
      * @param localFile  本地文件路径
      * @param remotePath 远程服务器路径
@@ -240,37 +204,14 @@ public class LinuxConnetionHelper {
      * @throws SftpException
      */
     public static void uploadFile(Session session,String localFile,String remotePath) throws Exception {
-        ChannelSftp channelSftp = openChannelSftp(session);
         String remoteFileName = localFile.substring(localFile.lastIndexOf("/") + 1,localFile.length());
-        File file = new File(localFile);
-        final InputStream input = new FileInputStream(file);
-        try {
-            channelSftp.cd(remotePath);
-        } catch (SftpException e) {
-            String tempPath = null;
-            try {
-                tempPath = remotePath.substring(0,remotePath.lastIndexOf("/"));
-                channelSftp.cd(tempPath);
-            } catch (SftpException e1) {
-                channelSftp.mkdir(tempPath);
-            }
-            channelSftp.mkdir(remotePath);
-            channelSftp.cd(remotePath);
-        }
         log.info("远程服务器路径：" + remotePath);
         log.info("本地上传路径：" + localFile);
-        try {
-            channelSftp.put(input,remoteFileName,new FileSftpProgressMonitor(file.length()));
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            input.close();
-            closeChannelSftp(channelSftp);
-        }
+        ResumableTransfer.upload(session,localFile,remotePath + "/" + remoteFileName,null);
     }
 
     /**
-     * 上传文件
+     * 上传文件，远程服务器上缺少的目录会逐级创建，连接断开后再次上传时从已上传的位置继续
      *
      * @param localFile  本地文件地址
      * @param remoteFile 远程服务器文件地址
@@ -278,38 +219,18 @@ public class LinuxConnetionHelper {
      * @throws SftpException
      */
     public static void uploadFile(Session session,String localFile,String remoteFile,Log log) throws Exception {
-        ChannelSftp channelSftp = openChannelSftp(session);
-        String remotePath = remoteFile.substring(0,remoteFile.lastIndexOf("/"));
-        File file = new File(localFile);
-        final InputStream input = new FileInputStream(file);
-        try {
-            channelSftp.cd(remotePath);
-        } catch (SftpException e) {
-            String tempPath = null;
-            try {
-                tempPath = remotePath.substring(0,remotePath.lastIndexOf("/"));
-                channelSftp.cd(tempPath);
-            } catch (SftpException e1) {
-                channelSftp.mkdir(tempPath);
-            }
-            channelSftp.mkdir(remotePath);
-            channelSftp.cd(remotePath);
-        }
+        uploadFile(session,localFile,remoteFile,null,log);
+    }
+
+    /**
+     * 上传文件，未完成的上传保存在 partPath 中
+     *
+     * @param partPath 临时文件所在目录，为空时使用 remoteFile 所在目录
+     */
+    public static void uploadFile(Session session,String localFile,String remoteFile,String partPath,Log log) throws Exception {
         log.println("远程服务器路径：" + remoteFile);
         log.println("本地上传路径：" + localFile);
-        FileSftpProgressMonitor monitor = null;
-        try {
-            monitor = new FileSftpProgressMonitor(file.length(),log);
-            channelSftp.put(input,remoteFile,monitor);
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            input.close();
-            closeChannelSftp(channelSftp);
-            if(monitor!=null){
-                monitor.stop();
-            }
-        }
+        ResumableTransfer.upload(session,localFile,remoteFile,partPath,log);
     }
 
     /**
@@ -322,16 +243,13 @@ public class LinuxConnetionHelper {
      * @throws Exception
      */
     public static void uploadFile(Session session,InputStream inputStream,String fileName,String remotePath) throws Exception {
-        ChannelSftp channelSftp = openChannelSftp(session);
-        channelSftp.cd(remotePath);
         log.info("远程服务器路径：" + remotePath);
+        TransferProgress progress = new TransferProgress("上传",inputStream.available(),null);
         try {
-            channelSftp.put(inputStream,fileName,new FileSftpProgressMonitor(inputStream.available()));
-        } catch (Exception e) {
-            throw e;
+            RemoteFileSystem.of(session).put(inputStream,remotePath + "/" + fileName,progress,ChannelSftp.OVERWRITE);
         } finally {
+            progress.finish();
             inputStream.close();
-            closeChannelSftp(channelSftp);
         }
     }
 
@@ -344,15 +262,18 @@ public class LinuxConnetionHelper {
      * @throws SftpException
      */
     public static Vector listFiles(Session session,String remotePath) throws Exception {
-        ChannelSftp channelSftp = openChannelSftp(session);
-        try {
-            Vector vector = channelSftp.ls(remotePath);
-            return vector;
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            closeChannelSftp(channelSftp);
-        }
+        return RemoteFileSystem.of(session).execute(channelSftp -> channelSftp.ls(remotePath));
+    }
+
+    /**
+     * 逐条列出远程服务器目录中的文件，不会把整个目录读入 Vector
+     * 目录不存在时不会调用 selector
+     *
+     * @param remotePath 远程服务器路径
+     * @param selector   处理每个文件，返回 {@link ChannelSftp.LsEntrySelector#BREAK} 时停止
+     */
+    public static void ls(Session session,String remotePath,ChannelSftp.LsEntrySelector selector) throws Exception {
+        RemoteFileSystem.of(session).ls(remotePath,selector);
     }
 
     /**
@@ -364,15 +285,7 @@ public class LinuxConnetionHelper {
      * @throws Exception
      */
     public static void removeFile(Session session,String remotePath,String fileName) throws Exception {
-        ChannelSftp channelSftp = openChannelSftp(session);
-        try {
-            channelSftp.cd(remotePath);
-            channelSftp.rm(fileName);
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            closeChannelSftp(channelSftp);
-        }
+        RemoteFileSystem.of(session).rm(remotePath + "/" + fileName);
     }
 
     /**
@@ -383,20 +296,7 @@ public class LinuxConnetionHelper {
      * @throws Exception
      */
     public static void removeDir(Session session,String remotePath) throws Exception {
-        ChannelSftp channelSftp = openChannelSftp(session);
-        try {
-            if (remotePath.lastIndexOf("/") == remotePath.length() - 1) {
-                remotePath = remotePath.substring(0,remotePath.length() - 1);
-            }
-            String parentDir = remotePath.substring(0,remotePath.lastIndexOf("/") + 1);
-            String rmDir = remotePath.substring(remotePath.lastIndexOf("/") + 1,remotePath.length());
-            channelSftp.cd(parentDir);
-            channelSftp.rmdir(rmDir);
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            closeChannelSftp(channelSftp);
-        }
+        RemoteFileSystem.of(session).rmdir(remotePath);
     }
 
     /**
@@ -428,29 +328,94 @@ public class LinuxConnetionHelper {
      * @param session
      * @param cmd     执行 .sh 脚本
      * @param charset 字符格式
-     * @return
+     * @return 标准输出和错误输出
      * @throws IOException
      * @throws JSchException
      */
     public static String[] execCmd(Session session,String cmd,String charset) throws Exception {
-        //打开通道
+        CommandResult result = exec(session,cmd,Charset.forName(charset),TIME_OUT,null);
+        return new String[]{result.getStdout(),result.getStderr()};
+    }
+
+    /**
+     * 执行命令，读到通道结束后立即返回，不需要等待固定的时间
+     *
+     * @param session
+     * @param cmd     命令
+     * @param timeout 超时时间（毫秒），超时后关闭通道并抛出异常
+     * @return 命令执行结果
+     * @throws Exception
+     */
+    public static CommandResult exec(Session session,String cmd,long timeout) throws Exception {
+        return exec(session,cmd,StandardCharsets.UTF_8,timeout,null);
+    }
+
+    /**
+     * 执行命令，读到通道结束后立即返回，不需要等待固定的时间
+     *
+     * @param session
+     * @param cmd     命令
+     * @param charset 字符格式
+     * @param timeout 超时时间（毫秒），超时后关闭通道并抛出异常
+     * @param output  实时输出命令的标准输出和错误输出，可以为空
+     * @return 命令执行结果
+     * @throws Exception
+     */
+    public static CommandResult exec(Session session,String cmd,Charset charset,long timeout,Log output) throws Exception {
+        long start = System.currentTimeMillis();
         ChannelExec channelExec = openChannelExec(session);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayOutputStream error = new ByteArrayOutputStream();
-        channelExec.setCommand(cmd);
-        channelExec.setOutputStream(out);
-        channelExec.setErrStream(error);
-        channelExec.connect();
-        //确保能够执行完成及响应所有数据
-        Thread.sleep(10000);
-        String[] msg = new String[2];
-        msg[0] = new String(out.toByteArray(),charset);
-        msg[1] = new String(error.toByteArray(),charset);
-        out.close();
-        error.close();
-        //关闭通道
-        closeChannelExec(channelExec);
-        return msg;
+        OutputStream outLog = output == null ? null : new LogOutputStream(output,charset);
+        OutputStream errLog = output == null ? null : new LogOutputStream(output,charset);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> timer = null;
+        try {
+            channelExec.setCommand(cmd);
+            ExecCompletion completion = new ExecCompletion(channelExec,errLog == null ? error : new TeeOutputStream(error,errLog));
+            InputStream in = channelExec.getInputStream();
+            channelExec.connect((int) Math.min(timeout,TIME_OUT));
+            timer = scheduler.schedule(() -> {
+                timedOut.set(true);
+                kill(channelExec);
+            },timeout,TimeUnit.MILLISECONDS);
+            byte[] buffer = new byte[8192];
+            int len;
+            try {
+                //读到通道结束（EOF）说明命令已执行完成
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer,0,len);
+                    if (outLog != null) outLog.write(buffer,0,len);
+                }
+            } catch (IOException e) {
+                if (!timedOut.get()) throw e;
+            }
+            //EOF 之后服务器会紧接着发送退出码并关闭通道，超时后定时器关闭通道
+            int status = completion.await(timeout,cmd);
+            if (timedOut.get()) {
+                throw new IOException("命令执行超时（" + timeout + " ms）：" + cmd);
+            }
+            return new CommandResult(cmd,new String(out.toByteArray(),charset),new String(error.toByteArray(),charset),
+                    status,System.currentTimeMillis() - start);
+        } finally {
+            if (timer != null) timer.cancel(false);
+            if (outLog != null) outLog.close();
+            if (errLog != null) errLog.close();
+            //关闭通道
+            closeChannelExec(channelExec);
+        }
+    }
+
+    /**
+     * 结束正在执行的命令并关闭通道
+     */
+    private static void kill(ChannelExec channelExec) {
+        try {
+            channelExec.sendSignal("KILL");
+        } catch (Exception e) {
+            //服务器不支持时直接关闭通道
+        }
+        channelExec.disconnect();
     }
 
     /**
@@ -482,227 +447,151 @@ public class LinuxConnetionHelper {
      * @param cmds         命令参数
      * @param session
      * @param timeout      连接超时时间
-     * @param sleepTimeout 线程等待时间
+     * @param sleepTimeout 已不再使用，每条命令执行完成后立即执行下一条
      * @return
      * @throws Exception
      */
     public static String execShellCmd(String[] cmds,Session session,int timeout,int sleepTimeout) throws Exception {
-        //打开通道
-        ChannelShell channelShell = openChannelShell(session);
-        //设置输入输出流
-        PipedOutputStream pipedOut = new PipedOutputStream();
-        ByteArrayOutputStream errorOut = new ByteArrayOutputStream();
-        channelShell.setInputStream(new PipedInputStream(pipedOut));
-        channelShell.setOutputStream(errorOut);
-        channelShell.connect(timeout);
-        for (String cmd : cmds) {
-            pipedOut.write(cmd.getBytes("UTF-8"));
-            //线程休眠，保证执行命令后能够及时返回响应数据
-            Thread.sleep(sleepTimeout);
-
+        StringBuilder sb = new StringBuilder();
+        for (CommandResult result : execShell(session,Arrays.asList(cmds),timeout,TIME_OUT)) {
+            sb.append(result.getStdout());
         }
-        String msg = new String(errorOut.toByteArray(),"UTF-8");
+        String msg = sb.toString();
         log.info(msg);
-        pipedOut.close();
-        errorOut.close();
-        //关闭通道
-        closeChannelShell(channelShell);
         return msg;
     }
 
     /**
-     * 创建定时器，清除timeout 的 session 连接
+     * 在同一个交互式 shell 中依次执行命令，每条命令执行完成后立即执行下一条
+     *
+     * @param session
+     * @param cmds           命令
+     * @param connectTimeout 连接超时时间（毫秒）
+     * @param timeout        每条命令的超时时间（毫秒），超时后关闭通道并抛出异常
+     * @return 每条命令的执行结果，shell 中标准输出和错误输出合并在一起
+     * @throws Exception
      */
-    public static void createSessionMonitor() {
-        if (sessionMonitor == null) {
-            synchronized (SessionMonitor.class) {
-                if (sessionMonitor == null) {
-                    //定时器，定时清除失效的session
-                    sessionMonitor = new SessionMonitor();
-                    sessionMonitor.start();
+    public static List<CommandResult> execShell(Session session,List<String> cmds,int connectTimeout,long timeout) throws Exception {
+        //打开通道
+        ChannelShell channelShell = openChannelShell(session);
+        List<CommandResult> results = new ArrayList<>();
+        try {
+            InputStream in = channelShell.getInputStream();
+            OutputStream out = channelShell.getOutputStream();
+            channelShell.connect(connectTimeout);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in,StandardCharsets.UTF_8));
+            for (int i = 0; i < cmds.size(); i++) {
+                String cmd = cmds.get(i).trim();
+                String id = String.valueOf(i);
+                long start = System.currentTimeMillis();
+                AtomicBoolean timedOut = new AtomicBoolean();
+                ScheduledFuture<?> timer = scheduler.schedule(() -> {
+                    timedOut.set(true);
+                    channelShell.disconnect();
+                },timeout,TimeUnit.MILLISECONDS);
+                try {
+                    out.write((cmd + "\n" + ShellSentinel.echo(id) + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    StringBuilder sb = new StringBuilder();
+                    String line;
+                    String[] marker = null;
+                    while ((line = reader.readLine()) != null) {
+                        marker = ShellSentinel.parse(line);
+                        if (marker != null && id.equals(marker[0])) break;
+                        sb.append(line).append("\n");
+                    }
+                    if (marker == null || !id.equals(marker[0])) {
+                        throw new IOException(timedOut.get() ? "命令执行超时（" + timeout + " ms）：" + cmd : "shell 通道已关闭：" + cmd);
+                    }
+                    results.add(new CommandResult(cmd,sb.toString(),"",ShellSentinel.exitCode(marker),System.currentTimeMillis() - start));
+                } catch (IOException e) {
+                    if (timedOut.get()) throw new IOException("命令执行超时（" + timeout + " ms）：" + cmd);
+                    throw e;
+                } finally {
+                    timer.cancel(false);
                 }
             }
+            return results;
+        } finally {
+            //关闭通道
+            closeChannelShell(channelShell);
         }
     }
 
     /**
-     * 监控文件传输
+     * exec 通道结束的通知
+     * 作为通道的错误输出，JSch 在通道关闭时（已经收到退出码）会关闭错误输出流，关闭时唤醒等待的线程，不需要轮询 isClosed
      */
-    static class FileSftpProgressMonitor extends TimerTask implements SftpProgressMonitor {
-
-        private Log log;
-        private long progressInterval =  1000; // 默认间隔时候为1秒
-
-        private boolean isEnd = false; // 记录传输是否停止
-
-        private long transfered; // 记录已传输的数据总大小
-
-        private long fileSize; // 记录文件总大小
+    static class ExecCompletion extends FilterOutputStream {
+        private final ChannelExec channelExec;
+        private final CountDownLatch closed = new CountDownLatch(1);
 
-        private Timer timer; // 定时器对象
-
-        private boolean isScheduled = false; // 记录是否已启动timer定时器
-
-        private NumberFormat df = NumberFormat.getInstance(); //格式化
-
-        public FileSftpProgressMonitor(long fileSize) {
-            this.fileSize = fileSize;
-        }
-
-        public FileSftpProgressMonitor(long fileSize,Log log) {
-            this.fileSize = fileSize;
-            this.log = log;
+        /**
+         * @param error 命令的错误输出，通道关闭时一起关闭
+         */
+        ExecCompletion(ChannelExec channelExec,OutputStream error) {
+            super(error);
+            this.channelExec = channelExec;
+            channelExec.setErrStream(this);
         }
 
         @Override
-        public void run() {
-            if (!isEnd()) {
-                long transfered = getTransfered();
-                if (transfered != fileSize) {
-                    log.print("已上传: " + transfered + " bytes ");
-                    sendProgressMessage(transfered);
-                } else {
-//                    log.println("上传完成");
-                    setIsEnd(true);
-                }
-            } else {
-//                log.println("上传完成，关闭定时器");
-                stop(); // 若是传输停止，停止timer记时器
-            }
-        }
-
-        /**
-         * 定时器关闭
-         */
-        public void stop() {
-//            log.println("Try to stop progress monitor.");
-            if (timer != null) {
-                timer.cancel();
-                timer.purge();
-                timer = null;
-                isScheduled = false;
-            }
-//            log.println("Progress monitor stoped.");
+        public void write(byte[] b,int off,int len) throws IOException {
+            out.write(b,off,len);
         }
 
-        /**
-         * 定时器启动
-         */
-        public void start() {
-//            log.println("Try to start progress monitor.");
-            if (timer == null) {
-                timer = new Timer();
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                closed.countDown();
             }
-            timer.schedule(this,1000,progressInterval);
-            isScheduled = true;
-//            log.println("Progress monitor started.");
         }
 
         /**
-         * 传输进度
+         * 等待通道关闭，超时后结束命令、关闭通道并抛出异常
          *
-         * @param transfered
+         * @param timeout 超时时间（毫秒）
+         * @return 命令的退出码
          */
-        private void sendProgressMessage(long transfered) {
-            if (fileSize != 0) {
-                double d = ((double) transfered * 100) / (double) fileSize;
-                log.println("已上传: " + df.format(d) + "%");
-            } else {
-                log.println("Sending progress message: " + transfered);
+        int await(long timeout,String cmd) throws IOException, InterruptedException {
+            if (!closed.await(timeout,TimeUnit.MILLISECONDS)) {
+                kill(channelExec);
+                throw new IOException("命令执行超时（" + timeout + " ms）：" + cmd);
             }
+            return channelExec.getExitStatus();
         }
-
-        @Override
-        public void init(int i,String s,String s1,long l) {
-//            log.println("transfering start.");
-        }
-
-        @Override
-        public boolean count(long l) {
-            if (isEnd()) {
-                return false;
-            }
-            if (!getIsScheduled()) {
-                start();
-            }
-            add(l);
-            return true;
-        }
-
-        @Override
-        public void end() {
-            setIsEnd(false);
-//            log.println("transfering end.");
-        }
-
-
-        private synchronized void add(long count) {
-            transfered = transfered + count;
-        }
-
-        public synchronized boolean isEnd() {
-            return isEnd;
-        }
-
-        public synchronized void setIsEnd(boolean isEnd) {
-            this.isEnd = isEnd;
-        }
-
-        public synchronized long getTransfered() {
-            return transfered;
-        }
-
-        public synchronized void setTransfered(long transfered) {
-            this.transfered = transfered;
-        }
-
-
-        public synchronized boolean getIsScheduled() {
-            return isScheduled;
-        }
-
-        public synchronized void setIsScheduled(boolean isScheduled) {
-            this.isScheduled = isScheduled;
-        }
-
-
     }
 
     /**
-     * 定时器，定时清除失效的session
+     * 同时写入两个输出流
      */
-    static class SessionMonitor extends TimerTask {
+    static class TeeOutputStream extends OutputStream {
+        private final OutputStream first;
+        private final OutputStream second;
 
-        private Timer timer; // 定时器对象
-        private long progressInterval = 30 * 1000; // 默认间隔时候为30秒
+        TeeOutputStream(OutputStream first,OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
 
         @Override
-        public void run() {
-            if (!cache.isEmpty()) {
-                Iterator iterator = cache.keySet().iterator();
-                while (iterator.hasNext()) {
-                    String key = (String) iterator.next();
-                    //清除失效session
-                    if (testSessionIsDown(key)) {
-                        closeLongSessionByKey(key);
-                    }
-                }
-            }
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
         }
 
-        public void start() {
-            if (timer == null) {
-                timer = new Timer();
-            }
-            timer.schedule(this,1000,progressInterval);
+        @Override
+        public void write(byte[] b,int off,int len) throws IOException {
+            first.write(b,off,len);
+            second.write(b,off,len);
         }
 
-        public void stop() {
-            if (timer != null) {
-                timer.cancel();
-                timer.purge();
-                timer = null;
-            }
+        @Override
+        public void close() throws IOException {
+            first.close();
+            second.close();
         }
     }
 }
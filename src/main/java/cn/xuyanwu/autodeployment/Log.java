@@ -1,9 +1,25 @@
 package cn.xuyanwu.autodeployment;
 
+import java.nio.charset.StandardCharsets;
+
 public interface Log {
     void print(String str);
 
     default void println(String str) {
         print(str + "\n");
     }
+
+    /**
+     * 输出 UTF-8 编码的日志，调用方需要保证不截断多字节字符
+     */
+    default void write(byte[] b,int off,int len) {
+        print(new String(b,off,len,StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 一台主机的日志，日志存储用来记录日志来源，默认就是当前对象
+     */
+    default Log forHost(String host) {
+        return this;
+    }
 }
@@ -0,0 +1,91 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.util.StrUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 在服务器上过滤启动日志
+ * 查看日志的命令输出到服务器上的 awk，按日志级别、包含和排除的正则表达式过滤，超过每秒行数的部分丢弃，
+ * 只有留下的行通过 ssh 发送；匹配到启动成功或失败的日志后输出标记并结束，部署随之结束，不再一直输出日志
+ */
+public class LogFilter {
+    static final String MARKER = "__AUTO_DEPLOYMENT_LOG_";
+    private static final byte[] MARKER_BYTES = MARKER.getBytes(StandardCharsets.US_ASCII);
+    static final List<String> LEVELS = Arrays.asList("TRACE","DEBUG","INFO","WARN","ERROR","FATAL");
+    //mawk 从管道读取时会等读满缓冲区才处理，需要 -W interactive 逐行读取；gawk 和 busybox awk 不需要
+    private static final String AWK = "$(awk -W version 2>&1 | grep -q mawk && echo awk -W interactive || echo awk)";
+    //没有级别的行（例如异常堆栈）和上一条有级别的日志一起保留或丢弃；标记拆成两段，避免回显的命令被识别为标记
+    private static final String SCRIPT = "function out(s) { print s; fflush(); shown++ } " +
+            "function done(r) { if (skip) print \"[日志输出过快，已跳过 \" skip \" 行]\"; print \"[日志过滤：读取 \" total \" 行，输出 \" shown \" 行]\"; print \"" + MARKER.substring(0,10) + "\" \"" + MARKER.substring(10) + "\" r; fflush(); exit } " +
+            "BEGIN { split(\"TRACE DEBUG INFO WARN ERROR FATAL\",names,\" \"); for (i = 1; i <= 6; i++) lv[names[i]] = i; lv[\"WARNING\"] = 4; lv[\"SEVERE\"] = 5; " +
+            "min = ENVIRON[\"AD_LEVEL\"] == \"\" ? 0 : lv[ENVIRON[\"AD_LEVEL\"]]; inc = ENVIRON[\"AD_INCLUDE\"]; exc = ENVIRON[\"AD_EXCLUDE\"]; " +
+            "ok = ENVIRON[\"AD_STARTED\"]; bad = ENVIRON[\"AD_FAILED\"]; rate = ENVIRON[\"AD_RATE\"] + 0 } " +
+            "{ total++ } " +
+            "bad != \"\" && $0 ~ bad { out($0); done(\"FAILED\") } " +
+            "ok != \"\" && $0 ~ ok { out($0); done(\"STARTED\") } " +
+            "exc != \"\" && $0 ~ exc { next } " +
+            "{ if (min > 0 && match($0,/(^|[^A-Za-z])(TRACE|DEBUG|INFO|WARN|WARNING|ERROR|SEVERE|FATAL)([^A-Za-z]|$)/)) { l = substr($0,RSTART,RLENGTH); gsub(/[^A-Z]/,\"\",l); keep = lv[l] >= min } " +
+            "show = min > 0 ? keep : inc == \"\"; if (inc != \"\" && $0 ~ inc) show = 1; if (!show) next; " +
+            "if (rate > 0) { srand(); now = srand(); if (now != sec) { if (skip) print \"[日志输出过快，已跳过 \" skip \" 行]\"; sec = now; n = 0; skip = 0 } if (++n > rate) { skip++; next } } " +
+            "out($0) }";
+
+    /**
+     * 是否配置了过滤条件
+     */
+    public static boolean isEnabled(Config config) {
+        return StrUtil.isNotBlank(config.getLogLevel()) || StrUtil.isNotBlank(config.getLogInclude()) || StrUtil.isNotBlank(config.getLogExclude())
+                || config.getLogRate() != null || StrUtil.isNotBlank(config.getStartedPattern()) || StrUtil.isNotBlank(config.getFailedPattern());
+    }
+
+    /**
+     * 查看日志的命令，配置了过滤条件时输出到服务器上的 awk
+     * 正则表达式是 awk 的扩展正则表达式（ERE），通过环境变量传给 awk，不需要转义反斜杠
+     */
+    public static String command(Config config) {
+        String logCMD = config.getLogCMD();
+        if (!isEnabled(config)) {
+            return logCMD;
+        }
+        StringBuilder cmd = new StringBuilder("{ ").append(logCMD).append("; } |");
+        env(cmd,"AD_LEVEL",config.getLogLevel() == null ? null : config.getLogLevel().trim().toUpperCase());
+        env(cmd,"AD_INCLUDE",config.getLogInclude());
+        env(cmd,"AD_EXCLUDE",config.getLogExclude());
+        env(cmd,"AD_STARTED",config.getStartedPattern());
+        env(cmd,"AD_FAILED",config.getFailedPattern());
+        env(cmd,"AD_RATE",config.getLogRate() == null ? null : String.valueOf(config.getLogRate()));
+        return cmd.append(' ').append(AWK).append(" '").append(SCRIPT).append("'").toString();
+    }
+
+    private static void env(StringBuilder cmd,String name,String value) {
+        if (StrUtil.isNotBlank(value)) {
+            cmd.append(' ').append(name).append("='").append(value.replace("'","'\\''")).append("'");
+        }
+    }
+
+    /**
+     * 判断一行 UTF-8 编码的输出是否为结束标记，不需要先解码为字符串
+     */
+    public static boolean isMarker(byte[] b,int off,int len) {
+        int end = off + len;
+        while (off < end && (b[off] == ' ' || b[off] == '\t' || b[off] == '\r')) off++;
+        if (end - off < MARKER_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < MARKER_BYTES.length; i++) {
+            if (b[off + i] != MARKER_BYTES[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 解析结束标记
+     *
+     * @return 是否启动成功
+     */
+    public static boolean isStarted(String line) {
+        return line.trim().equals(MARKER + "STARTED");
+    }
+}
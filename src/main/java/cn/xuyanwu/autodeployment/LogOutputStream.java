@@ -0,0 +1,46 @@
+package cn.xuyanwu.autodeployment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * 把写入的数据按行输出到 Log 的输出流，避免多字节字符被截断
+ */
+public class LogOutputStream extends OutputStream {
+    private final Log log;
+    private final Charset charset;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    public LogOutputStream(Log log,Charset charset) {
+        this.log = log;
+        this.charset = charset;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        line.write(b);
+        if (b == '\n') {
+            flushLine();
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b,int off,int len) {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (line.size() > 0) {
+            flushLine();
+        }
+    }
+
+    private void flushLine() {
+        log.print(new String(line.toByteArray(),charset));
+        line.reset();
+    }
+}
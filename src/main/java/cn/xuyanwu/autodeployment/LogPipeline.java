@@ -0,0 +1,165 @@
+package cn.xuyanwu.autodeployment;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 有界的日志管道
+ * 日志先以字节形式写入固定大小的环形缓冲区，再由定时任务按固定频率批量解码后一次性输出，
+ * 日志产生的速度超过输出速度时丢弃整行日志，并输出跳过的行数，内存占用不会随日志量增长
+ */
+public class LogPipeline implements Log {
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r,"AutoDeployment-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int DEFAULT_CAPACITY = 1024 * 1024;    //默认缓冲 1MB
+    private static final int DEFAULT_BATCH_SIZE = 64 * 1024;    //每次最多输出 64KB
+    private static final long DEFAULT_INTERVAL = 100;   //每 100 毫秒输出一次
+
+    private final Log log;
+    private final byte[] ring;
+    private int head;   //下一个读取的位置
+    private int size;   //缓冲区中的字节数
+    private boolean dropping;   //正在丢弃一行日志的剩余部分
+    private long skippedLines;  //等待输出的跳过行数
+    private long totalSkippedLines;
+    private final ByteBuffer in;
+    private final CharBuffer out;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ScheduledFuture<?> future;
+
+    public LogPipeline(Log log) {
+        this(log,DEFAULT_CAPACITY,DEFAULT_BATCH_SIZE,DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param log       最终输出日志的对象
+     * @param capacity  缓冲区大小（字节）
+     * @param batchSize 每次最多输出的字节数
+     * @param interval  输出间隔（毫秒）
+     */
+    public LogPipeline(Log log,int capacity,int batchSize,long interval) {
+        this.log = log;
+        this.ring = new byte[capacity];
+        this.in = ByteBuffer.allocate(batchSize + 8);
+        this.out = CharBuffer.allocate(batchSize + 8);
+        this.future = scheduler.scheduleWithFixedDelay(this::flush,interval,interval,TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void print(String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        write(bytes,0,bytes.length);
+    }
+
+    /**
+     * 写入日志，缓冲区放不下时丢弃整行日志
+     */
+    @Override
+    public synchronized void write(byte[] b,int off,int len) {
+        int end = off + len;
+        if (dropping) {
+            //跳过上一行被丢弃的剩余部分
+            while (off < end && b[off] != '\n') off++;
+            if (off == end) return;
+            off++;
+            dropping = false;
+        }
+        len = end - off;
+        byte[] notice = skippedLines > 0 ? notice() : null;
+        if (len + (notice == null ? 0 : notice.length) <= ring.length - size) {
+            if (notice != null) {
+                //在丢弃日志的位置输出跳过的行数
+                put(notice,0,notice.length);
+                totalSkippedLines += skippedLines;
+                skippedLines = 0;
+            }
+            put(b,off,len);
+            return;
+        }
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') skippedLines++;
+        }
+        if (len > 0 && b[end - 1] != '\n') {
+            skippedLines++;
+            dropping = true;
+        }
+    }
+
+    private void put(byte[] b,int off,int len) {
+        int tail = (head + size) % ring.length;
+        int first = Math.min(len,ring.length - tail);
+        System.arraycopy(b,off,ring,tail,first);
+        System.arraycopy(b,off + first,ring,0,len - first);
+        size += len;
+    }
+
+    private byte[] notice() {
+        boolean newLine = size > 0 && ring[(head + size - 1) % ring.length] != '\n';
+        return ((newLine ? "\n" : "") + "[日志输出过快，已跳过 " + skippedLines + " 行]\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 批量输出缓冲区中的日志
+     */
+    public void flush() {
+        String text;
+        synchronized (this) {
+            if (size == 0 && skippedLines == 0) {
+                return;
+            }
+            int n = Math.min(size,in.remaining());
+            int first = Math.min(n,ring.length - head);
+            in.put(ring,head,first);
+            in.put(ring,0,n - first);
+            head = (head + n) % ring.length;
+            size -= n;
+            in.flip();
+            decoder.decode(in,out,false);   //不完整的多字节字符留到下一次解码
+            in.compact();
+            out.flip();
+            text = out.toString();
+            out.clear();
+            if (size == 0 && skippedLines > 0) {
+                //缓冲区已输出完，没有新的日志写入时直接输出跳过的行数
+                text = text + (text.isEmpty() || text.endsWith("\n") ? "" : "\n") + new String(notice(),StandardCharsets.UTF_8);
+                totalSkippedLines += skippedLines;
+                skippedLines = 0;
+            }
+        }
+        if (!text.isEmpty()) {
+            log.print(text);
+        }
+    }
+
+    /**
+     * 累计跳过的日志行数
+     */
+    public synchronized long getSkippedLines() {
+        return totalSkippedLines + skippedLines;
+    }
+
+    /**
+     * 输出剩余的日志并停止定时输出
+     */
+    public void close() {
+        future.cancel(false);
+        while (true) {
+            synchronized (this) {
+                if (size == 0 && skippedLines == 0) break;
+            }
+            flush();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package cn.xuyanwu.autodeployment;
+
+/**
+ * 给每一行日志加上前缀的 Log，多台主机同时部署时用来区分日志来源
+ * 不完整的行会先缓存起来，遇到换行后整行输出，避免多台主机的日志交叉在同一行
+ */
+public class PrefixLog implements Log {
+    private final String prefix;
+    private final Log log;
+    private final StringBuilder buffer = new StringBuilder();
+
+    public PrefixLog(String prefix,Log log) {
+        this.prefix = prefix;
+        this.log = log;
+    }
+
+    @Override
+    public synchronized void print(String str) {
+        buffer.append(str);
+        int index;
+        while ((index = buffer.indexOf("\n")) >= 0) {
+            log.print(prefix + buffer.substring(0,index + 1));
+            buffer.delete(0,index + 1);
+        }
+    }
+}
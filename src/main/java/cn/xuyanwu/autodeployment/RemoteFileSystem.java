@@ -0,0 +1,380 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个 session 一个的远程文件系统
+ * sftp 通道用完后放回空闲列表，下次直接复用，不需要每次打开和关闭通道；
+ * 缓存目录的属性，上传前按缓存一次创建所有缺少的目录，通过这里写入或删除时清除对应的缓存
+ * 通道不是线程安全的，每次操作独占一个通道，多个线程同时操作时会同时打开多个通道
+ */
+public class RemoteFileSystem {
+    private static final int MAX_IDLE_CHANNELS = 4;     //每个 session 最多保留的空闲通道数
+    private static final long CACHE_TTL = 60 * 1000;    //目录缓存60秒后失效，避免 shell 命令修改目录后一直使用旧的缓存
+    private static final Map<Session, RemoteFileSystem> instances = new HashMap<>();
+    private static final AtomicLong opened = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+    private static final AtomicLong cacheHits = new AtomicLong();
+
+    private final Session session;
+    private final Deque<ChannelSftp> idle = new ConcurrentLinkedDeque<>();
+    private final Map<String, Directory> directories = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private RemoteFileSystem(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * 获取 session 对应的远程文件系统，session 断开后需要调用 {@link #release(Session)}
+     */
+    public static RemoteFileSystem of(Session session) {
+        synchronized (instances) {
+            instances.entrySet().removeIf(entry -> {
+                if (entry.getKey().isConnected()) return false;
+                entry.getValue().close();
+                return true;
+            });
+            return instances.computeIfAbsent(session,RemoteFileSystem::new);
+        }
+    }
+
+    /**
+     * 关闭 session 对应的通道并清除缓存
+     */
+    public static void release(Session session) {
+        RemoteFileSystem fileSystem;
+        synchronized (instances) {
+            fileSystem = instances.remove(session);
+        }
+        if (fileSystem != null) {
+            fileSystem.close();
+        }
+    }
+
+    /**
+     * 使用一个通道执行操作，完成后放回空闲列表
+     * 服务器返回错误状态的 {@link SftpException} 时通道仍然可用；读写中断或出错时 jsch 也会包装为 SftpException，
+     * 这时通道中可能还有没有读取的响应，和其它异常一样关闭通道
+     */
+    public <T> T execute(Callback<T> callback) throws Exception {
+        ChannelSftp channel = acquire();
+        boolean reusable = false;
+        try {
+            T result = callback.doInSftp(channel);
+            reusable = true;
+            return result;
+        } catch (SftpException e) {
+            reusable = e.getCause() == null && !Thread.currentThread().isInterrupted();
+            throw e;
+        } finally {
+            if (reusable) {
+                release(channel);
+            } else {
+                LinuxConnetionHelper.closeChannelSftp(channel);
+            }
+        }
+    }
+
+    private ChannelSftp acquire() throws Exception {
+        if (closed || !session.isConnected()) {
+            throw new IOException("session 已关闭");
+        }
+        ChannelSftp channel;
+        while ((channel = idle.pollFirst()) != null) {
+            if (channel.isConnected()) {
+                reused.incrementAndGet();
+                return channel;
+            }
+        }
+        opened.incrementAndGet();
+        return LinuxConnetionHelper.openChannelSftp(session);
+    }
+
+    private void release(ChannelSftp channel) {
+        if (!closed && channel.isConnected() && idle.size() < MAX_IDLE_CHANNELS) {
+            idle.offerFirst(channel);
+            if (closed && idle.remove(channel)) {
+                channel.disconnect();
+            }
+        } else {
+            channel.disconnect();
+        }
+    }
+
+    /**
+     * 读取文件属性，目录的属性会缓存
+     *
+     * @return 不存在时返回 null
+     */
+    public SftpATTRS stat(String path) throws Exception {
+        String normalized = normalize(path);
+        Directory directory = getDirectory(normalized);
+        if (directory != null && directory.attrs != null) {
+            cacheHits.incrementAndGet();
+            return directory.attrs;
+        }
+        return execute(channel -> stat(channel,normalized));
+    }
+
+    /**
+     * 读取文件属性，不跟随链接，不缓存
+     *
+     * @return 不存在时返回 null
+     */
+    public SftpATTRS lstat(String path) throws Exception {
+        return execute(channel -> {
+            try {
+                return channel.lstat(path);
+            } catch (SftpException e) {
+                if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) return null;
+                throw e;
+            }
+        });
+    }
+
+    public boolean exists(String path) throws Exception {
+        return stat(path) != null;
+    }
+
+    public boolean isDirectory(String path) throws Exception {
+        if (getDirectory(normalize(path)) != null) {
+            cacheHits.incrementAndGet();
+            return true;
+        }
+        SftpATTRS attrs = stat(path);
+        return attrs != null && attrs.isDir();
+    }
+
+    /**
+     * 读取链接指向的路径
+     *
+     * @return 不是链接或不存在时返回 null
+     */
+    public String readlink(String path) throws Exception {
+        return execute(channel -> {
+            try {
+                return channel.lstat(path).isLink() ? channel.readlink(path) : null;
+            } catch (SftpException e) {
+                if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) return null;
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * 创建目录及所有缺少的上级目录，已缓存的目录不再访问服务器
+     */
+    public void mkdirs(String path) throws Exception {
+        String normalized = normalize(path);
+        if (isRoot(normalized) || getDirectory(normalized) != null) {
+            cacheHits.incrementAndGet();
+            return;
+        }
+        execute(channel -> {
+            mkdirs(channel,normalized);
+            return null;
+        });
+    }
+
+    /**
+     * 从最深的目录向上找到第一个存在的目录，再从这里逐级创建
+     */
+    private void mkdirs(ChannelSftp channel,String path) throws SftpException {
+        Deque<String> missing = new ArrayDeque<>();
+        String current = path;
+        while (!isRoot(current) && getDirectory(current) == null) {
+            SftpATTRS attrs = stat(channel,current);
+            if (attrs != null) {
+                if (!attrs.isDir()) {
+                    throw new SftpException(ChannelSftp.SSH_FX_FAILURE,"不是目录：" + current);
+                }
+                break;
+            }
+            missing.push(current);
+            current = parent(current);
+        }
+        while (!missing.isEmpty()) {
+            String directory = missing.pop();
+            try {
+                channel.mkdir(directory);
+            } catch (SftpException e) {
+                //其它线程或命令可能已经创建了这个目录
+                SftpATTRS attrs = stat(channel,directory);
+                if (attrs == null || !attrs.isDir()) {
+                    throw e;
+                }
+            }
+            directories.put(directory,new Directory(null));
+        }
+    }
+
+    private SftpATTRS stat(ChannelSftp channel,String path) throws SftpException {
+        try {
+            SftpATTRS attrs = channel.stat(path);
+            if (attrs.isDir()) {
+                directories.put(path,new Directory(attrs));
+            }
+            return attrs;
+        } catch (SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                directories.remove(path);
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 上传文件，先创建所在的目录
+     * 缓存中的目录已经被 shell 命令删除时，清除缓存后重新创建目录再上传一次
+     */
+    public void put(InputStream input,String remoteFile,SftpProgressMonitor monitor,int mode) throws Exception {
+        String path = normalize(remoteFile);
+        String parent = parent(path);
+        mkdirs(parent);
+        try {
+            execute(channel -> {
+                channel.put(input,path,monitor,mode);
+                return null;
+            });
+        } catch (SftpException e) {
+            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                throw e;
+            }
+            invalidate(parent);
+            mkdirs(parent);
+            execute(channel -> {
+                channel.put(input,path,monitor,mode);
+                return null;
+            });
+        }
+    }
+
+    public void get(String remoteFile,OutputStream output,SftpProgressMonitor monitor) throws Exception {
+        execute(channel -> {
+            channel.get(remoteFile,output,monitor);
+            return null;
+        });
+    }
+
+    /**
+     * 逐条列出目录中的文件，目录不存在时不会调用 selector
+     */
+    public void ls(String path,ChannelSftp.LsEntrySelector selector) throws Exception {
+        execute(channel -> {
+            try {
+                channel.ls(path,selector);
+            } catch (SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) throw e;
+            }
+            return null;
+        });
+    }
+
+    public void rm(String path) throws Exception {
+        invalidate(path);
+        execute(channel -> {
+            channel.rm(path);
+            return null;
+        });
+    }
+
+    public void rmdir(String path) throws Exception {
+        invalidate(path);
+        execute(channel -> {
+            channel.rmdir(path);
+            return null;
+        });
+    }
+
+    public void rename(String from,String to) throws Exception {
+        invalidate(from);
+        invalidate(to);
+        execute(channel -> {
+            channel.rename(from,to);
+            return null;
+        });
+    }
+
+    /**
+     * 清除路径及其下所有路径的缓存
+     */
+    public void invalidate(String path) {
+        String normalized = normalize(path);
+        directories.keySet().removeIf(key -> key.equals(normalized) || key.startsWith(normalized + "/"));
+    }
+
+    private Directory getDirectory(String path) {
+        Directory directory = directories.get(path);
+        if (directory != null && System.currentTimeMillis() - directory.time > CACHE_TTL) {
+            directories.remove(path,directory);
+            return null;
+        }
+        return directory;
+    }
+
+    /**
+     * 关闭所有空闲通道并清除缓存
+     */
+    public void close() {
+        closed = true;
+        ChannelSftp channel;
+        while ((channel = idle.pollFirst()) != null) {
+            channel.disconnect();
+        }
+        directories.clear();
+    }
+
+    /**
+     * sftp 通道的打开和复用次数
+     */
+    public static String getStats() {
+        return String.format("sftp 通道：新建 %d，复用 %d，目录缓存命中 %d",opened.get(),reused.get(),cacheHits.get());
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.replaceAll("/{2,}","/");
+        return normalized.length() > 1 && normalized.endsWith("/") ? normalized.substring(0,normalized.length() - 1) : normalized;
+    }
+
+    private static String parent(String path) {
+        int index = path.lastIndexOf('/');
+        return index <= 0 ? (index == 0 ? "/" : "") : path.substring(0,index);
+    }
+
+    private static boolean isRoot(String path) {
+        return path.isEmpty() || "/".equals(path) || ".".equals(path);
+    }
+
+    /**
+     * 使用 sftp 通道的操作
+     */
+    public interface Callback<T> {
+        T doInSftp(ChannelSftp channel) throws Exception;
+    }
+
+    private static class Directory {
+        private final SftpATTRS attrs;      //创建目录后没有读取属性时为空
+        private final long time = System.currentTimeMillis();
+
+        private Directory(SftpATTRS attrs) {
+            this.attrs = attrs;
+        }
+    }
+}
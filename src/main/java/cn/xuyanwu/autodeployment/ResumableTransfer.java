@@ -0,0 +1,224 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.util.HexUtil;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 可以断点续传的 sftp 上传和下载
+ * 传输中的文件使用固定的临时名称（.part），连接断开后临时文件保留，下次传输同一个文件时
+ * 先比较已传输部分的 md5，一致时从临时文件的大小处继续传输，完成后校验整个文件的 md5 再重命名为目标文件
+ */
+public class ResumableTransfer {
+    private static final String PART = ".part";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long TIME_OUT = 10 * 60 * 1000;   //服务器计算 md5 最长等待10分钟
+
+    /**
+     * 上传文件，服务器上有这个文件之前未完成的上传时继续上传
+     * 临时文件和目标文件在同一个目录，名称由本地文件的路径、大小和修改时间确定，本地文件修改后重新上传
+     *
+     * @param localFile  本地文件路径
+     * @param remoteFile 远程服务器文件地址
+     * @param log        输出进度的日志，为空时只通知进度监听器
+     */
+    public static void upload(Session session,String localFile,String remoteFile,Log log) throws Exception {
+        upload(session,localFile,remoteFile,null,log);
+    }
+
+    /**
+     * 上传文件，临时文件放在 partPath 中，校验后再移动到 remoteFile
+     * 目标目录每次都不同时（发布目录模式），临时文件放在固定的目录中，下次部署才能继续上传
+     *
+     * @param partPath 临时文件所在目录，以 / 结尾，需要和 remoteFile 在同一个文件系统；为空时使用 remoteFile 所在目录
+     */
+    public static void upload(Session session,String localFile,String remoteFile,String partPath,Log log) throws Exception {
+        File file = new File(localFile);
+        long length = file.length();
+        String remotePath = partPath == null ? remoteFile.substring(0,remoteFile.lastIndexOf("/") + 1) : partPath;
+        String partPrefix = remotePath + "." + file.getName() + ".";
+        String partFile = partPrefix + key(file.getAbsolutePath(),length,file.lastModified()) + PART;
+        RemoteFileSystem fileSystem = RemoteFileSystem.of(session);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+
+        SftpATTRS attrs = fileSystem.stat(partFile);
+        long offset = attrs == null ? 0 : attrs.getSize();
+        InputStream input = new BufferedInputStream(new FileInputStream(file),BUFFER_SIZE);
+        try {
+            if (offset > 0) {
+                //读取本地文件相同长度的部分，同时计算 md5，校验通过后从这里继续读取
+                String localMd5 = offset > length ? null : digest(md5,input,offset);
+                if (localMd5 != null && localMd5.equals(remoteMd5(session,"md5sum < " + partFile))) {
+                    println(log,String.format("从 %s 处继续上传，已上传部分校验通过：%s",TransferProgress.formatSize(offset),partFile));
+                } else {
+                    println(log,"未完成的上传校验不通过，重新上传：" + partFile);
+                    fileSystem.rm(partFile);
+                    md5.reset();
+                    input.close();
+                    input = new BufferedInputStream(new FileInputStream(file),BUFFER_SIZE);
+                    offset = 0;
+                }
+            }
+            TransferProgress progress = new TransferProgress("上传",length - offset,log);
+            try {
+                //输入流已经跳过 offset，使用 APPEND 从临时文件末尾继续写入
+                fileSystem.put(new DigestInputStream(input,md5),partFile,progress,offset > 0 ? ChannelSftp.APPEND : ChannelSftp.OVERWRITE);
+            } finally {
+                progress.finish();
+            }
+        } finally {
+            input.close();
+        }
+
+        verify(session,partFile,length,HexUtil.encodeHexStr(md5.digest()));
+        try {
+            fileSystem.rename(partFile,remoteFile);
+        } catch (SftpException e) {
+            //服务器不支持 posix-rename 扩展时目标文件存在会重命名失败
+            fileSystem.rm(remoteFile);
+            fileSystem.rename(partFile,remoteFile);
+        }
+        //删除本地文件修改前留下的未完成的上传
+        List<String> stale = new ArrayList<>();
+        fileSystem.ls(partPrefix + "*" + PART,entry -> {
+            stale.add(remotePath + entry.getFilename());
+            return ChannelSftp.LsEntrySelector.CONTINUE;
+        });
+        for (String path : stale) {
+            fileSystem.rm(path);
+        }
+    }
+
+    /**
+     * 下载文件，本地有这个文件之前未完成的下载时继续下载
+     * 下载到目标文件所在目录的 &lt;文件名&gt;.part 中，完成并校验后再替换目标文件，重试时不会清空已下载的部分
+     *
+     * @param remoteFile 远程服务器文件地址
+     * @param localFile  本地文件路径
+     */
+    public static void download(Session session,String remoteFile,String localFile,Log log) throws Exception {
+        File file = new File(localFile);
+        File partFile = new File(localFile + PART);
+        RemoteFileSystem fileSystem = RemoteFileSystem.of(session);
+        SftpATTRS attrs = fileSystem.stat(remoteFile);
+        if (attrs == null) {
+            throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE,"文件不存在：" + remoteFile);
+        }
+        long length = attrs.getSize();
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        long offset = partFile.isFile() ? partFile.length() : 0;
+        if (offset > 0) {
+            String localMd5 = null;
+            if (offset <= length) {
+                try (InputStream input = new FileInputStream(partFile)) {
+                    localMd5 = digest(md5,input,offset);
+                }
+            }
+            if (localMd5 != null && localMd5.equals(remoteMd5(session,String.format("head -c %d %s | md5sum",offset,remoteFile)))) {
+                println(log,String.format("从 %s 处继续下载，已下载部分校验通过：%s",TransferProgress.formatSize(offset),partFile));
+            } else {
+                println(log,"未完成的下载校验不通过，重新下载：" + partFile);
+                md5.reset();
+                offset = 0;
+            }
+        }
+        if (!file.getAbsoluteFile().getParentFile().exists()) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+
+        long skip = offset;
+        TransferProgress progress = new TransferProgress("下载",length - offset,log);
+        try (OutputStream output = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(partFile,offset > 0),BUFFER_SIZE),md5)) {
+            fileSystem.execute(channel -> {
+                channel.get(remoteFile,output,progress,skip > 0 ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE,skip);
+                return null;
+            });
+        } finally {
+            progress.finish();
+        }
+
+        String localMd5 = HexUtil.encodeHexStr(md5.digest());
+        String remoteMd5 = remoteMd5(session,"md5sum < " + remoteFile);
+        if (partFile.length() != length || (remoteMd5 != null && !remoteMd5.equals(localMd5))) {
+            Files.deleteIfExists(partFile.toPath());
+            throw new IOException(String.format("下载的文件校验失败：%s（%d 字节，md5 %s；服务器 %d 字节，md5 %s）",
+                    remoteFile,partFile.length(),localMd5,length,remoteMd5));
+        }
+        Files.move(partFile.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 校验上传的临时文件的大小和 md5，服务器上没有 md5sum 时只校验大小
+     */
+    private static void verify(Session session,String partFile,long length,String localMd5) throws Exception {
+        SftpATTRS attrs = RemoteFileSystem.of(session).stat(partFile);
+        long size = attrs == null ? -1 : attrs.getSize();
+        String remoteMd5 = remoteMd5(session,"md5sum < " + partFile);
+        if (size != length || (remoteMd5 != null && !remoteMd5.equals(localMd5))) {
+            RemoteFileSystem.of(session).rm(partFile);
+            throw new IOException(String.format("上传的文件校验失败：%s（%d 字节，md5 %s；本地 %d 字节，md5 %s）",partFile,size,remoteMd5,length,localMd5));
+        }
+    }
+
+    /**
+     * 在服务器上计算 md5
+     *
+     * @param cmd 输出 md5sum 结果的命令
+     * @return 无法计算时返回 null
+     */
+    private static String remoteMd5(Session session,String cmd) throws Exception {
+        CommandResult result;
+        try {
+            result = LinuxConnetionHelper.exec(session,cmd,TIME_OUT);
+        } catch (JSchException e) {
+            return null;    //服务器不允许执行命令，只有 sftp
+        }
+        String output = result.getStdout().trim();
+        return result.isSuccess() && output.length() >= 32 ? output.substring(0,32).toLowerCase() : null;
+    }
+
+    /**
+     * 读取输入流的前 length 个字节并累加到 md5 中
+     *
+     * @return 这部分数据的 md5，输入流不足 length 个字节时返回 null
+     */
+    private static String digest(MessageDigest md5,InputStream input,long length) throws Exception {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int len = input.read(buffer,0,(int) Math.min(buffer.length,remaining));
+            if (len == -1) {
+                return null;
+            }
+            md5.update(buffer,0,len);
+            remaining -= len;
+        }
+        //复制一份计算前缀的 md5，原对象继续累加后面的数据
+        return HexUtil.encodeHexStr(((MessageDigest) md5.clone()).digest());
+    }
+
+    /**
+     * 临时文件名称中的标识
+     */
+    private static String key(String path,long length,long lastModified) throws Exception {
+        byte[] value = (path + ":" + length + ":" + lastModified).getBytes(StandardCharsets.UTF_8);
+        return HexUtil.encodeHexStr(MessageDigest.getInstance("MD5").digest(value)).substring(0,12);
+    }
+
+    private static void println(Log log,String msg) {
+        if (log != null) log.println(msg);
+    }
+}
@@ -0,0 +1,282 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.io.FileUtil;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.*;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 部署脚本索引
+ * 启动时扫描一次部署脚本目录（包括子目录），之后根据文件系统的变更事件增量更新，
+ * 下拉列表只从内存中的索引读取，不再访问磁盘
+ * 默认目录中的 .roots 文件可以配置额外的部署脚本目录，每行一个，# 开头的是注释，修改后自动重新扫描
+ */
+public class ScriptIndex implements Disposable, BulkFileListener {
+    public static final String DEFAULT_ROOT = "autoDeployment"; //默认的部署脚本目录，相对于项目路径
+    public static final String ROOTS_FILE = ".roots";   //额外的部署脚本目录的配置文件，在默认目录中
+
+    private final Project project;
+    private final List<String> roots = new CopyOnWriteArrayList<>();
+    private final NavigableSet<String> paths = new ConcurrentSkipListSet<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> saveListeners = new CopyOnWriteArrayList<>();
+    private volatile Map<String, File> scripts = Collections.emptyMap();
+    private volatile boolean loaded;
+
+    public ScriptIndex(Project project) {
+        this.project = project;
+        roots.add(project.getBasePath() + "/" + DEFAULT_ROOT);
+        project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES,this);
+        loadRoots();
+    }
+
+    public static ScriptIndex getInstance(Project project) {
+        return project.getService(ScriptIndex.class);
+    }
+
+    /**
+     * 读取 .roots 中配置的目录，和默认目录一起作为部署脚本目录
+     */
+    private void loadRoots() {
+        List<String> list = new ArrayList<>();
+        list.add(DEFAULT_ROOT);
+        File file = new File(getRootsFile());
+        if (file.isFile()) {
+            for (String line : FileUtil.readUtf8Lines(file)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    list.add(line);
+                }
+            }
+        }
+        setRoots(list);
+    }
+
+    private String getRootsFile() {
+        return project.getBasePath() + "/" + DEFAULT_ROOT + "/" + ROOTS_FILE;
+    }
+
+    /**
+     * 设置部署脚本目录，相对路径相对于项目路径，和当前的目录相同时不重新扫描
+     */
+    private void setRoots(Collection<String> roots) {
+        List<String> list = new ArrayList<>();
+        for (String root : roots) {
+            String path = root.replace('\\','/');
+            path = path.startsWith("/") || path.matches("^[A-Za-z]:/.*") ? path : project.getBasePath() + "/" + path;
+            path = path.endsWith("/") ? path.substring(0,path.length() - 1) : path;
+            if (!list.contains(path)) {
+                list.add(path);
+            }
+        }
+        if (loaded && list.equals(this.roots)) {
+            return;
+        }
+        this.roots.clear();
+        this.roots.addAll(list);
+        rescan();
+    }
+
+    /**
+     * 在后台线程中重新扫描所有的部署脚本目录
+     */
+    public void rescan() {
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            List<VirtualFile> files = new ArrayList<>();
+            for (String root : roots) {
+                VirtualFile file = LocalFileSystem.getInstance().refreshAndFindFileByPath(root);
+                if (file != null) {
+                    files.add(file);
+                }
+            }
+            ApplicationManager.getApplication().runReadAction(() -> {
+                paths.clear();
+                files.forEach(this::add);
+            });
+            loaded = true;
+            changed();
+        });
+    }
+
+    /**
+     * 所有部署脚本，key 为下拉列表中显示的名称
+     */
+    public Map<String, File> getScripts() {
+        return scripts;
+    }
+
+    public File getScript(String name) {
+        return name == null ? null : scripts.get(name);
+    }
+
+    /**
+     * 是否已完成第一次扫描
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 添加索引变化的监听器，在后台线程或 EDT 中调用
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 添加保存项目中的文件的监听器，一批文件保存后调用一次，在后台线程或 EDT 中调用
+     */
+    public void addSaveListener(Runnable listener) {
+        saveListeners.add(listener);
+    }
+
+    public void removeSaveListener(Runnable listener) {
+        saveListeners.remove(listener);
+    }
+
+    @Override
+    public void after(@NotNull List<? extends VFileEvent> events) {
+        boolean changed = false;
+        boolean saved = false;
+        boolean rootsChanged = false;
+        String basePath = project.getBasePath() + "/";
+        String rootsFile = getRootsFile();
+        for (VFileEvent event : events) {
+            rootsChanged |= affects(event,rootsFile);
+            if (event instanceof VFileContentChangeEvent) {
+                saved |= ((VFileContentChangeEvent) event).isFromSave() && event.getPath().startsWith(basePath);
+            } else if (event instanceof VFileMoveEvent) {
+                changed |= remove(((VFileMoveEvent) event).getOldPath());
+                changed |= add(event.getFile());
+            } else if (event instanceof VFilePropertyChangeEvent) {
+                if (((VFilePropertyChangeEvent) event).isRename()) {
+                    changed |= remove(((VFilePropertyChangeEvent) event).getOldPath());
+                    changed |= add(event.getFile());
+                }
+            } else if (event instanceof VFileDeleteEvent) {
+                changed |= remove(event.getPath());
+            } else if (event instanceof VFileCopyEvent) {
+                changed |= add(((VFileCopyEvent) event).findCreatedFile());
+            } else if (event instanceof VFileCreateEvent) {
+                changed |= add(event.getFile());
+            }
+        }
+        if (rootsChanged) {
+            loadRoots();
+        }
+        if (changed) {
+            changed();
+        }
+        if (saved) {
+            saveListeners.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * 事件是否修改了 path，移动和重命名时比较原来的路径和新路径
+     */
+    private static boolean affects(VFileEvent event,String path) {
+        if (event instanceof VFileMoveEvent) {
+            return path.equals(((VFileMoveEvent) event).getOldPath()) || path.equals(((VFileMoveEvent) event).getNewPath());
+        }
+        if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+            return path.equals(((VFilePropertyChangeEvent) event).getOldPath()) || path.equals(((VFilePropertyChangeEvent) event).getNewPath());
+        }
+        return path.equals(event.getPath());
+    }
+
+    /**
+     * 添加文件或目录下的所有部署脚本
+     */
+    private boolean add(VirtualFile file) {
+        if (file == null || !file.isValid() || findRoot(file.getPath()) == null) {
+            return false;
+        }
+        if (!file.isDirectory()) {
+            return isScript(file.getName()) && paths.add(file.getPath());
+        }
+        boolean[] changed = {false};
+        VfsUtilCore.visitChildrenRecursively(file,new VirtualFileVisitor<Void>() {
+            @Override
+            public boolean visitFile(@NotNull VirtualFile child) {
+                if (!child.isDirectory() && isScript(child.getName())) {
+                    changed[0] |= paths.add(child.getPath());
+                }
+                return true;
+            }
+        });
+        return changed[0];
+    }
+
+    /**
+     * 删除文件或目录下的所有部署脚本
+     */
+    private boolean remove(String path) {
+        if (path == null || findRoot(path) == null) {
+            return false;
+        }
+        boolean changed = paths.remove(path);
+        Set<String> children = paths.subSet(path + "/",path + "/\uffff");
+        if (!children.isEmpty()) {
+            children.clear();
+            changed = true;
+        }
+        return changed;
+    }
+
+    private String findRoot(String path) {
+        for (String root : roots) {
+            if (path.equals(root) || path.startsWith(root + "/")) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isScript(String name) {
+        return name.endsWith(".sh") || name.endsWith(".json");
+    }
+
+    /**
+     * 重新生成下拉列表的名称并通知监听器
+     * 只有一个目录时显示相对于该目录的路径，多个目录时显示相对于项目的路径
+     */
+    private void changed() {
+        Map<String, File> map = new LinkedHashMap<>();
+        String basePath = project.getBasePath() + "/";
+        for (String path : paths) {
+            String root = findRoot(path);
+            if (root == null) {
+                continue;
+            }
+            String name;
+            if (roots.size() == 1) {
+                name = path.substring(root.length() + 1);
+            } else {
+                name = path.startsWith(basePath) ? path.substring(basePath.length()) : path;
+            }
+            map.put(name,new File(path));
+        }
+        scripts = Collections.unmodifiableMap(map);
+        listeners.forEach(Runnable::run);
+    }
+
+    @Override
+    public void dispose() {
+        listeners.clear();
+        saveListeners.clear();
+    }
+}
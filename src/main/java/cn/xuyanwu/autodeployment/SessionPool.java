@@ -0,0 +1,359 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ssh 连接池
+ * 按 用户@主机:端口 缓存已登录的 session，连续部署同一台主机时不需要重新建立连接、交换密钥和登录
+ * 空闲的 session 定时发送 keepalive 检查是否可用，超过空闲时间后关闭
+ * 也可以在部署之前预热：在后台登录主机，登录后的 session 作为空闲 session 放入连接池，部署时直接取出使用
+ */
+public class SessionPool {
+    private static final SessionPool instance = new SessionPool();
+
+    private final Map<String, HostPool> pools = new ConcurrentHashMap<>();
+    private final Map<Session, HostPool> borrowed = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Void>> warming = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService warmUpExecutor;
+    private volatile int maxSessionsPerHost = 8;    //每台主机最多的 session 数
+    private volatile long idleTimeout = 10 * 60 * 1000;  //空闲超过10分钟的 session 会被关闭
+    private final long checkInterval = 30 * 1000; //每30秒检查一次空闲的 session
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong connectTime = new AtomicLong();
+    private final AtomicLong warmUps = new AtomicLong();
+    private final AtomicLong warmHits = new AtomicLong();
+
+    private SessionPool() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r,"AutoDeployment-session-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check,checkInterval,checkInterval,TimeUnit.MILLISECONDS);
+        warmUpExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r,"AutoDeployment-session-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static SessionPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * 从连接池中取出一个已登录的 session，没有可用的 session 时新建一个
+     * 使用完后需要调用 {@link #release(Session)} 放回连接池
+     */
+    public Session borrow(Config config) throws JSchException, InterruptedException {
+        String key = key(config);
+        String credential = credential(config);
+        HostPool pool = pools.computeIfAbsent(key,k -> new HostPool());
+        //正在预热时等预热完成，不再同时建立另一个连接
+        CompletableFuture<Void> warmUp = warming.get(key);
+        if (warmUp != null) {
+            try {
+                warmUp.get(LinuxConnetionHelper.TIME_OUT,TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                //预热失败时重新连接
+            }
+        }
+        if (!pool.permits.tryAcquire(LinuxConnetionHelper.TIME_OUT,TimeUnit.MILLISECONDS)) {
+            throw new JSchException("等待连接超时，" + key + " 的连接数已达到上限：" + maxSessionsPerHost);
+        }
+        try {
+            PooledSession pooled;
+            while ((pooled = pool.idle.pollFirst()) != null) {
+                if (credential.equals(pooled.credential) && pooled.session.isConnected()) {
+                    hits.incrementAndGet();
+                    if (pooled.ttl > 0) warmHits.incrementAndGet();
+                    borrowed.put(pooled.session,pool);
+                    return pooled.session;
+                }
+                evict(pool,pooled.session);
+            }
+            misses.incrementAndGet();
+            long start = System.currentTimeMillis();
+            Session session = LinuxConnetionHelper.createSession(config);
+            connectTime.addAndGet(System.currentTimeMillis() - start);
+            pool.credentials.put(session,credential);
+            borrowed.put(session,pool);
+            return session;
+        } catch (JSchException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 预热连接：在后台登录主机，登录后的 session 作为空闲 session 放入连接池，超过 ttl 没有被取出时关闭
+     * 连接池中已经有这台主机可用的空闲 session 时只重新计算它的空闲时间；预热失败时忽略，部署时会重新连接
+     * 预热的 session 也计入每台主机的 session 数：已达到上限时不预热，登录期间占用一个许可
+     *
+     * @param ttl 预热的 session 空闲多久后关闭（毫秒），空闲检查每30秒一次，实际关闭的时间最多晚30秒
+     */
+    public void warmUp(Config config,long ttl) {
+        String key = key(config);
+        String credential = credential(config);
+        HostPool pool = pools.computeIfAbsent(key,k -> new HostPool());
+        for (PooledSession pooled : pool.idle) {
+            if (credential.equals(pooled.credential) && pooled.session.isConnected()) {
+                pooled.lastUsed = System.currentTimeMillis();
+                return;
+            }
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (warming.putIfAbsent(key,future) != null) {
+            return;
+        }
+        if (pool.inUse() + pool.idle.size() >= pool.limit || !pool.permits.tryAcquire()) {
+            warming.remove(key,future);
+            future.complete(null);
+            return;
+        }
+        warmUpExecutor.execute(() -> {
+            try {
+                Session session = LinuxConnetionHelper.createSession(config);
+                pool.credentials.put(session,credential);
+                pool.idle.offerLast(new PooledSession(session,credential,ttl));
+                warmUps.incrementAndGet();
+            } catch (Exception e) {
+                //主机无法连接或密码错误，部署时再输出错误
+            } finally {
+                pool.permits.release();
+                warming.remove(key,future);
+                future.complete(null);
+            }
+        });
+    }
+
+    /**
+     * 把 session 放回连接池，已断开的 session 直接丢弃
+     *
+     * @return session 是否由连接池管理
+     */
+    public boolean release(Session session) {
+        HostPool pool = borrowed.remove(session);
+        if (pool == null) {
+            return false;
+        }
+        if (session.isConnected()) {
+            pool.idle.offerFirst(new PooledSession(session,pool.credentials.get(session),0));
+        } else {
+            pool.credentials.remove(session);
+            evictions.incrementAndGet();
+        }
+        pool.permits.release();
+        return true;
+    }
+
+    /**
+     * 关闭 session，不再放回连接池
+     */
+    public void invalidate(Session session) {
+        HostPool pool = borrowed.remove(session);
+        RemoteFileSystem.release(session);
+        session.disconnect();
+        if (pool != null) {
+            pool.credentials.remove(session);
+            pool.permits.release();
+        }
+    }
+
+    /**
+     * 关闭所有空闲的 session
+     */
+    public void clear() {
+        for (HostPool pool : pools.values()) {
+            PooledSession pooled;
+            while ((pooled = pool.idle.pollFirst()) != null) {
+                evict(pool,pooled.session);
+            }
+        }
+    }
+
+    /**
+     * 检查空闲的 session：超过空闲时间的关闭，其余的发送 keepalive 确认连接可用
+     */
+    private void check() {
+        long now = System.currentTimeMillis();
+        for (HostPool pool : pools.values()) {
+            for (PooledSession pooled : pool.idle) {
+                boolean expired = now - pooled.lastUsed > (pooled.ttl > 0 ? pooled.ttl : idleTimeout);
+                if (!expired) {
+                    try {
+                        pooled.session.sendKeepAliveMsg();
+                        continue;
+                    } catch (Exception e) {
+                        //session is down
+                    }
+                }
+                if (pool.idle.remove(pooled)) {
+                    evict(pool,pooled.session);
+                }
+            }
+        }
+    }
+
+    private void evict(HostPool pool,Session session) {
+        RemoteFileSystem.release(session);
+        session.disconnect();
+        pool.credentials.remove(session);
+        evictions.incrementAndGet();
+    }
+
+    private static String key(Config config) {
+        return config.getUser() + "@" + config.getHost() + ":" + config.getPort();
+    }
+
+    /**
+     * 密码和传输参数的摘要，修改密码或加密、压缩配置后不再使用原来的 session
+     */
+    private static String credential(Config config) {
+        return hash(config.getPassword() + "\n" + config.getCiphers() + "\n" + config.getMacs() + "\n" + config.getSshCompression());
+    }
+
+    private static String hash(String password) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            byte[] digest = sha256.digest(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x",b));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 修改每台主机最多的 session 数，已有的主机立即生效：调小时正在使用的 session 不会被关闭，放回后才能再取出
+     */
+    public void setMaxSessionsPerHost(int maxSessionsPerHost) {
+        this.maxSessionsPerHost = maxSessionsPerHost;
+        for (HostPool pool : pools.values()) {
+            pool.resize(maxSessionsPerHost);
+        }
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getWarmUps() {
+        return warmUps.get();
+    }
+
+    /**
+     * 部署时取出预热的 session 的次数
+     */
+    public long getWarmHits() {
+        return warmHits.get();
+    }
+
+    /**
+     * 新建连接的平均耗时（毫秒）
+     */
+    public long getAverageConnectTime() {
+        long count = misses.get();
+        return count == 0 ? 0 : connectTime.get() / count;
+    }
+
+    /**
+     * 连接池统计信息
+     */
+    public String getStats() {
+        int idle = pools.values().stream().mapToInt(p -> p.idle.size()).sum();
+        return String.format("连接池：复用 %d 次，新建 %d 次，预热 %d 个（使用 %d 个），关闭 %d 个，空闲 %d 个，使用中 %d 个，平均建立连接耗时 %d ms",
+                getHits(),getMisses(),getWarmUps(),getWarmHits(),getEvictions(),idle,borrowed.size(),getAverageConnectTime());
+    }
+
+    /**
+     * 一台主机的连接池
+     */
+    private class HostPool {
+        private final Deque<PooledSession> idle = new ConcurrentLinkedDeque<>();
+        private final Map<Session, String> credentials = new ConcurrentHashMap<>();
+        private final ResizableSemaphore permits;
+        private volatile int limit;
+
+        private HostPool() {
+            limit = maxSessionsPerHost;
+            permits = new ResizableSemaphore(limit);
+        }
+
+        /**
+         * 正在使用和正在预热的 session 数
+         */
+        private int inUse() {
+            return limit - permits.availablePermits();
+        }
+
+        private synchronized void resize(int max) {
+            if (max > limit) {
+                permits.release(max - limit);
+            } else if (max < limit) {
+                permits.reducePermits(limit - max);
+            }
+            limit = max;
+        }
+    }
+
+    /**
+     * 可以减少许可数的 Semaphore，减少后可用的许可可能为负数，正在使用的许可归还后恢复
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * 连接池中空闲的 session
+     */
+    private static class PooledSession {
+        private final Session session;
+        private final String credential;
+        /* 预热的 session 的空闲时间，0 表示使用连接池的空闲时间 */
+        private final long ttl;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private PooledSession(Session session,String credential,long ttl) {
+            this.session = session;
+            this.credential = credential;
+            this.ttl = ttl;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统计 session 的网络流量
+ * 作为 session 的 SocketFactory 包装 socket 的输入输出流，统计实际收发的字节数（包括加密和压缩后的 ssh 协议数据），
+ * 部署时在每个阶段开始和结束时读取，用来计算各阶段的网络流量和吞吐量
+ */
+public class SessionTraffic implements SocketFactory {
+    private static final Map<Session, SessionTraffic> sessions = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final int timeout;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+
+    /**
+     * @param timeout 建立连接的超时时间（毫秒）
+     */
+    public SessionTraffic(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * 关联 session，之后可以通过 {@link #of(Session)} 获取
+     */
+    public void register(Session session) {
+        sessions.put(session,this);
+    }
+
+    /**
+     * session 的流量统计
+     *
+     * @return 不是通过 {@link LinuxConnetionHelper#createSession(Config)} 创建的 session 返回 null
+     */
+    public static SessionTraffic of(Session session) {
+        return session == null ? null : sessions.get(session);
+    }
+
+    @Override
+    public Socket createSocket(String host,int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host,port),timeout);
+        return socket;
+    }
+
+    @Override
+    public InputStream getInputStream(Socket socket) throws IOException {
+        return new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) received.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b,int off,int len) throws IOException {
+                int n = in.read(b,off,len);
+                if (n > 0) received.add(n);
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream(Socket socket) throws IOException {
+        return new FilterOutputStream(socket.getOutputStream()) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                sent.increment();
+            }
+
+            @Override
+            public void write(byte[] b,int off,int len) throws IOException {
+                out.write(b,off,len);
+                sent.add(len);
+            }
+        };
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    /**
+     * 收发的总字节数
+     */
+    public long getTotal() {
+        return sent.sum() + received.sum();
+    }
+}
@@ -0,0 +1,59 @@
+package cn.xuyanwu.autodeployment;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 在 shell 通道中判断命令是否执行完成
+ * 每条命令后追加一条输出标记和退出码的 echo 命令，读到标记时说明命令已执行完成
+ */
+public class ShellSentinel {
+    static final String MARKER = "__AUTO_DEPLOYMENT_DONE_";
+    private static final byte[] MARKER_BYTES = MARKER.getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 输出标记的命令，标记拆成两段，避免 shell 回显的命令本身被识别为标记
+     */
+    public static String echo(String id) {
+        return "echo " + MARKER.substring(0,10) + "\"\"" + MARKER.substring(10) + id + "_$?";
+    }
+
+    /**
+     * 解析标记行
+     *
+     * @return 标记的 id 和退出码，不是标记行时返回 null
+     */
+    public static String[] parse(String line) {
+        String msg = line.trim();
+        if (!msg.startsWith(MARKER)) {
+            return null;
+        }
+        String[] values = msg.substring(MARKER.length()).split("_");
+        return values.length == 2 ? values : new String[]{values[0],"-1"};
+    }
+
+    /**
+     * 判断一行 UTF-8 编码的输出是否为标记行，不需要先解码为字符串
+     */
+    public static boolean isMarker(byte[] b,int off,int len) {
+        int end = off + len;
+        while (off < end && (b[off] == ' ' || b[off] == '\t' || b[off] == '\r')) off++;
+        if (end - off < MARKER_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < MARKER_BYTES.length; i++) {
+            if (b[off + i] != MARKER_BYTES[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 解析退出码
+     */
+    public static int exitCode(String[] marker) {
+        try {
+            return Integer.parseInt(marker[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
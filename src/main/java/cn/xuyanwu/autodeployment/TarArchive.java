@@ -0,0 +1,316 @@
+package cn.xuyanwu.autodeployment;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * 本地文件夹的 tar 包，边读取文件边写出 tar 格式的数据，不在磁盘上生成临时文件
+ * 先遍历一次文件夹收集要上传的文件，写出时再逐个读取；保留文件权限和符号链接，
+ * 路径超过 100 字节时使用 GNU tar 的长文件名扩展，服务器上的 GNU tar 和 busybox tar 都可以解压
+ */
+public class TarArchive {
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;  //超过时大小使用 base-256 编码
+    private static final String LONG_LINK = "././@LongLink";
+    private static final int DEFAULT_FILE_MODE = 0644;      //不支持 posix 权限的系统上使用的默认权限
+    private static final int DEFAULT_DIR_MODE = 0755;
+
+    private final Path root;
+    private final List<Entry> entries = new ArrayList<>();
+    private long length;
+    private int fileCount;
+
+    private TarArchive(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * 遍历文件夹，收集要打包的文件
+     * 规则中不包含 / 时匹配任意层级的文件名，包含 / 时匹配相对于文件夹的路径（例如 /static 只匹配根目录下的 static）；
+     * ** 匹配多层目录，* 和 ? 不匹配 /，{a,b} 匹配其中一个
+     *
+     * @param includes 只打包匹配的文件，为空时打包所有文件
+     * @param excludes 不打包匹配的文件和文件夹，优先于 includes
+     */
+    public static TarArchive scan(File directory,List<String> includes,List<String> excludes) throws IOException {
+        Path root = directory.toPath();
+        TarArchive archive = new TarArchive(root);
+        List<Pattern> includePatterns = compile(includes);
+        List<Pattern> excludePatterns = compile(excludes);
+        //有 includes 时文件夹在第一个匹配的文件写入前才添加，不打包没有匹配文件的空文件夹
+        Deque<Entry> pending = new ArrayDeque<>();
+        Files.walkFileTree(root,new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,BasicFileAttributes attrs) throws IOException {
+                if (dir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String name = archive.name(dir);
+                if (matches(excludePatterns,name)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Entry entry = new Entry(dir,name + "/",Entry.DIRECTORY,mode(dir,DEFAULT_DIR_MODE),attrs.lastModifiedTime().toMillis(),0,null);
+                if (includePatterns.isEmpty()) {
+                    archive.entries.add(entry);
+                } else {
+                    pending.addLast(entry);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file,BasicFileAttributes attrs) throws IOException {
+                String name = archive.name(file);
+                if (matches(excludePatterns,name) || (!includePatterns.isEmpty() && !matches(includePatterns,name))) {
+                    return FileVisitResult.CONTINUE;
+                }
+                archive.entries.addAll(pending);
+                pending.clear();
+                long modified = attrs.lastModifiedTime().toMillis();
+                if (attrs.isSymbolicLink()) {
+                    String target = Files.readSymbolicLink(file).toString().replace(File.separatorChar,'/');
+                    archive.entries.add(new Entry(file,name,Entry.SYMLINK,0777,modified,0,target));
+                } else if (attrs.isRegularFile()) {
+                    archive.entries.add(new Entry(file,name,Entry.FILE,mode(file,DEFAULT_FILE_MODE),modified,attrs.size(),null));
+                    archive.length += attrs.size();
+                } else {
+                    return FileVisitResult.CONTINUE;    //不打包设备文件等特殊文件
+                }
+                archive.fileCount++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                if (!pending.isEmpty() && pending.peekLast().path.equals(dir)) {
+                    pending.removeLast();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return archive;
+    }
+
+    /**
+     * 文件数（不包括文件夹）
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * 所有文件的总大小，不包括 tar 头
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * 写出 tar 数据，不关闭输出流
+     *
+     * @param progress 累加写出的文件内容字节数，可以为空
+     */
+    public void write(OutputStream out,TransferProgress progress) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (Entry entry : entries) {
+            writeHeader(out,entry);
+            if (entry.type != Entry.FILE) {
+                continue;
+            }
+            long remaining = entry.size;
+            try (InputStream input = Files.newInputStream(entry.path)) {
+                while (remaining > 0) {
+                    int len = input.read(buffer,0,(int) Math.min(buffer.length,remaining));
+                    if (len == -1) {
+                        throw new IOException("文件在打包时被修改：" + entry.path);
+                    }
+                    out.write(buffer,0,len);
+                    remaining -= len;
+                    if (progress != null) progress.add(len);
+                }
+            }
+            pad(out,entry.size);
+        }
+        //两个空块表示结束
+        out.write(new byte[BLOCK_SIZE * 2]);
+        out.flush();
+    }
+
+    private static void writeHeader(OutputStream out,Entry entry) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 100) {
+            writeLongLink(out,'L',name);
+        }
+        byte[] link = entry.link == null ? new byte[0] : entry.link.getBytes(StandardCharsets.UTF_8);
+        if (link.length > 100) {
+            writeLongLink(out,'K',link);
+        }
+        out.write(header(name,entry.mode,entry.size,entry.modified / 1000,entry.type,link));
+    }
+
+    /**
+     * GNU tar 的长文件名：先写一个内容为完整路径的 ././@LongLink 条目，下一个条目使用这个路径
+     */
+    private static void writeLongLink(OutputStream out,char type,byte[] value) throws IOException {
+        byte[] content = Arrays.copyOf(value,value.length + 1);
+        out.write(header(LONG_LINK.getBytes(StandardCharsets.US_ASCII),0644,content.length,0,type,new byte[0]));
+        out.write(content);
+        pad(out,content.length);
+    }
+
+    private static byte[] header(byte[] name,int mode,long size,long mtime,char type,byte[] link) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name,0,header,0,Math.min(name.length,100));
+        octal(header,100,8,mode);
+        octal(header,108,8,0);      //uid 和 gid 为 0，解压时使用执行 tar 的用户
+        octal(header,116,8,0);
+        if (size > MAX_OCTAL_SIZE) {
+            header[124] = (byte) 0x80;
+            for (int i = 135; i > 124; i--) {
+                header[i] = (byte) size;
+                size >>>= 8;
+            }
+        } else {
+            octal(header,124,12,size);
+        }
+        octal(header,136,12,mtime);
+        header[156] = (byte) type;
+        System.arraycopy(link,0,header,157,Math.min(link.length,100));
+        System.arraycopy("ustar  \0".getBytes(StandardCharsets.US_ASCII),0,header,257,8);  //GNU tar 格式
+        Arrays.fill(header,148,156,(byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header,148,7,checksum);
+        return header;
+    }
+
+    /**
+     * 写入以 NUL 结尾的八进制数
+     */
+    private static void octal(byte[] header,int offset,int length,long value) {
+        String s = Long.toOctalString(value);
+        int start = offset + length - 1 - s.length();
+        Arrays.fill(header,offset,start,(byte) '0');
+        System.arraycopy(s.getBytes(StandardCharsets.US_ASCII),0,header,start,s.length());
+        header[offset + length - 1] = 0;
+    }
+
+    private static void pad(OutputStream out,long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder > 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    private String name(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar,'/');
+    }
+
+    private static int mode(Path path,int defaultMode) {
+        try {
+            Set<PosixFilePermission> permissions = Files.readAttributes(path,PosixFileAttributes.class,LinkOption.NOFOLLOW_LINKS).permissions();
+            int mode = 0;
+            for (PosixFilePermission permission : permissions) {
+                //枚举顺序为 OWNER_READ 到 OTHERS_EXECUTE，对应 0400 到 0001
+                mode |= 0400 >> permission.ordinal();
+            }
+            return mode;
+        } catch (UnsupportedOperationException | IOException e) {
+            return defaultMode;
+        }
+    }
+
+    private static boolean matches(List<Pattern> patterns,String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把通配符规则转换为匹配相对路径的正则表达式，不包含 / 的规则前面加上任意层级的目录
+     */
+    static List<Pattern> compile(List<String> globs) {
+        List<Pattern> patterns = new ArrayList<>();
+        if (globs == null) {
+            return patterns;
+        }
+        for (String glob : globs) {
+            String value = glob.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            StringBuilder regex = new StringBuilder(value.contains("/") ? "" : "(?:.*/)?");
+            value = value.replaceAll("^/+|/+$","");
+            int group = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '*') {
+                    if (i + 1 < value.length() && value.charAt(i + 1) == '*') {
+                        //**/ 匹配零层或多层目录
+                        boolean slash = i + 2 < value.length() && value.charAt(i + 2) == '/';
+                        regex.append(slash ? "(?:.*/)?" : ".*");
+                        i += slash ? 2 : 1;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '{') {
+                    regex.append("(?:");
+                    group++;
+                } else if (c == '}' && group > 0) {
+                    regex.append(')');
+                    group--;
+                } else if (c == ',' && group > 0) {
+                    regex.append('|');
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            if (group > 0) {
+                throw new IllegalArgumentException("通配符中的 { 没有结束：" + glob);
+            }
+            patterns.add(Pattern.compile(regex.toString()));
+        }
+        return patterns;
+    }
+
+    private static class Entry {
+        private static final char FILE = '0';
+        private static final char SYMLINK = '2';
+        private static final char DIRECTORY = '5';
+
+        private final Path path;
+        private final String name;
+        private final char type;
+        private final int mode;
+        private final long modified;
+        private final long size;
+        private final String link;
+
+        private Entry(Path path,String name,char type,int mode,long modified,long size,String link) {
+            this.path = path;
+            this.name = name;
+            this.type = type;
+            this.mode = mode;
+            this.modified = modified;
+            this.size = size;
+            this.link = link;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 上传文件夹
+ * 边遍历本地文件夹边写出 tar 数据到 exec 通道，由服务器上的 tar 直接解压到目标文件夹，
+ * 所有文件在一个数据流中连续发送，不需要每个文件一次 sftp 请求，两端都不产生临时的压缩包
+ */
+public class TarUploader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 上传文件夹中的文件，不删除服务器上已有的其它文件
+     * 上传方式为 compress 时边打包边压缩
+     *
+     * @param localDir  本地文件夹路径
+     * @param remoteDir 远程服务器文件夹，不存在时自动创建
+     */
+    public static void upload(Session session,Config config,String localDir,String remoteDir,Log log) throws Exception {
+        TarArchive archive = TarArchive.scan(new File(localDir),config.getIncludes(),config.getExcludes());
+        boolean compress = TransferMode.of(config.getTransferMode()) == TransferMode.COMPRESS;
+        Integer level = config.getCompressionLevel();
+        log.println("远程服务器路径：" + remoteDir);
+        log.println("本地上传路径：" + localDir);
+        log.println(String.format("打包上传 %d 个文件，共 %s%s",archive.getFileCount(),TransferProgress.formatSize(archive.getLength()),compress ? "，边打包边压缩" : ""));
+
+        ChannelExec channelExec = LinuxConnetionHelper.openChannelExec(session);
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        //-p 保留文件权限，不使用压缩包中的用户
+        String cmd = String.format("mkdir -p %s && tar -x%spf - --no-same-owner -C %s",remoteDir,compress ? "z" : "",remoteDir);
+        channelExec.setCommand(cmd);
+        LinuxConnetionHelper.ExecCompletion completion = new LinuxConnetionHelper.ExecCompletion(channelExec,error);
+        TransferProgress progress = new TransferProgress("上传",archive.getLength(),log).start();
+        long start = System.currentTimeMillis();
+        CompressedUploader.CountingOutputStream counter = new CompressedUploader.CountingOutputStream(channelExec.getOutputStream());
+        try {
+            channelExec.connect();
+            try (OutputStream out = compress ? new GZIPOutputStream(counter,BUFFER_SIZE) {
+                {
+                    if (level != null) def.setLevel(level);
+                }
+            } : new BufferedOutputStream(counter,BUFFER_SIZE)) {
+                archive.write(out,progress);
+            }
+            if (completion.await(LinuxConnetionHelper.TIME_OUT,cmd) != 0) {
+                throw new IOException("打包上传失败：" + new String(error.toByteArray(),StandardCharsets.UTF_8).trim());
+            }
+        } finally {
+            progress.finish();
+            LinuxConnetionHelper.closeChannelExec(channelExec);
+        }
+
+        long time = Math.max(System.currentTimeMillis() - start,1);
+        log.println(String.format("打包上传完成：%d 个文件，发送 %s，耗时 %d ms，平均 %.1f 个文件/s",
+                archive.getFileCount(),TransferProgress.formatSize(counter.getCount()),time,archive.getFileCount() * 1000.0 / time));
+    }
+}
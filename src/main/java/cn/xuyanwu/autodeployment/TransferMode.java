@@ -0,0 +1,30 @@
+package cn.xuyanwu.autodeployment;
+
+/**
+ * 文件上传方式
+ */
+public enum TransferMode {
+    /* 通过 sftp 上传整个文件（默认） */
+    SFTP,
+    /* 只上传与服务器上旧版本不同的数据块 */
+    DELTA,
+    /* 边压缩边上传，由服务器解压 */
+    COMPRESS,
+    /* 分块后通过多个 sftp 通道同时上传 */
+    CHUNKED;
+
+    /**
+     * 根据配置的值获取上传方式，没有配置时使用 sftp
+     */
+    public static TransferMode of(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return SFTP;
+        }
+        for (TransferMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value.trim())) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("不支持的上传方式：" + value);
+    }
+}
@@ -0,0 +1,239 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 文件传输进度
+ * 传输线程只做无锁累加，所有传输共用一个定时线程每秒计算一次速度、平均速度和剩余时间，
+ * 输出到日志并通知监听器，多个通道并行传输同一个文件时可以共用一个对象
+ * 监听器属于项目的 {@link DeploymentExecutor}，在部署线程中创建的传输通知所在项目的监听器
+ */
+public class TransferProgress implements SftpProgressMonitor {
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r,"AutoDeployment-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long INTERVAL = 1000;  //每秒计算一次
+    private static final double SMOOTHING = 0.3;    //平均速度的平滑系数
+
+    private final String action;
+    private final long total;
+    private final Log log;
+    private final List<Listener> listeners;
+    private final LongAdder transferred = new LongAdder();
+    private final long startTime = System.currentTimeMillis();
+    private volatile boolean cancelled;
+    private ScheduledFuture<?> future;
+    private long lastTransferred;
+    private double speed;   //最近一秒的速度（bytes/s）
+    private double averageSpeed;    //平滑后的平均速度（bytes/s）
+    private boolean finished;
+
+    /**
+     * @param action 传输类型，例如“上传”、“下载”
+     * @param total  文件总大小
+     * @param log    输出进度的日志，为空时只通知监听器
+     */
+    public TransferProgress(String action,long total,Log log) {
+        this.action = action;
+        this.total = total;
+        this.log = log;
+        DeploymentExecutor executor = DeploymentExecutor.current();
+        this.listeners = executor == null ? Collections.emptyList() : executor.getProgressListeners();
+    }
+
+    @Override
+    public void init(int op,String src,String dest,long max) {
+        start();
+    }
+
+    @Override
+    public boolean count(long count) {
+        transferred.add(count);
+        return !cancelled;
+    }
+
+    @Override
+    public void end() {
+        //多个通道共用时每个通道结束都会调用，传输完成由 finish 确定
+    }
+
+    /**
+     * 开始定时计算进度，重复调用无效
+     */
+    public synchronized TransferProgress start() {
+        if (future == null && !finished) {
+            future = scheduler.scheduleAtFixedRate(this::tick,INTERVAL,INTERVAL,TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * 取消传输，下一次回调时 jsch 会中止传输
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * 累加不经过 jsch 传输的字节数
+     */
+    public void add(long count) {
+        transferred.add(count);
+    }
+
+    public long getTransferred() {
+        return transferred.sum();
+    }
+
+    private synchronized void tick() {
+        if (finished) {
+            return;
+        }
+        long current = transferred.sum();
+        speed = (current - lastTransferred) * 1000.0 / INTERVAL;
+        averageSpeed = lastTransferred == 0 && averageSpeed == 0 ? speed : SMOOTHING * speed + (1 - SMOOTHING) * averageSpeed;
+        lastTransferred = current;
+        if (log != null) {
+            StringBuilder sb = new StringBuilder("已").append(action).append(": ");
+            if (total > 0) {
+                sb.append(String.format("%.1f%% ",current * 100.0 / total));
+            }
+            sb.append(formatSize(current)).append("，速度 ").append(formatSize((long) speed)).append("/s")
+                    .append("，平均 ").append(formatSize((long) averageSpeed)).append("/s");
+            long eta = getEta();
+            if (eta >= 0) {
+                sb.append("，剩余 ").append(formatTime(eta));
+            }
+            log.println(sb.toString());
+        }
+        notifyListeners(false);
+    }
+
+    /**
+     * 传输完成，停止计算进度并输出汇总信息
+     */
+    public synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (future != null) {
+            future.cancel(false);
+        }
+        long current = transferred.sum();
+        long time = Math.max(System.currentTimeMillis() - startTime,1);
+        averageSpeed = current * 1000.0 / time;
+        if (log != null && current > 0) {
+            log.println(String.format("%s完成：%s，耗时 %s，平均速度 %.2f MB/s",
+                    action,formatSize(current),formatTime(time),averageSpeed / 1024 / 1024));
+        }
+        notifyListeners(true);
+    }
+
+    /**
+     * 预计剩余时间（毫秒），无法计算时返回 -1
+     */
+    public synchronized long getEta() {
+        if (total <= 0 || averageSpeed <= 0) {
+            return -1;
+        }
+        return (long) ((total - transferred.sum()) * 1000 / averageSpeed);
+    }
+
+    private void notifyListeners(boolean done) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Snapshot snapshot = new Snapshot(this,action,transferred.sum(),total,speed,averageSpeed,getEta(),done);
+        for (Listener listener : listeners) {
+            listener.onProgress(snapshot);
+        }
+    }
+
+    public static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB",bytes / 1024.0);
+        if (bytes < 1024 * 1024 * 1024) return String.format("%.1f MB",bytes / 1024.0 / 1024);
+        return String.format("%.2f GB",bytes / 1024.0 / 1024 / 1024);
+    }
+
+    public static String formatTime(long millis) {
+        long seconds = millis / 1000;
+        if (seconds < 60) return millis < 10000 ? String.format("%.1fs",millis / 1000.0) : seconds + "s";
+        return String.format("%d:%02d",seconds / 60,seconds % 60);
+    }
+
+    /**
+     * 进度监听器，在定时线程中调用，不能执行耗时操作
+     */
+    public interface Listener {
+        void onProgress(Snapshot snapshot);
+    }
+
+    /**
+     * 某一时刻的传输进度
+     */
+    public static class Snapshot {
+        private final Object id;
+        private final String action;
+        private final long transferred;
+        private final long total;
+        private final double speed;
+        private final double averageSpeed;
+        private final long eta;
+        private final boolean finished;
+
+        Snapshot(Object id,String action,long transferred,long total,double speed,double averageSpeed,long eta,boolean finished) {
+            this.id = id;
+            this.action = action;
+            this.transferred = transferred;
+            this.total = total;
+            this.speed = speed;
+            this.averageSpeed = averageSpeed;
+            this.eta = eta;
+            this.finished = finished;
+        }
+
+        /**
+         * 传输的标识，同一次传输的所有快照相同
+         */
+        public Object getId() {
+            return id;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public long getTransferred() {
+            return transferred;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public double getSpeed() {
+            return speed;
+        }
+
+        public double getAverageSpeed() {
+            return averageSpeed;
+        }
+
+        public long getEta() {
+            return eta;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.parser.Feature;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 测试 ssh 传输参数
+ * 用不同的加密算法、校验算法和压缩级别分别建立连接，向服务器的 cat &gt; /dev/null 发送同样的数据，
+ * 按每秒发送的原始数据量选出最快的组合：先在不压缩时比较加密算法，再比较校验算法，最后比较压缩级别。
+ * 局域网中 CPU 是瓶颈，开销最小的算法最快；带宽小的网络中压缩后传输的数据少，压缩更快
+ */
+public class TransportProbe {
+    static final List<String> CIPHERS = Arrays.asList("aes128-ctr","aes192-ctr","aes256-ctr","aes128-cbc","aes256-cbc");
+    static final List<String> MACS = Arrays.asList("hmac-sha2-256","hmac-sha1","hmac-md5");
+    static final List<Integer> COMPRESSION_LEVELS = Arrays.asList(1,6);
+    private static final int PAYLOAD_SIZE = 16 * 1024 * 1024;   //每次测试最多发送16MB
+    private static final long MAX_TIME = 3000;  //每次测试最多发送3秒
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * 测试部署脚本中的每台主机，把最快的组合保存到部署脚本中
+     *
+     * @param basePath 项目路径，用来读取要上传的文件作为测试数据
+     */
+    public static void probe(File file,String basePath,Log log) throws DeploymentPlanException, IOException {
+        DeploymentPlan plan = DeploymentPlanParser.parse(file);
+        List<Trial> results = new ArrayList<>();
+        for (Config config : plan.getHosts()) {
+            String localFile = plan.getType() == DeploymentPlan.Type.JSON ? config.getLocalFile()
+                    : plan.getLocalFiles().isEmpty() ? null : plan.getLocalFiles().get(0);
+            String name = StrUtil.isNotBlank(config.getName()) ? config.getName() : config.getHost();
+            log.println("测试 " + name + " 的传输参数...");
+            results.add(probe(config,payload(localFile == null ? null : new File(basePath + localFile)),new PrefixLog("[" + name + "] ",log)));
+        }
+        if (results.stream().allMatch(Objects::isNull)) {
+            log.println("所有组合都无法连接，没有修改 " + file.getName());
+            return;
+        }
+        save(file,results);
+        log.println("已保存到 " + file.getName());
+    }
+
+    /**
+     * 测试一台主机，返回最快的组合
+     *
+     * @param payload 发送的数据，见 {@link #payload(File)}
+     * @return 所有组合都无法连接时返回 null
+     */
+    public static Trial probe(Config config,byte[] payload,Log log) {
+        //第一次发送时 JIT 还没有编译加密代码，先发送一次不计入结果
+        trial(config,CIPHERS.get(0),MACS.get(0),0,payload,str -> {
+        });
+        Trial best = null;
+        for (String cipher : CIPHERS) {
+            best = faster(best,trial(config,cipher,MACS.get(0),0,payload,log));
+        }
+        if (best == null) {
+            return null;
+        }
+        for (String mac : MACS.subList(1,MACS.size())) {
+            best = faster(best,trial(config,best.cipher,mac,0,payload,log));
+        }
+        for (int level : COMPRESSION_LEVELS) {
+            best = faster(best,trial(config,best.cipher,best.mac,level,payload,log));
+        }
+        log.println(String.format("最快的组合：%s，%s，%s，%s/s",best.cipher,best.mac,best.compression(),TransferProgress.formatSize(best.throughput)));
+        return best;
+    }
+
+    private static Trial faster(Trial best,Trial trial) {
+        return trial != null && (best == null || trial.throughput > best.throughput) ? trial : best;
+    }
+
+    /**
+     * 用一个组合建立新的连接并发送数据，连接不放入连接池
+     *
+     * @return 服务器不支持这个组合或发送失败时返回 null
+     */
+    private static Trial trial(Config config,String cipher,String mac,int level,byte[] payload,Log log) {
+        Trial trial = new Trial(cipher,mac,level);
+        Config trialConfig = new Config(config.getHost(),config.getPort(),config.getUser(),config.getPassword());
+        trialConfig.setCiphers(cipher);
+        trialConfig.setMacs(mac);
+        trialConfig.setSshCompression(level);
+        Session session = null;
+        try {
+            long start = System.currentTimeMillis();
+            session = LinuxConnetionHelper.createSession(trialConfig);
+            long connectTime = System.currentTimeMillis() - start;
+            trial.throughput = transfer(session,payload);
+            log.println(String.format("%-12s %-15s %-8s %10s/s  连接 %d ms",cipher,mac,trial.compression(),TransferProgress.formatSize(trial.throughput),connectTime));
+            return trial;
+        } catch (Exception e) {
+            log.println(String.format("%-12s %-15s %-8s 失败：%s",cipher,mac,trial.compression(),e.getLocalizedMessage()));
+            return null;
+        } finally {
+            if (session != null) {
+                session.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 发送数据到服务器的 /dev/null，等服务器读完后计算速度
+     *
+     * @return 每秒发送的原始数据量（字节）
+     */
+    private static long transfer(Session session,byte[] payload) throws Exception {
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        try {
+            channel.setCommand("cat > /dev/null");
+            OutputStream output = channel.getOutputStream();
+            channel.connect(LinuxConnetionHelper.TIME_OUT);
+            long start = System.nanoTime();
+            long deadline = start + MAX_TIME * 1000_000;
+            int sent = 0;
+            while (sent < payload.length && System.nanoTime() < deadline) {
+                int len = Math.min(BLOCK_SIZE,payload.length - sent);
+                output.write(payload,sent,len);
+                sent += len;
+            }
+            output.close();
+            while (!channel.isClosed()) {
+                if (System.nanoTime() - start > LinuxConnetionHelper.TIME_OUT * 1000_000L) {
+                    throw new IOException("等待服务器接收数据超时");
+                }
+                Thread.sleep(10);
+            }
+            if (channel.getExitStatus() != 0) {
+                throw new IOException("服务器不能执行 cat 命令，退出码：" + channel.getExitStatus());
+            }
+            long elapsed = Math.max(System.nanoTime() - start,1);
+            return sent * 1000_000_000L / elapsed;
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    /**
+     * 测试发送的数据：使用要上传的文件的内容，压缩效果和实际部署一致；
+     * 文件不存在或是文件夹时使用一半随机数据（类似 jar 包等已压缩的内容）、一半文本的数据
+     */
+    public static byte[] payload(File sample) throws IOException {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        if (sample != null && sample.isFile() && sample.length() > 0) {
+            int length = 0;
+            try (InputStream input = new FileInputStream(sample)) {
+                //文件小于16MB时重复读取
+                while (length < payload.length) {
+                    int len = input.read(payload,length,payload.length - length);
+                    if (len == -1) {
+                        return fill(payload,length);
+                    }
+                    length += len;
+                }
+            }
+            return payload;
+        }
+        Random random = new Random(0);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < BLOCK_SIZE; i++) {
+            text.append("2021-01-01 00:00:").append(i % 60).append(" INFO [main] c.x.a.Application - started component ").append(random.nextInt(1000)).append('\n');
+        }
+        byte[] textBlock = text.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] randomBlock = new byte[BLOCK_SIZE];
+        for (int off = 0; off < payload.length; off += BLOCK_SIZE) {
+            if ((off / BLOCK_SIZE) % 2 == 0) {
+                random.nextBytes(randomBlock);
+                System.arraycopy(randomBlock,0,payload,off,Math.min(BLOCK_SIZE,payload.length - off));
+            } else {
+                System.arraycopy(textBlock,0,payload,off,Math.min(BLOCK_SIZE,payload.length - off));
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * 重复前 length 个字节填满数组
+     */
+    private static byte[] fill(byte[] payload,int length) {
+        for (int off = length; off < payload.length; off += length) {
+            System.arraycopy(payload,0,payload,off,Math.min(length,payload.length - off));
+        }
+        return payload;
+    }
+
+    /**
+     * JSch 不支持的算法，例如 aes128-gcm@openssh.com、chacha20-poly1305@openssh.com
+     *
+     * @param algorithms 用逗号分隔的算法名称
+     */
+    public static List<String> unsupported(String algorithms) {
+        List<String> list = new ArrayList<>();
+        if (StrUtil.isBlank(algorithms)) {
+            return list;
+        }
+        for (String name : algorithms.split(",")) {
+            if (!name.trim().isEmpty() && JSch.getConfig(name.trim()) == null) {
+                list.add(name.trim());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 把测试结果保存到部署脚本中，最快的算法排在第一位，其余的作为服务器不支持时的备选
+     * json 配置保存到每台主机的 ciphers、macs、sshCompression 中，sh 脚本修改或添加 # key = value 格式的注释
+     *
+     * @param results 和部署脚本中的主机一一对应，为 null 的主机不修改
+     */
+    public static void save(File file,List<Trial> results) throws IOException {
+        String text = new String(Files.readAllBytes(file.toPath()),StandardCharsets.UTF_8);
+        if (file.getName().endsWith(".json")) {
+            JSONArray array = (JSONArray) JSON.parse(text,Feature.OrderedField);
+            for (int i = 0; i < results.size() && i < array.size(); i++) {
+                Trial trial = results.get(i);
+                if (trial == null) continue;
+                JSONObject host = array.getJSONObject(i);
+                host.put("ciphers",trial.getCiphers());
+                host.put("macs",trial.getMacs());
+                host.put("sshCompression",trial.level);
+            }
+            text = JSON.toJSONString(array,SerializerFeature.PrettyFormat) + "\n";
+        } else if (!results.isEmpty() && results.get(0) != null) {
+            Trial trial = results.get(0);
+            text = setOption(text,"ciphers",trial.getCiphers());
+            text = setOption(text,"macs",trial.getMacs());
+            text = setOption(text,"sshCompression",String.valueOf(trial.level));
+        }
+        Files.write(file.toPath(),text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 修改 sh 脚本中的配置，没有这个配置时添加到最后一个配置的下一行
+     */
+    private static String setOption(String text,String key,String value) {
+        Matcher matcher = Pattern.compile("(?m)^([ \\t]*#[ \\t]*" + key + "[ \\t]*=).*$").matcher(text);
+        if (matcher.find()) {
+            return text.substring(0,matcher.start()) + matcher.group(1) + " " + value + text.substring(matcher.end());
+        }
+        matcher = Pattern.compile("(?m)^[ \\t]*#[ \\t]*\\w+[ \\t]*=.*$").matcher(text);
+        int end = -1;
+        while (matcher.find()) {
+            end = matcher.end();
+        }
+        if (end >= 0) {
+            return text.substring(0,end) + "\n# " + key + " = " + value + text.substring(end);
+        }
+        return "# " + key + " = " + value + "\n" + text;
+    }
+
+    /**
+     * 一个组合的测试结果
+     */
+    public static class Trial {
+        private final String cipher;
+        private final String mac;
+        private final int level;
+        /* 每秒发送的原始数据量（字节） */
+        private long throughput;
+
+        private Trial(String cipher,String mac,int level) {
+            this.cipher = cipher;
+            this.mac = mac;
+            this.level = level;
+        }
+
+        private String compression() {
+            return level == 0 ? "不压缩" : "压缩 " + level;
+        }
+
+        /**
+         * 保存的加密算法：最快的在前，其余候选算法在后
+         */
+        public String getCiphers() {
+            return preference(cipher,CIPHERS);
+        }
+
+        public String getMacs() {
+            return preference(mac,MACS);
+        }
+
+        private static String preference(String first,List<String> candidates) {
+            List<String> list = new ArrayList<>(candidates);
+            list.remove(first);
+            list.add(0,first);
+            return String.join(",",list);
+        }
+
+        public String getCipher() {
+            return cipher;
+        }
+
+        public String getMac() {
+            return mac;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public long getThroughput() {
+            return throughput;
+        }
+    }
+}
@@ -1,28 +1,103 @@
 package cn.xuyanwu.autodeployment.window;
 
 import cn.xuyanwu.autodeployment.AutoDeployment;
+import cn.xuyanwu.autodeployment.DeploymentExecutor;
+import cn.xuyanwu.autodeployment.DeploymentLogService;
+import cn.xuyanwu.autodeployment.DeploymentLogStore;
+import cn.xuyanwu.autodeployment.DeploymentPlanException;
+import cn.xuyanwu.autodeployment.DeploymentReport;
+import cn.xuyanwu.autodeployment.Log;
+import cn.xuyanwu.autodeployment.LogPipeline;
+import cn.xuyanwu.autodeployment.TransferProgress;
+import cn.xuyanwu.autodeployment.TransportProbe;
 import com.intellij.execution.filters.TextConsoleBuilderFactory;
 import com.intellij.execution.ui.ConsoleView;
 import com.intellij.execution.ui.ConsoleViewContentType;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class AutoDeploymentWindow {
+public class AutoDeploymentWindow implements Disposable {
+    private static final int SEARCH_LIMIT = 1000;
+    private static final int TREND_SIZE = 10;   //性能趋势中对比的部署次数
     private final Project project;
     private final ConsoleView console;
     private AutoDeployment autoDeployment;
+    private LogPipeline logPipeline;
+    private DeploymentLogStore logStore;
+    private DeploymentLogStore.RunLog runLog;
     private final JPanel rootPanel;
+    private final JProgressBar progressBar;
+    private final Map<Object, TransferProgress.Snapshot> transfers = new ConcurrentHashMap<>();
+    private final TransferProgress.Listener progressListener = this::onProgress;
 
     public AutoDeploymentWindow(Project project) {
         this.project = project;
         rootPanel = new JPanel(new BorderLayout());
         console = TextConsoleBuilderFactory.getInstance().createBuilder(project).getConsole();
         rootPanel.add(console.getComponent(),BorderLayout.CENTER);
-        Toolbar toolbar = new Toolbar(project,console,this::deployment,this::closeAutoDeployment);
+        Toolbar toolbar = new Toolbar(project,console,this::deployment,this::closeAutoDeployment,this::rollback,this::showHistory,this::searchHistory,this::showTrend,this::probe);
         rootPanel.add(toolbar.getPanel(),BorderLayout.NORTH);
+        Disposer.register(this,toolbar);
+        progressBar = new JProgressBar(0,1000);
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        rootPanel.add(progressBar,BorderLayout.SOUTH);
+        DeploymentExecutor.getInstance(project).addProgressListener(progressListener);
+    }
+
+    /**
+     * 工具窗口关闭时停止正在进行的部署、输出剩余日志并关闭部署记录，移除进度监听器
+     */
+    @Override
+    public void dispose() {
+        close();
+        DeploymentExecutor.getInstance(project).removeProgressListener(progressListener);
+    }
+
+    /**
+     * 汇总正在进行的所有传输，显示在进度条上
+     */
+    private void onProgress(TransferProgress.Snapshot snapshot) {
+        if (snapshot.isFinished()) {
+            transfers.remove(snapshot.getId());
+        } else {
+            transfers.put(snapshot.getId(),snapshot);
+        }
+        long transferred = 0;
+        long total = 0;
+        double speed = 0;
+        long eta = 0;
+        for (TransferProgress.Snapshot s : transfers.values()) {
+            transferred += s.getTransferred();
+            total += s.getTotal();
+            speed += s.getSpeed();
+            eta = Math.max(eta,s.getEta());
+        }
+        boolean visible = !transfers.isEmpty();
+        int value = total == 0 ? 0 : (int) (transferred * 1000 / total);
+        String text = String.format("%s / %s，%s/s，剩余 %s",TransferProgress.formatSize(transferred),
+                TransferProgress.formatSize(total),TransferProgress.formatSize((long) speed),TransferProgress.formatTime(eta));
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setVisible(visible);
+            progressBar.setValue(value);
+            progressBar.setString(text);
+        });
     }
 
     /**
@@ -31,19 +106,180 @@ public class AutoDeploymentWindow {
     private void deployment(File file) {
         closeAutoDeployment();
         console.clear();
-        autoDeployment = new AutoDeployment(project,file,str -> console.print(str,ConsoleViewContentType.NORMAL_OUTPUT));
+        logPipeline = new LogPipeline(str -> console.print(str,ConsoleViewContentType.NORMAL_OUTPUT));
+        autoDeployment = new AutoDeployment(project,file,record(file,logPipeline));
         autoDeployment.deployment();
     }
 
+    /**
+     * 回滚到服务器上的备份
+     */
+    private void rollback(File file) {
+        closeAutoDeployment();
+        console.clear();
+        logPipeline = new LogPipeline(str -> console.print(str,ConsoleViewContentType.NORMAL_OUTPUT));
+        autoDeployment = new AutoDeployment(project,file,record(file,logPipeline));
+        autoDeployment.rollback(this::choose);
+    }
+
+    /**
+     * 同时把日志写入本地的日志存储，在日志管道之前写入，控制台丢弃的日志也会保存
+     */
+    private Log record(File file,Log log) {
+        DeploymentLogStore store = getLogStore();
+        if (store == null || file == null) {
+            return log;
+        }
+        runLog = store.open(file.getName(),log);
+        return runLog;
+    }
+
+    /**
+     * 打开以前的部署日志
+     */
+    private void showHistory() {
+        DeploymentLogStore store = getLogStore();
+        if (store == null) {
+            return;
+        }
+        List<DeploymentLogStore.Run> runs = store.getRuns();
+        if (runs.isEmpty()) {
+            console.print("没有历史部署日志\n",ConsoleViewContentType.SYSTEM_OUTPUT);
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        String[] values = runs.stream()
+                .map(run -> format.format(new Date(run.getStart())) + " " + run.getName() + (run.getHosts().size() > 1 ? "（" + String.join("、",run.getHosts()) + "）" : ""))
+                .toArray(String[]::new);
+        int index = Messages.showChooseDialog(project,"选择要打开的部署日志","历史日志",Messages.getQuestionIcon(),values,values[0]);
+        if (index < 0) {
+            return;
+        }
+        closeAutoDeployment();
+        console.clear();
+        DeploymentLogStore.Run run = runs.get(index);
+        ApplicationManager.getApplication().executeOnPooledThread(() -> store.read(run,null,0,str -> console.print(str,ConsoleViewContentType.NORMAL_OUTPUT)));
+    }
+
+    /**
+     * 在以前的部署日志中搜索关键字
+     */
+    private void searchHistory() {
+        DeploymentLogStore store = getLogStore();
+        if (store == null) {
+            return;
+        }
+        String keyword = Messages.showInputDialog(project,"搜索以前的部署日志","搜索日志",Messages.getQuestionIcon());
+        if (keyword == null || keyword.isEmpty()) {
+            return;
+        }
+        closeAutoDeployment();
+        console.clear();
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            List<DeploymentLogStore.Match> matches = store.search(keyword,null,SEARCH_LIMIT);
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            StringBuilder sb = new StringBuilder();
+            for (DeploymentLogStore.Match match : matches) {
+                sb.append(format.format(new Date(match.getTime()))).append(' ').append(match.getRun().getName())
+                        .append(match.getHost() == null ? "" : " [" + match.getHost() + "]").append("  ").append(match.getLine()).append('\n');
+            }
+            sb.append("共找到 ").append(matches.size()).append(" 行").append(matches.size() >= SEARCH_LIMIT ? "，只显示前 " + SEARCH_LIMIT + " 行" : "").append('\n');
+            console.print(sb.toString(),ConsoleViewContentType.NORMAL_OUTPUT);
+        });
+    }
+
+    /**
+     * 输出最近几次部署的性能对比
+     */
+    private void showTrend() {
+        File directory = new File(project.getBasePath(),DeploymentReport.DEFAULT_DIR);
+        ApplicationManager.getApplication().executeOnPooledThread(() ->
+                console.print(DeploymentReport.trend(DeploymentReport.loadRecent(directory,TREND_SIZE)),ConsoleViewContentType.SYSTEM_OUTPUT));
+    }
+
+    /**
+     * 测试部署脚本中每台主机的加密算法、校验算法和压缩级别，把最快的组合保存到部署脚本中
+     */
+    private void probe(File file) {
+        if (file == null || !file.isFile()) {
+            console.print("没有找到配置文件！\n",ConsoleViewContentType.ERROR_OUTPUT);
+            return;
+        }
+        closeAutoDeployment();
+        console.clear();
+        Log log = str -> console.print(str,ConsoleViewContentType.NORMAL_OUTPUT);
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            try {
+                TransportProbe.probe(file,project.getBasePath(),log);
+                //部署脚本已在编辑器中打开时重新加载
+                VirtualFile virtualFile = LocalFileSystem.getInstance().refreshAndFindFileByPath(file.getPath());
+                if (virtualFile != null) {
+                    virtualFile.refresh(false,false);
+                }
+            } catch (DeploymentPlanException e) {
+                log.println(file.getName() + " 校验失败：");
+                e.getErrors().forEach(log::println);
+            } catch (IOException e) {
+                log.println("测试传输参数失败！" + e.getLocalizedMessage());
+            }
+        });
+    }
+
+    /**
+     * 项目的日志存储，打开失败时不保存日志
+     */
+    private DeploymentLogStore getLogStore() {
+        if (logStore == null) {
+            try {
+                logStore = DeploymentLogService.getInstance(project).getStore();
+            } catch (IOException e) {
+                console.print("无法打开部署日志存储：" + e.getLocalizedMessage() + "\n",ConsoleViewContentType.ERROR_OUTPUT);
+            }
+        }
+        return logStore;
+    }
+
+    /**
+     * 在部署线程中调用，弹出选择框并等待选择
+     */
+    private String choose(String title,List<String> options) {
+        String[] values = options.toArray(new String[0]);
+        AtomicReference<String> selected = new AtomicReference<>();
+        ApplicationManager.getApplication().invokeAndWait(() -> {
+            int index = Messages.showChooseDialog(project,title,"回滚",Messages.getQuestionIcon(),values,values[0]);
+            selected.set(index < 0 ? null : values[index]);
+        });
+        return selected.get();
+    }
+
     /**
      * 关闭 AutoDeployment （日志输出流）
      */
     private void closeAutoDeployment() {
-        if (autoDeployment != null) {
-            autoDeployment.close();
-            console.print("自动部署已关闭！",ConsoleViewContentType.SYSTEM_OUTPUT);
+        AutoDeployment closed = close();
+        if (closed != null) {
+            console.print("自动部署已关闭！\n" + closed.getExecutor().getStats() + "\n",ConsoleViewContentType.SYSTEM_OUTPUT);
+        }
+    }
+
+    /**
+     * 关闭 AutoDeployment、日志输出和部署记录，不输出提示
+     *
+     * @return 关闭的 AutoDeployment，没有打开时为空
+     */
+    private AutoDeployment close() {
+        AutoDeployment closed = autoDeployment;
+        if (closed != null) {
+            closed.close();
+            logPipeline.close();
+            if (runLog != null) {
+                runLog.close();
+                runLog = null;
+            }
             autoDeployment = null;
+            logPipeline = null;
         }
+        return closed;
     }
 
     public JPanel getComponent() {
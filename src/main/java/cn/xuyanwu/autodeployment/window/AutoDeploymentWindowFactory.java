@@ -14,6 +14,7 @@ public class AutoDeploymentWindowFactory implements ToolWindowFactory {
         AutoDeploymentWindow window = new AutoDeploymentWindow(project);
         ContentFactory contentFactory = ContentFactory.SERVICE.getInstance();
         Content content = contentFactory.createContent(window.getComponent(),"",false);
+        content.setDisposer(window);
         toolWindow.getContentManager().addContent(content);
     }
 }
@@ -1,37 +1,41 @@
 package cn.xuyanwu.autodeployment.window;
 
-import cn.hutool.core.io.FileUtil;
-import cn.hutool.core.io.file.FileNameUtil;
+import cn.xuyanwu.autodeployment.AutoDeployment;
+import cn.xuyanwu.autodeployment.ScriptIndex;
 import com.intellij.execution.ui.ConsoleView;
 import com.intellij.execution.ui.ConsoleViewContentType;
 import com.intellij.icons.AllIcons;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
-import javax.swing.event.PopupMenuEvent;
-import javax.swing.event.PopupMenuListener;
 import java.awt.*;
 import java.io.File;
-import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
-public class Toolbar {
+public class Toolbar implements Disposable {
     private final Project project;
     private final ConsoleView console;
+    private final ScriptIndex scriptIndex;
     private final JPanel panel;
+    private final Runnable scriptListener = () -> SwingUtilities.invokeLater(this::refreshConfigComboBox);
+    private final Runnable saveListener = () -> SwingUtilities.invokeLater(this::warmUp);
     private ActionToolbar actionToolbar;
     private JComboBox<String> configComboBox;
+    private boolean refreshing;     //正在刷新下拉列表，不是用户选择的部署脚本
 
-    public Toolbar(Project project,ConsoleView console,Consumer<File> run,Runnable stop) {
+    public Toolbar(Project project,ConsoleView console,Consumer<File> run,Runnable stop,Consumer<File> rollback,Runnable history,Runnable search,Runnable trend,Consumer<File> probe) {
         this.project = project;
         this.console = console;
+        this.scriptIndex = ScriptIndex.getInstance(project);
         panel = new JPanel(new FlowLayout(FlowLayout.LEFT,6,0));
-        createActionToolbar(console,run,stop);
+        createActionToolbar(console,run,stop,rollback,history,search,trend,probe);
         createConfigComboBox();
         panel.add(configComboBox,BorderLayout.EAST);
         panel.add(actionToolbar.getComponent(),BorderLayout.WEST);
@@ -40,10 +44,15 @@ public class Toolbar {
     /**
      * 创建基本的工具条
      */
-    private void createActionToolbar(ConsoleView console,Consumer<File> run,Runnable stop) {
+    private void createActionToolbar(ConsoleView console,Consumer<File> run,Runnable stop,Consumer<File> rollback,Runnable history,Runnable search,Runnable trend,Consumer<File> probe) {
         DefaultActionGroup actions = new DefaultActionGroup();
         actions.addAction(new RunAction(run,this::getConfig));
         actions.addAction(new StopAction(stop));
+        actions.addAction(new RollbackAction(rollback,this::getConfig));
+        actions.addAction(new HistoryAction(history));
+        actions.addAction(new SearchAction(search));
+        actions.addAction(new TrendAction(trend));
+        actions.addAction(new ProbeAction(probe,this::getConfig));
 
         actions.addSeparator();
 
@@ -53,57 +62,65 @@ public class Toolbar {
     }
 
     /**
-     * 创建配置文件下拉列表框
+     * 创建配置文件下拉列表框，部署脚本变化时自动刷新；选中部署脚本和保存项目中的文件时预热连接
+     * 监听器在 dispose 时移除
      */
     private void createConfigComboBox() {
         configComboBox = new JComboBox<>();
         refreshConfigComboBox();
-        configComboBox.addPopupMenuListener(new PopupMenuListener() {
-            @Override
-            public void popupMenuWillBecomeVisible(PopupMenuEvent popupMenuEvent) {
-                refreshConfigComboBox();
+        scriptIndex.addListener(scriptListener);
+        configComboBox.addActionListener(e -> {
+            if (!refreshing) {
+                warmUp();
             }
+        });
+        scriptIndex.addSaveListener(saveListener);
+    }
 
-            @Override
-            public void popupMenuWillBecomeInvisible(PopupMenuEvent popupMenuEvent) {
-            }
+    /**
+     * 工具窗口关闭时移除部署脚本索引的监听器
+     */
+    @Override
+    public void dispose() {
+        scriptIndex.removeListener(scriptListener);
+        scriptIndex.removeSaveListener(saveListener);
+    }
 
-            @Override
-            public void popupMenuCanceled(PopupMenuEvent popupMenuEvent) {
-            }
-        });
+    /**
+     * 在后台登录选中的部署脚本中配置了 warmUp 的主机，点击部署时直接使用已登录的 session
+     */
+    private void warmUp() {
+        File file = getConfig();
+        if (file != null) {
+            ApplicationManager.getApplication().executeOnPooledThread(() -> AutoDeployment.warmUp(file));
+        }
     }
 
     /**
-     * 刷新配置文件下拉列表框
+     * 从部署脚本索引刷新配置文件下拉列表框
      */
     public void refreshConfigComboBox() {
         String selectedItem = (String) configComboBox.getSelectedItem();
-        configComboBox.removeAllItems();
-        String path = project.getBasePath() + "/autoDeployment";
-        if(!FileUtil.exist(path)){
-            console.print("没有扫描到部署脚本，请在项目的 autoDeployment 目录中创建部署脚本\n",ConsoleViewContentType.ERROR_OUTPUT);
-            return;
-        }
-        List<String> list = FileUtil.listFileNames(path).stream()
-                .filter(f -> {
-                    String extName = FileNameUtil.extName(f);
-                    return "sh".equals(extName) || "json".equals(extName);
-                })
-                .collect(Collectors.toList());
-
-        list.forEach(configComboBox::addItem);
-        if (selectedItem != null && list.contains(selectedItem)) {
-            configComboBox.setSelectedItem(selectedItem);
+        Set<String> names = scriptIndex.getScripts().keySet();
+        refreshing = true;
+        try {
+            configComboBox.setModel(new DefaultComboBoxModel<>(names.toArray(new String[0])));
+            if (selectedItem != null && names.contains(selectedItem)) {
+                configComboBox.setSelectedItem(selectedItem);
+            }
+        } finally {
+            refreshing = false;
+        }
+        if (names.isEmpty() && scriptIndex.isLoaded()) {
+            console.print("没有扫描到部署脚本，请在项目的 " + ScriptIndex.DEFAULT_ROOT + " 目录中创建部署脚本\n",ConsoleViewContentType.ERROR_OUTPUT);
         }
     }
 
     /**
-     * 刷新配置文件下拉列表框
+     * 获取选中的部署脚本
      */
     public File getConfig() {
-        String item = (String) configComboBox.getSelectedItem();
-        return item == null ? null : new File(project.getBasePath() + "/autoDeployment",item);
+        return scriptIndex.getScript((String) configComboBox.getSelectedItem());
     }
 
     public Component getPanel() {
@@ -147,4 +164,93 @@ public class Toolbar {
         }
     }
 
+    /**
+     * 回滚按钮
+     */
+    public static class RollbackAction extends AnAction implements DumbAware {
+        private final Consumer<File> callback;
+        private final Supplier<File> fileSupplier;
+
+        public RollbackAction(Consumer<File> callback,Supplier<File> fileSupplier) {
+            super("回滚","回滚到服务器上的备份",AllIcons.Actions.Rollback);
+            this.callback = callback;
+            this.fileSupplier = fileSupplier;
+        }
+
+        @Override
+        public void actionPerformed(@NotNull AnActionEvent e) {
+            callback.accept(fileSupplier.get());
+        }
+    }
+
+    /**
+     * 历史日志按钮
+     */
+    public static class HistoryAction extends AnAction implements DumbAware {
+        private final Runnable runnable;
+
+        public HistoryAction(Runnable runnable) {
+            super("历史日志","打开以前的部署日志",AllIcons.Vcs.History);
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void actionPerformed(@NotNull AnActionEvent e) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * 搜索日志按钮
+     */
+    public static class SearchAction extends AnAction implements DumbAware {
+        private final Runnable runnable;
+
+        public SearchAction(Runnable runnable) {
+            super("搜索日志","在以前的部署日志中搜索",AllIcons.Actions.Find);
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void actionPerformed(@NotNull AnActionEvent e) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * 性能趋势按钮
+     */
+    public static class TrendAction extends AnAction implements DumbAware {
+        private final Runnable runnable;
+
+        public TrendAction(Runnable runnable) {
+            super("性能趋势","对比最近几次部署各阶段的耗时",AllIcons.Actions.Lightning);
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void actionPerformed(@NotNull AnActionEvent e) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * 测试传输参数按钮
+     */
+    public static class ProbeAction extends AnAction implements DumbAware {
+        private final Consumer<File> callback;
+        private final Supplier<File> fileSupplier;
+
+        public ProbeAction(Consumer<File> callback,Supplier<File> fileSupplier) {
+            super("测试传输参数","测试加密算法和压缩级别，保存最快的组合",AllIcons.General.Settings);
+            this.callback = callback;
+            this.fileSupplier = fileSupplier;
+        }
+
+        @Override
+        public void actionPerformed(@NotNull AnActionEvent e) {
+            callback.accept(fileSupplier.get());
+        }
+    }
+
 }
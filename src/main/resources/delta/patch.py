@@ -0,0 +1,51 @@
+# 根据标准输入中的增量数据，用旧版本文件重建新文件
+# 参数：旧文件 新文件 块大小
+# 指令：C 块序号 块数量（从旧文件复制），L 长度 数据（新数据），E md5（结束并校验）
+import sys, struct, hashlib, os
+
+basis, target, size = sys.argv[1], sys.argv[2], int(sys.argv[3])
+stdin = getattr(sys.stdin, "buffer", sys.stdin)
+
+
+def read(n):
+    data = b""
+    while len(data) < n:
+        chunk = stdin.read(n - len(data))
+        if not chunk:
+            raise IOError("unexpected end of delta stream")
+        data += chunk
+    return data
+
+
+src = open(basis, "rb")
+out = open(target, "wb")
+md5 = hashlib.md5()
+while True:
+    op = read(1)
+    if op == b"C":
+        index, count = struct.unpack(">II", read(8))
+        src.seek(index * size)
+        remaining = count * size
+        while remaining > 0:
+            chunk = src.read(min(remaining, 1 << 20))
+            if not chunk:
+                raise IOError("basis file is shorter than expected")
+            out.write(chunk)
+            md5.update(chunk)
+            remaining -= len(chunk)
+    elif op == b"L":
+        length = struct.unpack(">I", read(4))[0]
+        chunk = read(length)
+        out.write(chunk)
+        md5.update(chunk)
+    elif op == b"E":
+        digest = read(16)
+        out.close()
+        src.close()
+        if md5.digest() != digest:
+            os.remove(target)
+            sys.stderr.write("md5 mismatch\n")
+            sys.exit(2)
+        sys.exit(0)
+    else:
+        raise IOError("unknown delta instruction")
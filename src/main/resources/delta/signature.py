@@ -0,0 +1,22 @@
+# 计算服务器上旧版本文件的分块校验和：每块输出一行 "adler32 md5"
+# 参数：块大小 候选文件...（支持通配符，取第一个存在且最新的文件）
+import sys, glob, os, zlib, hashlib
+
+size = int(sys.argv[1])
+basis = None
+for pattern in sys.argv[2:]:
+    files = [f for f in glob.glob(pattern) if os.path.isfile(f)]
+    if files:
+        basis = max(files, key=os.path.getmtime)
+        break
+if basis is None:
+    sys.exit(3)
+out = sys.stdout
+out.write(basis + "\n")
+f = open(basis, "rb")
+while True:
+    block = f.read(size)
+    if len(block) < size:
+        break
+    out.write("%08x %s\n" % (zlib.adler32(block) & 0xffffffff, hashlib.md5(block).hexdigest()))
+f.close()
@@ -0,0 +1,136 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.Session;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 备份的保留策略：按数量和天数删除，不删除当前版本、其他文件的备份和更晚的不完整发布目录
+ */
+class BackupStoreTest {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static TestSshServer server;
+    private Session session;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        server = new TestSshServer();
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        server.close();
+    }
+
+    @BeforeEach
+    void connect() throws Exception {
+        session = LinuxConnetionHelper.createSession(server.config("backup"));
+    }
+
+    @AfterEach
+    void disconnect() {
+        session.disconnect();
+    }
+
+    @Test
+    void keepBackups() throws Exception {
+        Path backup = Files.createDirectories(dir.resolve(".backup"));
+        String[] datetimes = {"2024.01.01.00.00.00","2024.01.02.00.00.00","2024.01.03.00.00.00","2024.01.04.00.00.00"};
+        for (String datetime : datetimes) {
+            Files.createFile(backup.resolve(datetime + ".app.war"));
+            Files.createDirectories(backup.resolve(datetime + ".app/WEB-INF"));
+        }
+        Files.createFile(backup.resolve("2024.01.01.00.00.00.other.war"));
+        BackupStore store = store(2,null,false);
+
+        assertEquals(Arrays.asList("2024.01.04.00.00.00","2024.01.03.00.00.00","2024.01.02.00.00.00","2024.01.01.00.00.00"),store.list(session));
+        //当前版本计入数量，但是不会被删除
+        assertEquals(1,store.retain(session,"2024.01.01.00.00.00"));
+        assertEquals(Arrays.asList("2024.01.04.00.00.00","2024.01.03.00.00.00","2024.01.01.00.00.00"),store.list(session));
+        assertFalse(Files.exists(backup.resolve("2024.01.02.00.00.00.app.war")));
+        assertFalse(Files.exists(backup.resolve("2024.01.02.00.00.00.app")),"war 包解压的目录一起删除");
+
+        assertEquals(1,store.retain(session,null));
+        assertEquals(Arrays.asList("2024.01.04.00.00.00","2024.01.03.00.00.00"),store.list(session));
+        assertTrue(Files.exists(backup.resolve("2024.01.01.00.00.00.other.war")),"其他文件的备份不删除");
+    }
+
+    @Test
+    void keepBackupDays() throws Exception {
+        Path backup = Files.createDirectories(dir.resolve(".backup"));
+        SimpleDateFormat format = new SimpleDateFormat(BackupStore.DATETIME_FORMAT);
+        String recent = format.format(new Date(System.currentTimeMillis() - DAY / 2));
+        String old = format.format(new Date(System.currentTimeMillis() - 3 * DAY));
+        String older = format.format(new Date(System.currentTimeMillis() - 4 * DAY));
+        for (String datetime : new String[]{recent,old,older}) {
+            Files.createFile(backup.resolve(datetime + ".app.war"));
+        }
+        BackupStore store = store(null,1,false);
+        assertEquals(1,store.retain(session,old));
+        assertEquals(Arrays.asList(recent,old),store.list(session));
+    }
+
+    @Test
+    void defaultKeep() throws Exception {
+        Path backup = Files.createDirectories(dir.resolve(".backup"));
+        for (int i = 10; i < 22; i++) {
+            Files.createFile(backup.resolve("2024.01." + i + ".00.00.00.app.war"));
+        }
+        BackupStore store = store(null,null,false);
+        assertEquals(2,store.retain(session,null));
+        assertEquals(10,store.list(session).size());
+        assertFalse(Files.exists(backup.resolve("2024.01.11.00.00.00.app.war")));
+        assertTrue(Files.exists(backup.resolve("2024.01.12.00.00.00.app.war")));
+    }
+
+    @Test
+    void releaseMode() throws Exception {
+        Path releases = Files.createDirectories(dir.resolve("releases"));
+        for (String datetime : new String[]{"2024.01.01.00.00.00","2024.01.02.00.00.00","2024.01.04.00.00.00"}) {
+            Files.createFile(Files.createDirectories(releases.resolve(datetime)).resolve("app.war"));
+        }
+        //上传中断留下的目录，比当前版本早的删除，更晚的可能正在上传
+        Files.createDirectories(releases.resolve("2024.01.03.00.00.00"));
+        Files.createDirectories(releases.resolve("2024.01.05.00.00.00"));
+        BackupStore store = store(1,null,true);
+
+        assertEquals(Arrays.asList("2024.01.04.00.00.00","2024.01.02.00.00.00","2024.01.01.00.00.00"),store.list(session));
+        assertEquals(1,store.retain(session,"2024.01.02.00.00.00"));
+        assertEquals(Arrays.asList("2024.01.04.00.00.00","2024.01.02.00.00.00"),store.list(session));
+        assertFalse(Files.exists(releases.resolve("2024.01.01.00.00.00")));
+        assertTrue(Files.exists(releases.resolve("2024.01.03.00.00.00")),"比当前版本晚的不完整目录不删除");
+
+        assertEquals(1,store.retain(session,"2024.01.04.00.00.00"));
+        assertEquals(Arrays.asList("2024.01.04.00.00.00"),store.list(session));
+        assertFalse(Files.exists(releases.resolve("2024.01.03.00.00.00")));
+        assertTrue(Files.exists(releases.resolve("2024.01.05.00.00.00")));
+
+        store.discard(session,"2024.01.05.00.00.00");
+        assertFalse(Files.exists(releases.resolve("2024.01.05.00.00.00")));
+    }
+
+    private BackupStore store(Integer keepBackups,Integer keepBackupDays,boolean releaseMode) {
+        Config config = server.config("backup");
+        config.setRemoteFile(dir.toAbsolutePath() + "/app.war");
+        config.setKeepBackups(keepBackups);
+        config.setKeepBackupDays(keepBackupDays);
+        config.setReleaseMode(releaseMode);
+        return new BackupStore(config);
+    }
+}
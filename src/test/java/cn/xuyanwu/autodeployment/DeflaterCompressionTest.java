@@ -0,0 +1,155 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Compression;
+import com.jcraft.jsch.Session;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 按 JSch 调用的方式压缩、解压不同大小的包，再通过进程内的 ssh 服务器确认开启压缩后传输正确且流量减少
+ */
+class DeflaterCompressionTest {
+    private static final int OFFSET = 5;    //JSch 的包从第 5 个字节开始是数据，前面是长度和填充长度
+    //ssh 的包至少有一个字节的消息类型，不会压缩空包
+    private static final int[] SIZES = {1,2,31,100,1000,4095,4096,4097,8192,32768,32769,65536,100000,262144};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTrip() {
+        for (int level : new int[]{1,6,9}) {
+            Compression deflater = new DeflaterCompression();
+            deflater.init(Compression.DEFLATER,level);
+            Compression inflater = new DeflaterCompression();
+            inflater.init(Compression.INFLATER,0);
+            Random random = new Random(level);
+            //同一对对象依次处理所有的包，和 ssh 连接中一样共用压缩状态
+            for (int i = 0; i < SIZES.length * 2; i++) {
+                int size = SIZES[i % SIZES.length];
+                byte[] data = data(random,size,i % 2 == 0);
+
+                byte[] buf = new byte[OFFSET + size];
+                fillHeader(buf);
+                System.arraycopy(data,0,buf,OFFSET,size);
+                int[] len = {OFFSET + size};
+                byte[] compressed = deflater.compress(buf,OFFSET,len);
+                assertHeader(compressed);
+                int compressedLength = len[0] - OFFSET;
+                assertTrue(compressedLength > 0,"压缩后的包不能为空");
+
+                byte[] packet = new byte[OFFSET + compressedLength];
+                fillHeader(packet);
+                System.arraycopy(compressed,OFFSET,packet,OFFSET,compressedLength);
+                len[0] = compressedLength;
+                byte[] uncompressed = inflater.uncompress(packet,OFFSET,len);
+                assertNotNull(uncompressed,"level " + level + "，" + size + " 字节");
+                assertHeader(uncompressed);
+                assertEquals(size,len[0]);
+                assertArrayEquals(data,Arrays.copyOfRange(uncompressed,OFFSET,OFFSET + size),"level " + level + "，" + size + " 字节");
+            }
+        }
+    }
+
+    @Test
+    void corruptedDataReturnsNull() {
+        Compression inflater = new DeflaterCompression();
+        inflater.init(Compression.INFLATER,0);
+        byte[] packet = new byte[OFFSET + 16];
+        Arrays.fill(packet,OFFSET,packet.length,(byte) 0xff);
+        assertNull(inflater.uncompress(packet,OFFSET,new int[]{16}));
+    }
+
+    @Test
+    void compressedSession() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("remote"));
+        SshServer sshd = SshServer.setUpDefaultServer();
+        sshd.setPort(0);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        sshd.setPasswordAuthenticator((user,password,session) -> "test".equals(password));
+        sshd.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        sshd.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        sshd.start();
+        Session session = null;
+        try {
+            Config config = new Config("127.0.0.1",sshd.getPort(),"test","test");
+            config.setSshCompression(6);
+            session = LinuxConnetionHelper.createSession(config);
+            //日志文本压缩率很高，随机数据验证不能压缩的包
+            byte[] text = data(new Random(1),4 * 1024 * 1024,true);
+            byte[] binary = data(new Random(2),256 * 1024,false);
+            SessionTraffic traffic = SessionTraffic.of(session);
+            long sent = traffic.getSent();
+            long received = traffic.getReceived();
+            ChannelSftp channel = LinuxConnetionHelper.openChannelSftp(session);
+            try {
+                channel.put(new ByteArrayInputStream(text),"/text.log");
+                channel.put(new ByteArrayInputStream(binary),"/binary.bin");
+                assertArrayEquals(text,Files.readAllBytes(root.resolve("text.log")));
+                assertArrayEquals(binary,Files.readAllBytes(root.resolve("binary.bin")));
+
+                ByteArrayOutputStream download = new ByteArrayOutputStream();
+                channel.get("/text.log",download);
+                assertArrayEquals(text,download.toByteArray());
+            } finally {
+                channel.disconnect();
+            }
+            long upload = traffic.getSent() - sent;
+            long download = traffic.getReceived() - received;
+            assertTrue(upload < text.length / 4 + binary.length * 2,"上传 " + upload + " 字节，没有压缩");
+            assertTrue(download < text.length / 4,"下载 " + download + " 字节，没有压缩");
+        } finally {
+            if (session != null) {
+                session.disconnect();
+            }
+            sshd.stop(true);
+        }
+    }
+
+    /**
+     * @param text 为 true 时生成重复的日志文本，否则是随机数据
+     */
+    private static byte[] data(Random random,int size,boolean text) {
+        byte[] data = new byte[size];
+        if (!text) {
+            random.nextBytes(data);
+            return data;
+        }
+        String[] words = {"INFO ","WARN ","DEBUG ","c.x.a.HostDeployment ","started ","upload ","12345 ","\n"};
+        int offset = 0;
+        while (offset < size) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            int len = Math.min(word.length,size - offset);
+            System.arraycopy(word,0,data,offset,len);
+            offset += len;
+        }
+        return data;
+    }
+
+    private static void fillHeader(byte[] buf) {
+        for (int i = 0; i < OFFSET; i++) {
+            buf[i] = (byte) (i + 1);
+        }
+    }
+
+    private static void assertHeader(byte[] buf) {
+        for (int i = 0; i < OFFSET; i++) {
+            assertEquals((byte) (i + 1),buf[i],"包头被覆盖");
+        }
+    }
+}
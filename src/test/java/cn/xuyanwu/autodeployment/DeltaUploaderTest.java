@@ -0,0 +1,188 @@
+package cn.xuyanwu.autodeployment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.Adler32;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 滚动校验和生成的增量指令能用旧文件重建出新文件：在 Java 中按指令重建，也用服务器上执行的 patch.py 重建
+ */
+class DeltaUploaderTest {
+    private static final int BLOCK_SIZE = 2048;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void adler32MatchesZlib() {
+        Random random = new Random(1);
+        for (int length : new int[]{1,100,2048,5552,5553,100_000}) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            int[] sum = DeltaUploader.adler32(ByteBuffer.wrap(data),0,length);
+            Adler32 adler32 = new Adler32();
+            adler32.update(data);
+            assertEquals(adler32.getValue(),((long) sum[1] << 16) | sum[0],length + " 字节");
+        }
+    }
+
+    @Test
+    void unchangedFileIsCopiedOnly() throws Exception {
+        byte[] old = random(1,BLOCK_SIZE * 50);
+        Delta delta = delta(old,old);
+        assertEquals(50,delta.copied);
+        assertEquals(0,delta.literal);
+        assertArrayEquals(old,patch(old,delta.bytes));
+    }
+
+    @Test
+    void shiftedBlocksAreFoundByRollingChecksum() throws Exception {
+        byte[] old = random(2,200_000);
+        ByteArrayOutputStream changed = new ByteArrayOutputStream();
+        //开头插入不是块大小整数倍的数据，之后的块都错开了位置，只有滚动校验和才能找到
+        changed.write(random(3,100));
+        changed.write(old,0,50_000);
+        changed.write(random(4,300));
+        changed.write(old,50_000,70_000);
+        old[120_000] ^= 0xff;
+        changed.write(old,120_000,80_000);
+        old[120_000] ^= 0xff;
+        changed.write(random(5,1234));
+        byte[] data = changed.toByteArray();
+
+        Delta delta = delta(old,data);
+        assertArrayEquals(data,patch(old,delta.bytes));
+        //插入和修改的位置最多各影响两个块，其余的块都从旧文件复制
+        assertTrue(delta.copied >= old.length / BLOCK_SIZE - 8,"复制了 " + delta.copied + " 块");
+        assertTrue(delta.literal < 8 * BLOCK_SIZE + 100 + 300 + 1234,"新数据 " + delta.literal + " 字节");
+    }
+
+    @Test
+    void smallerThanBlockIsLiteral() throws Exception {
+        byte[] old = random(6,BLOCK_SIZE * 4);
+        byte[] data = random(7,BLOCK_SIZE - 1);
+        Delta delta = delta(old,data);
+        assertEquals(0,delta.copied);
+        assertEquals(data.length,delta.literal);
+        assertArrayEquals(data,patch(old,delta.bytes));
+    }
+
+    @Test
+    void patchScriptRebuildsFile() throws Exception {
+        assumeTrue(hasPython(),"系统中没有 python3");
+        byte[] old = random(8,300_000);
+        byte[] data = old.clone();
+        for (int i = 0; i < data.length; i += 37_000) {
+            data[i] ^= 0x5a;
+        }
+        Path basis = Files.write(dir.resolve("old.bin"),old);
+        Path script = dir.resolve("patch.py");
+        try (InputStream in = DeltaUploader.class.getResourceAsStream("/delta/patch.py")) {
+            Files.copy(in,script);
+        }
+        Delta delta = delta(old,data);
+
+        Path target = dir.resolve("new.bin");
+        assertEquals(0,runPatch(script,basis,target,delta.bytes));
+        assertArrayEquals(data,Files.readAllBytes(target));
+
+        //结尾的 md5 不一致时删除重建的文件并返回 2
+        byte[] corrupted = delta.bytes.clone();
+        corrupted[corrupted.length - 1] ^= 0xff;
+        Path broken = dir.resolve("broken.bin");
+        assertEquals(2,runPatch(script,basis,broken,corrupted));
+        assertFalse(Files.exists(broken));
+    }
+
+    /**
+     * 按 signature.py 的方式计算旧文件的分块校验和，再生成增量指令
+     */
+    private static Delta delta(byte[] old,byte[] data) throws Exception {
+        Map<Integer, List<Integer>> weakIndex = new HashMap<>();
+        List<byte[]> strongs = new ArrayList<>();
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int offset = 0; offset + BLOCK_SIZE <= old.length; offset += BLOCK_SIZE) {
+            Adler32 adler32 = new Adler32();
+            adler32.update(old,offset,BLOCK_SIZE);
+            md5.update(old,offset,BLOCK_SIZE);
+            weakIndex.computeIfAbsent((int) adler32.getValue(),k -> new ArrayList<>()).add(strongs.size());
+            strongs.add(md5.digest());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaUploader.DeltaWriter writer = new DeltaUploader.DeltaWriter(new DataOutputStream(out));
+        DeltaUploader.writeDelta(ByteBuffer.wrap(data),data.length,BLOCK_SIZE,weakIndex,strongs,writer);
+        return new Delta(out.toByteArray(),writer.getCopied(),writer.getLiteral());
+    }
+
+    /**
+     * 和 patch.py 相同的重建过程，并校验结尾的 md5
+     */
+    private static byte[] patch(byte[] old,byte[] delta) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            int op = in.readByte();
+            if (op == 'C') {
+                int index = in.readInt();
+                int count = in.readInt();
+                out.write(old,index * BLOCK_SIZE,count * BLOCK_SIZE);
+            } else if (op == 'L') {
+                byte[] literal = new byte[in.readInt()];
+                in.readFully(literal);
+                out.write(literal);
+            } else {
+                assertEquals('E',op);
+                byte[] md5 = new byte[16];
+                in.readFully(md5);
+                assertEquals(-1,in.read(),"结束指令之后还有数据");
+                assertArrayEquals(MessageDigest.getInstance("MD5").digest(out.toByteArray()),md5);
+                return out.toByteArray();
+            }
+        }
+    }
+
+    private static int runPatch(Path script,Path basis,Path target,byte[] delta) throws Exception {
+        Process process = new ProcessBuilder("python3",script.toString(),basis.toString(),target.toString(),String.valueOf(BLOCK_SIZE))
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try (OutputStream in = process.getOutputStream()) {
+            in.write(delta);
+        }
+        return process.waitFor();
+    }
+
+    private static boolean hasPython() {
+        try {
+            return new ProcessBuilder("python3","--version").start().waitFor() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static byte[] random(long seed,int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static class Delta {
+        private final byte[] bytes;
+        private final long copied;
+        private final long literal;
+
+        private Delta(byte[] bytes,long copied,long literal) {
+            this.bytes = bytes;
+            this.copied = copied;
+            this.literal = literal;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package cn.xuyanwu.autodeployment;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 步骤按依赖关系执行：依赖都完成后才开始，没有依赖关系的同时执行，失败的步骤只影响依赖它的步骤
+ */
+class DeploymentGraphTest {
+    private final DeploymentExecutor executor = new DeploymentExecutor(null);
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void tearDown() {
+        executor.dispose();
+    }
+
+    @Test
+    void dependenciesRunFirst() throws Exception {
+        //b 和 c 互相等待，只有同时执行才能结束
+        CountDownLatch both = new CountDownLatch(2);
+        DeploymentGraph graph = new DeploymentGraph("test",executor)
+                .add("a",step("a"))
+                .add("b",() -> meet("b",both),"a")
+                .add("c",() -> meet("c",both),"a")
+                .add("d",step("d"),"b","c");
+        graph.run();
+
+        assertEquals("start a",events.get(0));
+        assertEquals("end a",events.get(1));
+        assertEquals(new HashSet<>(Arrays.asList("start b","start c")),new HashSet<>(events.subList(2,4)));
+        assertEquals(Arrays.asList("start d","end d"),events.subList(6,8));
+        assertEquals(Arrays.asList("a","b","c","d"),new ArrayList<>(graph.getDurations().keySet()));
+    }
+
+    @Test
+    void failedStepSkipsDependents() {
+        IOException error = new IOException("a 失败");
+        DeploymentGraph graph = new DeploymentGraph("test",executor)
+                .add("a",() -> {
+                    throw error;
+                })
+                .add("b",step("b"),"a")
+                .add("c",step("c"))
+                .add("d",step("d"),"c");
+        assertSame(error,assertThrows(IOException.class,graph::run));
+        assertFalse(events.contains("start b"));
+        assertTrue(events.contains("end d"),"不依赖失败步骤的步骤继续执行");
+        assertEquals(new HashSet<>(Arrays.asList("a","c","d")),graph.getDurations().keySet());
+    }
+
+    @Test
+    void criticalPath() throws Exception {
+        DeploymentGraph graph = new DeploymentGraph("test",executor)
+                .add("connect",sleep(20))
+                .add("upload",sleep(300),"connect")
+                .add("backup",sleep(20),"connect")
+                .add("check",sleep(50))
+                .add("restart",sleep(20),"upload","backup","check");
+        graph.run();
+
+        assertEquals(Arrays.asList("connect","upload","restart"),graph.getCriticalPath());
+        Map<String, Long> durations = graph.getDurations();
+        assertEquals(durations.get("connect") + durations.get("upload") + durations.get("restart"),graph.getCriticalPathTime());
+        assertTrue(graph.getCriticalPathTime() >= 340,graph.summary());
+        assertTrue(graph.summary().startsWith("关键路径 " + graph.getCriticalPathTime() + "ms：connect "),graph.summary());
+    }
+
+    @Test
+    void invalidSteps() {
+        DeploymentGraph graph = new DeploymentGraph("test",executor).add("a",step("a"));
+        assertThrows(IllegalArgumentException.class,() -> graph.add("a",step("a")));
+        assertThrows(IllegalArgumentException.class,() -> graph.add("b",step("b"),"c"));
+        assertFalse(graph.contains("b"));
+    }
+
+    private HostDeployment.Step step(String name) {
+        return () -> {
+            events.add("start " + name);
+            events.add("end " + name);
+        };
+    }
+
+    private void meet(String name,CountDownLatch latch) throws InterruptedException {
+        events.add("start " + name);
+        latch.countDown();
+        assertTrue(latch.await(5,TimeUnit.SECONDS),"没有依赖关系的步骤没有同时执行");
+        events.add("end " + name);
+    }
+
+    private static HostDeployment.Step sleep(long millis) {
+        return () -> Thread.sleep(millis);
+    }
+}
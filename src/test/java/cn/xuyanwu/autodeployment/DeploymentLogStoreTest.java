@@ -0,0 +1,171 @@
+package cn.xuyanwu.autodeployment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 日志存储使用 4KB 的分段，最多保留 3 个：每行日志加上记录头是 1018 字节，每个分段正好放下 4 行
+ */
+class DeploymentLogStoreTest {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int MAX_SEGMENTS = 3;
+    private static final Log NONE = str -> {
+    };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recordsSpanSegments() throws Exception {
+        DeploymentLogStore store = DeploymentLogStore.open(dir.toFile(),SEGMENT_SIZE,MAX_SEGMENTS);
+        StringBuffer output = new StringBuffer();
+        DeploymentLogStore.RunLog log = store.open("deploy.json",output::append);
+        for (int i = 1; i <= 10; i++) {
+            log.print(line(1,i));
+        }
+        log.close();
+        assertEquals(lines(1,1,10),output.toString(),"同时输出到下一个 Log");
+        assertEquals(Arrays.asList(segment(0),segment(1),segment(2)),segments());
+        assertEquals(lines(1,1,10),read(store,store.getRuns().get(0),null));
+        store.close();
+    }
+
+    @Test
+    void oldestSegmentIsPruned() throws Exception {
+        DeploymentLogStore store = DeploymentLogStore.open(dir.toFile(),SEGMENT_SIZE,MAX_SEGMENTS);
+        DeploymentLogStore.RunLog first = store.open("first.sh",NONE);
+        for (int i = 1; i <= 4; i++) {
+            first.print(line(1,i));
+        }
+        first.close();
+
+        //第 9 行切换到第 4 个分段时删除第 1 个分段和只在其中的部署，第 13 行再删除第 2 个分段
+        DeploymentLogStore.RunLog second = store.open("second.sh",NONE);
+        for (int i = 1; i <= 13; i++) {
+            second.print(line(2,i));
+        }
+        List<DeploymentLogStore.Run> runs = store.getRuns();
+        assertEquals(1,runs.size());
+        assertEquals("second.sh",runs.get(0).getName());
+        assertEquals(Arrays.asList(segment(2),segment(3),segment(4)),segments());
+        //正在写入的部署开始的分段已删除，只能读取到剩下的部分
+        assertEquals(lines(2,5,13),read(store,runs.get(0),null));
+        second.close();
+        store.close();
+
+        //重新打开时按索引恢复部署记录
+        store = DeploymentLogStore.open(dir.toFile(),SEGMENT_SIZE,MAX_SEGMENTS);
+        runs = store.getRuns();
+        assertEquals(1,runs.size());
+        assertEquals(lines(2,5,13),read(store,runs.get(0),null));
+        DeploymentLogStore.RunLog third = store.open("third.sh",NONE);
+        third.print(line(3,1));
+        third.close();
+        assertEquals(lines(3,1,1),read(store,store.getRuns().get(0),null));
+        assertEquals(lines(2,5,13),read(store,store.getRuns().get(1),null),"新的部署从上次写入的位置继续");
+        store.close();
+    }
+
+    @Test
+    void unfinishedRunIsDroppedWhenItsStartIsPruned() throws Exception {
+        DeploymentLogStore store = DeploymentLogStore.open(dir.toFile(),SEGMENT_SIZE,MAX_SEGMENTS);
+        DeploymentLogStore.RunLog log = store.open("crash.sh",NONE);
+        for (int i = 1; i <= 13; i++) {
+            log.print(line(1,i));
+        }
+        assertEquals(1,store.getRuns().size());
+        //没有调用 log.close，相当于部署时 IDE 退出
+        store.close();
+        store = DeploymentLogStore.open(dir.toFile(),SEGMENT_SIZE,MAX_SEGMENTS);
+        assertTrue(store.getRuns().isEmpty());
+        store.close();
+    }
+
+    @Test
+    void searchByHost() throws Exception {
+        DeploymentLogStore store = DeploymentLogStore.open(dir.toFile(),SEGMENT_SIZE,MAX_SEGMENTS);
+        DeploymentLogStore.RunLog log = store.open("deploy.json",NONE);
+        log.print("开始部署\n");
+        log.forHost("web-1").print("INFO started\nERROR 端口被占用\n");
+        log.forHost("web-2").print("ERROR 磁盘已满\n");
+        log.close();
+
+        List<DeploymentLogStore.Match> matches = store.search("ERROR",null,10);
+        assertEquals(2,matches.size());
+        assertEquals("ERROR 端口被占用",matches.get(0).getLine());
+        assertEquals("web-1",matches.get(0).getHost());
+        assertEquals("web-2",matches.get(1).getHost());
+        assertEquals(1,store.search("ERROR",null,1).size());
+
+        matches = store.search("ERROR","web-2",10);
+        assertEquals(1,matches.size());
+        assertEquals("ERROR 磁盘已满",matches.get(0).getLine());
+        assertEquals("ERROR 磁盘已满\n",read(store,matches.get(0).getRun(),"web-2"));
+        store.close();
+    }
+
+    @Test
+    void closedStoreIsReopened() throws Exception {
+        DeploymentLogStore store = DeploymentLogStore.of(dir.toFile());
+        assertSame(store,DeploymentLogStore.of(dir.toFile()));
+        StringBuffer output = new StringBuffer();
+        DeploymentLogStore.RunLog log = store.open("deploy.sh",output::append);
+        log.print("before\n");
+        store.close();
+        assertThrows(IllegalStateException.class,() -> store.open("deploy.sh",NONE));
+        //关闭后不再记录，日志仍然输出到下一个 Log
+        log.print("after\n");
+        log.close();
+        assertEquals("before\nafter\n",output.toString());
+
+        DeploymentLogStore reopened = DeploymentLogStore.of(dir.toFile());
+        try {
+            assertNotSame(store,reopened);
+            assertEquals("before\n",read(reopened,reopened.getRuns().get(0),null));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static String read(DeploymentLogStore store,DeploymentLogStore.Run run,String host) {
+        StringBuffer out = new StringBuffer();
+        store.read(run,host,0,out::append);
+        return out.toString();
+    }
+
+    private List<String> segments() {
+        String[] names = dir.toFile().list((d,name) -> name.endsWith(".log"));
+        assertNotNull(names);
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static String segment(int index) {
+        return String.format("%020d.log",(long) index * SEGMENT_SIZE);
+    }
+
+    /**
+     * 1000 字节的一行日志
+     */
+    private static String line(int run,int index) {
+        StringBuilder sb = new StringBuilder("run-" + run + " line-" + index + " ");
+        while (sb.length() < 999) {
+            sb.append('.');
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static String lines(int run,int from,int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i <= to; i++) {
+            sb.append(line(run,i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package cn.xuyanwu.autodeployment;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 部署文件的校验：所有的错误一起返回，警告不影响解析
+ */
+class DeploymentPlanParserTest {
+    private static final String SH_HEADER = "# host=h\n# port=22\n# username=u\n# password=p\n# remoteDir=/x\n";
+    private static final String HOST = "\"host\":\"h\",\"port\":22,\"user\":\"u\",\"password\":\"p\",\"localFile\":\"/l/app.jar\",\"startCMD\":\"start\"";
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void tearDown() {
+        DeploymentPlanParser.clear();
+    }
+
+    @Test
+    void shPlan() throws Exception {
+        DeploymentPlan plan = DeploymentPlanParser.parseSH(new File("deploy.sh"),SH_HEADER + "# localFile=/l/a.jar\n# localFile=/l/b.jar\n# include=*.jar, lib/**\n# port=23\necho ok\n");
+        Config config = plan.getHosts().get(0);
+        assertEquals(DeploymentPlan.Type.SH,plan.getType());
+        assertEquals(22,config.getPort(),"同一个配置有多个时使用第一个");
+        assertEquals("/x",plan.getRemoteDir());
+        assertEquals(Arrays.asList("/l/a.jar","/l/b.jar"),plan.getLocalFiles());
+        assertEquals(Arrays.asList("*.jar","lib/**"),config.getIncludes());
+        assertEquals("echo ok\n",plan.getScript());
+        assertTrue(plan.getWarnings().isEmpty());
+    }
+
+    @Test
+    void shMissingValues() {
+        DeploymentPlanException e = assertThrows(DeploymentPlanException.class,() -> DeploymentPlanParser.parseSH(new File("deploy.sh"),"# host=\necho ok\n"));
+        assertEquals(Arrays.asList("没有找到 host 的值！","没有找到 port 的值！","没有找到 username 的值！","没有找到 password 的值！","没有找到 remoteDir 的值！"),e.getErrors());
+    }
+
+    @Test
+    void shInvalidValues() {
+        String text = "# host=h\n# port=65536\n# username=u\n# password=p\n# remoteDir=/x\n"
+                + "# chunkSize=1M\n# artifactCache=yes\n# compressionLevel=0\n# transferMode=ftp\n";
+        DeploymentPlanException e = assertThrows(DeploymentPlanException.class,() -> DeploymentPlanParser.parseSH(new File("deploy.sh"),text));
+        assertEquals(Arrays.asList("port 的值不正确：65536","chunkSize 的值不是数字！","artifactCache 的值只能是 true 或 false：yes",
+                "不支持的上传方式：ftp","compressionLevel 的值需要在 1 到 9 之间：0"),e.getErrors());
+    }
+
+    @Test
+    void shPortIsNotNumber() {
+        String text = "# host=h\n# port=ssh\n# username=u\n# password=p\n# remoteDir=/x\n";
+        DeploymentPlanException e = assertThrows(DeploymentPlanException.class,() -> DeploymentPlanParser.parseSH(new File("deploy.sh"),text));
+        assertEquals(Collections.singletonList("port 的值不是数字！"),e.getErrors());
+    }
+
+    @Test
+    void shWithoutLocalFileIsWarning() throws Exception {
+        DeploymentPlan plan = DeploymentPlanParser.parseSH(new File("deploy.sh"),SH_HEADER);
+        assertEquals(Collections.singletonList("没有找到 localFile 的值！但是部署还在继续..."),plan.getWarnings());
+    }
+
+    @Test
+    void jsonPlan() throws Exception {
+        DeploymentPlan plan = DeploymentPlanParser.parseJSON(new File("deploy.json"),"[{" + HOST + ",\"remoteFile\":\"/r/app.jar\",\"stopCMD\":\"stop\"}]");
+        assertEquals(DeploymentPlan.Type.JSON,plan.getType());
+        assertEquals("h",plan.getHosts().get(0).getHost());
+        assertEquals(Collections.singletonList("第 1 台主机：没有配置 logCMD"),plan.getWarnings());
+    }
+
+    @Test
+    void jsonMalformedOrEmpty() {
+        DeploymentPlanException e = assertThrows(DeploymentPlanException.class,() -> DeploymentPlanParser.parseJSON(new File("deploy.json"),"[{\"host\":"));
+        assertEquals(1,e.getErrors().size());
+        assertTrue(e.getErrors().get(0).startsWith("deploy.json 格式不正确："),e.getErrors().get(0));
+
+        e = assertThrows(DeploymentPlanException.class,() -> DeploymentPlanParser.parseJSON(new File("deploy.json"),"[]"));
+        assertEquals(Collections.singletonList("deploy.json 中没有配置远程主机！"),e.getErrors());
+    }
+
+    @Test
+    void jsonErrorsOfAllHosts() {
+        String text = "[{\"name\":\"web\",\"port\":0,\"localFile\":\"/l/app.jar\",\"remoteFile\":\"/r/app\"},"
+                + "{" + HOST + ",\"remoteFile\":\"r/app.jar\",\"compressionLevel\":10,\"chunkSize\":0,\"keepBackups\":0,\"logCMD\":\"tail\",\"logRate\":-1},"
+                + "{" + HOST.replace("/l/app.jar","/l/dist/") + ",\"remoteFile\":\"/r/dist/\",\"stopCMD\":\"stop\",\"logCMD\":\"tail\",\"logInclude\":\"(\"}]";
+        DeploymentPlanException e = assertThrows(DeploymentPlanException.class,() -> DeploymentPlanParser.parseJSON(new File("deploy.json"),text));
+        assertEquals(Arrays.asList(
+                "第 1 台主机（web）：没有找到 host 的值！",
+                "第 1 台主机（web）：port 的值不正确：0",
+                "第 1 台主机（web）：没有找到 user 的值！",
+                "第 1 台主机（web）：没有找到 password 的值！",
+                "第 1 台主机（web）：remoteFile 需要是带扩展名的绝对路径：/r/app",
+                "第 1 台主机（web）：没有找到 startCMD 的值！",
+                "第 2 台主机：remoteFile 需要是带扩展名的绝对路径：r/app.jar",
+                "第 2 台主机：compressionLevel 的值需要在 1 到 9 之间：10",
+                "第 2 台主机：chunkSize 的值需要大于 0：0",
+                "第 2 台主机：keepBackups 的值需要大于 0：0",
+                "第 2 台主机：logRate 的值需要大于 0：-1",
+                "第 3 台主机：上传文件夹时 remoteFile 需要是不以 / 结尾的绝对路径：/r/dist/",
+                "第 3 台主机：logInclude 不是正确的正则表达式：("),e.getErrors());
+    }
+
+    @Test
+    void parseFileType() throws Exception {
+        File empty = write("empty.sh"," \n");
+        DeploymentPlanException e = assertThrows(DeploymentPlanException.class,() -> DeploymentPlanParser.parse(empty));
+        assertEquals(Collections.singletonList("empty.sh 文件是空的！"),e.getErrors());
+
+        File yaml = write("deploy.yaml","host: h\n");
+        e = assertThrows(DeploymentPlanException.class,() -> DeploymentPlanParser.parse(yaml));
+        assertEquals(Collections.singletonList("不支持 yaml 类型的文件！"),e.getErrors());
+
+        File sh = write("deploy.sh",SH_HEADER + "# localFile=/l/a.jar\n");
+        assertSame(DeploymentPlanParser.parse(sh),DeploymentPlanParser.parse(sh),"文件没有修改时使用上次的结果");
+    }
+
+    private File write(String name,String text) throws Exception {
+        return Files.write(dir.resolve(name),text.getBytes(StandardCharsets.UTF_8)).toFile();
+    }
+}
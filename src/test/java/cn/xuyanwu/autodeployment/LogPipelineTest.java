@@ -0,0 +1,75 @@
+package cn.xuyanwu.autodeployment;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓冲区满时按整行丢弃日志并输出跳过的行数；除了定时输出的测试，输出间隔都很长，只在调用 flush 时输出
+ */
+class LogPipelineTest {
+    private static final long NEVER = 60 * 60 * 1000;
+
+    private final StringBuffer output = new StringBuffer();
+
+    @Test
+    void linesAreDroppedWhenBufferIsFull() {
+        LogPipeline pipeline = new LogPipeline(output::append,32,1024,NEVER);
+        for (int i = 1; i <= 6; i++) {
+            pipeline.print("line-" + i + "\n");
+        }
+        pipeline.flush();
+        assertEquals("line-1\nline-2\nline-3\nline-4\n[日志输出过快，已跳过 2 行]\n",output.toString());
+        assertEquals(2,pipeline.getSkippedLines());
+
+        output.setLength(0);
+        pipeline.print("line-7\n");
+        pipeline.close();
+        assertEquals("line-7\n",output.toString());
+        assertEquals(2,pipeline.getSkippedLines());
+    }
+
+    @Test
+    void remainderOfDroppedLineIsSkipped() {
+        LogPipeline pipeline = new LogPipeline(output::append,128,1024,NEVER);
+        pipeline.print("a\n");
+        pipeline.print(repeat('x',200));
+        //被丢弃的行剩余的部分也不输出，跳过的行数出现在丢弃日志的位置
+        pipeline.print("yyy\nnext\n");
+        pipeline.close();
+        assertEquals("a\n[日志输出过快，已跳过 1 行]\nnext\n",output.toString());
+        assertEquals(1,pipeline.getSkippedLines());
+    }
+
+    @Test
+    void multiByteCharactersSplitAcrossBatches() {
+        LogPipeline pipeline = new LogPipeline(output::append,1024,4,NEVER);
+        String text = "中文日志，每次只输出 4 个字节\n第二行\n";
+        pipeline.print(text);
+        pipeline.close();
+        assertEquals(text,output.toString());
+    }
+
+    @Test
+    void flushesOnSchedule() throws Exception {
+        LogPipeline pipeline = new LogPipeline(output::append,1024,1024,10);
+        try {
+            pipeline.print("scheduled\n");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (output.length() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("scheduled\n",output.toString());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    private static String repeat(char c,int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
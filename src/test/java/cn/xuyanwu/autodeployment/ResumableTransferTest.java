@@ -0,0 +1,132 @@
+package cn.xuyanwu.autodeployment;
+
+import cn.hutool.core.util.HexUtil;
+import com.jcraft.jsch.Session;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 断点续传：已传输部分的 md5 一致时从临时文件末尾继续，不一致或比文件还长时重新传输
+ */
+class ResumableTransferTest {
+    private static final int LENGTH = 300_000;
+    private static final int PREFIX = 100_000;
+
+    private static TestSshServer server;
+    private Session session;
+    private final StringBuffer log = new StringBuffer();
+    private byte[] data;
+    private Path local;
+    private Path remote;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        server = new TestSshServer();
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        server.close();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        session = LinuxConnetionHelper.createSession(server.config("resume"));
+        data = new byte[LENGTH];
+        new Random(1).nextBytes(data);
+        local = Files.write(Files.createDirectories(dir.resolve("local")).resolve("app.jar"),data);
+        remote = Files.createDirectories(dir.resolve("remote"));
+    }
+
+    @AfterEach
+    void disconnect() {
+        session.disconnect();
+    }
+
+    @Test
+    void uploadResumesMatchingPrefix() throws Exception {
+        Path part = Files.write(uploadPart(),Arrays.copyOf(data,PREFIX));
+        //本地文件修改前留下的临时文件，上传完成后删除
+        Path stale = Files.write(remote.resolve(".app.jar.000000000000.part"),new byte[10]);
+        upload();
+        assertTrue(log.toString().contains("已上传部分校验通过"),log.toString());
+        assertArrayEquals(data,Files.readAllBytes(remote.resolve("app.jar")));
+        assertFalse(Files.exists(part));
+        assertFalse(Files.exists(stale));
+    }
+
+    @Test
+    void uploadRestartsWhenPrefixDiffers() throws Exception {
+        byte[] prefix = Arrays.copyOf(data,PREFIX);
+        prefix[PREFIX / 2] ^= 0xff;
+        Files.write(uploadPart(),prefix);
+        upload();
+        assertTrue(log.toString().contains("未完成的上传校验不通过，重新上传"),log.toString());
+        assertArrayEquals(data,Files.readAllBytes(remote.resolve("app.jar")));
+    }
+
+    @Test
+    void uploadRestartsWhenPartIsLonger() throws Exception {
+        byte[] longer = Arrays.copyOf(data,LENGTH + 10);
+        Files.write(uploadPart(),longer);
+        upload();
+        assertTrue(log.toString().contains("未完成的上传校验不通过，重新上传"),log.toString());
+        assertArrayEquals(data,Files.readAllBytes(remote.resolve("app.jar")));
+    }
+
+    @Test
+    void downloadResumesMatchingPrefix() throws Exception {
+        Path source = Files.write(remote.resolve("app.jar"),data);
+        Path target = dir.resolve("download/app.jar");
+        Files.createDirectories(target.getParent());
+        Files.write(target.resolveSibling("app.jar.part"),Arrays.copyOf(data,PREFIX));
+        ResumableTransfer.download(session,source.toString(),target.toString(),log::append);
+        assertTrue(log.toString().contains("已下载部分校验通过"),log.toString());
+        assertArrayEquals(data,Files.readAllBytes(target));
+        assertFalse(Files.exists(target.resolveSibling("app.jar.part")));
+    }
+
+    @Test
+    void downloadRestartsWhenPrefixDiffers() throws Exception {
+        Path source = Files.write(remote.resolve("app.jar"),data);
+        Path target = dir.resolve("download/app.jar");
+        Files.createDirectories(target.getParent());
+        byte[] prefix = Arrays.copyOf(data,PREFIX);
+        prefix[0] ^= 0xff;
+        Files.write(target.resolveSibling("app.jar.part"),prefix);
+        ResumableTransfer.download(session,source.toString(),target.toString(),log::append);
+        assertTrue(log.toString().contains("未完成的下载校验不通过，重新下载"),log.toString());
+        assertArrayEquals(data,Files.readAllBytes(target));
+    }
+
+    private void upload() throws Exception {
+        ResumableTransfer.upload(session,local.toString(),remote.resolve("app.jar").toString(),log::append);
+    }
+
+    /**
+     * 上传的临时文件，名称由本地文件的路径、大小和修改时间确定
+     */
+    private Path uploadPart() throws Exception {
+        File file = local.toFile();
+        byte[] value = (file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified()).getBytes(StandardCharsets.UTF_8);
+        String key = HexUtil.encodeHexStr(MessageDigest.getInstance("MD5").digest(value)).substring(0,12);
+        return remote.resolve(".app.jar." + key + ".part");
+    }
+}
@@ -0,0 +1,130 @@
+package cn.xuyanwu.autodeployment;
+
+import com.jcraft.jsch.Session;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 连接池的许可和空闲 session 计数：每个测试使用不同的用户名，在连接池中是不同的主机
+ */
+class SessionPoolTest {
+    private static final int DEFAULT_MAX_SESSIONS = 8;
+
+    private static TestSshServer server;
+    private final SessionPool pool = SessionPool.getInstance();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        server = new TestSshServer();
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        server.close();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+        pool.setMaxSessionsPerHost(DEFAULT_MAX_SESSIONS);
+        pool.clear();
+    }
+
+    @Test
+    void releasedSessionIsReused() throws Exception {
+        Config config = server.config("reuse");
+        long hits = pool.getHits();
+        Session session = pool.borrow(config);
+        assertTrue(pool.release(session));
+        assertSame(session,pool.borrow(config));
+        assertEquals(hits + 1,pool.getHits());
+        pool.release(session);
+        assertFalse(pool.release(session),"同一个 session 不能放回两次");
+    }
+
+    @Test
+    void borrowWaitsForPermit() throws Exception {
+        pool.setMaxSessionsPerHost(2);
+        Config config = server.config("permit");
+        Session first = pool.borrow(config);
+        Session second = pool.borrow(config);
+        assertNotSame(first,second);
+
+        Future<Session> third = executor.submit(() -> pool.borrow(config));
+        assertThrows(TimeoutException.class,() -> third.get(300,TimeUnit.MILLISECONDS),"已达到上限时需要等待");
+        pool.release(second);
+        assertSame(second,third.get(5,TimeUnit.SECONDS),"放回的 session 直接给等待的线程使用");
+        pool.release(first);
+        pool.release(second);
+    }
+
+    @Test
+    void invalidateReleasesPermit() throws Exception {
+        pool.setMaxSessionsPerHost(1);
+        Config config = server.config("invalidate");
+        Session session = pool.borrow(config);
+        pool.invalidate(session);
+        assertFalse(session.isConnected());
+        Session next = executor.submit(() -> pool.borrow(config)).get(5,TimeUnit.SECONDS);
+        assertNotSame(session,next);
+        pool.release(next);
+    }
+
+    @Test
+    void resizeAppliesToExistingHost() throws Exception {
+        pool.setMaxSessionsPerHost(1);
+        Config config = server.config("resize");
+        Session first = pool.borrow(config);
+        pool.setMaxSessionsPerHost(2);
+        Session second = executor.submit(() -> pool.borrow(config)).get(5,TimeUnit.SECONDS);
+
+        //调小后正在使用的 session 不受影响，放回到低于上限后才能再取出
+        pool.setMaxSessionsPerHost(1);
+        pool.release(first);
+        Future<Session> third = executor.submit(() -> pool.borrow(config));
+        assertThrows(TimeoutException.class,() -> third.get(300,TimeUnit.MILLISECONDS));
+        pool.release(second);
+        assertNotNull(third.get(5,TimeUnit.SECONDS));
+        pool.release(third.get());
+    }
+
+    @Test
+    void warmUpSessionIsBorrowed() throws Exception {
+        Config config = server.config("warm");
+        long warmUps = pool.getWarmUps();
+        long warmHits = pool.getWarmHits();
+        pool.warmUp(config,60_000);
+        //borrow 等预热完成后取出预热的 session
+        Session session = pool.borrow(config);
+        assertEquals(warmUps + 1,pool.getWarmUps());
+        assertEquals(warmHits + 1,pool.getWarmHits());
+        pool.release(session);
+
+        //已有空闲的 session 时不再预热
+        pool.warmUp(config,60_000);
+        assertSame(session,pool.borrow(config));
+        assertEquals(warmUps + 1,pool.getWarmUps());
+        pool.release(session);
+    }
+
+    @Test
+    void warmUpCountsAgainstCap() throws Exception {
+        pool.setMaxSessionsPerHost(1);
+        Config config = server.config("warm-cap");
+        Session session = pool.borrow(config);
+        long warmUps = pool.getWarmUps();
+        pool.warmUp(config,60_000);
+        pool.release(session);
+        //没有预热，放回的 session 是唯一的空闲 session
+        assertSame(session,pool.borrow(config));
+        assertEquals(warmUps,pool.getWarmUps());
+        pool.release(session);
+    }
+}
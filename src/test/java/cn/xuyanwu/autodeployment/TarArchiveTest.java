@@ -0,0 +1,338 @@
+package cn.xuyanwu.autodeployment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 解析写出的 tar 头校验长文件名、符号链接、权限和大小，系统中有 tar 时再用 tar 解压对比
+ */
+class TarArchiveTest {
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void longNamesUseGnuLongLink() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("app"));
+        String longDir = repeat("d",60) + "/" + repeat("e",60);
+        Path file = root.resolve(longDir).resolve(repeat("f",80) + ".txt");
+        Files.createDirectories(file.getParent());
+        Files.write(file,"long".getBytes(StandardCharsets.UTF_8));
+
+        List<Header> headers = parse(write(root,null,null));
+        String name = longDir + "/" + repeat("f",80) + ".txt";
+        assertTrue(name.length() > 100);
+        Header header = find(headers,name);
+        assertEquals('0',header.type);
+        assertEquals(4,header.size);
+        assertEquals("long",new String(header.content,StandardCharsets.UTF_8));
+        assertEquals('5',find(headers,longDir + "/").type);
+    }
+
+    @Test
+    void symlinksKeepTheirTarget() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("app"));
+        Files.write(root.resolve("target.txt"),new byte[]{1});
+        String longTarget = repeat("t",120);
+        assumeTrue(createSymbolicLink(root.resolve("link"),Paths.get("target.txt")));
+        createSymbolicLink(root.resolve("long-link"),Paths.get(longTarget));
+
+        List<Header> headers = parse(write(root,null,null));
+        Header link = find(headers,"link");
+        assertEquals('2',link.type);
+        assertEquals("target.txt",link.link);
+        assertEquals(0,link.size);
+        assertEquals(longTarget,find(headers,"long-link").link);
+    }
+
+    @Test
+    void modesArePreserved() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("app"));
+        Path script = root.resolve("bin/start.sh");
+        Files.createDirectories(script.getParent());
+        Files.write(script,"echo".getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.setPosixFilePermissions(script,PosixFilePermissions.fromString("rwxr-x---"));
+            Files.setPosixFilePermissions(script.getParent(),PosixFilePermissions.fromString("rwx--x--x"));
+        } catch (UnsupportedOperationException e) {
+            assumeTrue(false,"文件系统不支持 posix 权限");
+        }
+
+        List<Header> headers = parse(write(root,null,null));
+        assertEquals(0750,find(headers,"bin/start.sh").mode);
+        assertEquals(0711,find(headers,"bin/").mode);
+    }
+
+    @Test
+    void sizesOver8GbUseBase256() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("app"));
+        long size = 8L * 1024 * 1024 * 1024 + 1;
+        try (RandomAccessFile file = new RandomAccessFile(root.resolve("big.bin").toFile(),"rw")) {
+            file.setLength(size);   //稀疏文件，不占用磁盘空间
+        }
+        TarArchive archive = TarArchive.scan(root.toFile(),null,null);
+        assertEquals(size,archive.getLength());
+
+        //只需要第一个文件头，写出文件内容前中止
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream headerOnly = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(byte[] b,int off,int len) throws IOException {
+                if (out.size() >= BLOCK_SIZE) {
+                    throw new EOFException();
+                }
+                out.write(b,off,len);
+            }
+        };
+        assertThrows(EOFException.class,() -> archive.write(headerOnly,null));
+        byte[] header = Arrays.copyOf(out.toByteArray(),BLOCK_SIZE);
+        assertEquals((byte) 0x80,header[124]);
+        assertEquals(size,size(header));
+        assertTrue(checksumMatches(header));
+    }
+
+    @Test
+    void compileGlobs() {
+        assertMatches("*.log","app.log",true);
+        assertMatches("*.log","logs/app.log",true);
+        assertMatches("*.log","app.log.1",false);
+        assertMatches("/static","static",true);
+        assertMatches("/static","web/static",false);
+        assertMatches("static/*.js","static/a.js",true);
+        assertMatches("static/*.js","static/js/a.js",false);
+        assertMatches("static/**/*.js","static/a.js",true);
+        assertMatches("static/**/*.js","static/js/lib/a.js",true);
+        assertMatches("**/node_modules","web/node_modules",true);
+        assertMatches("?.txt","a.txt",true);
+        assertMatches("?.txt","ab.txt",false);
+        assertMatches("*.{jar,war}","lib/app.war",true);
+        assertMatches("*.{jar,war}","lib/app.zip",false);
+        assertMatches("a+b(1).txt","a+b(1).txt",true);
+        assertTrue(TarArchive.compile(Arrays.asList(""," ")).isEmpty());
+        assertTrue(TarArchive.compile(null).isEmpty());
+        assertThrows(IllegalArgumentException.class,() -> TarArchive.compile(Collections.singletonList("*.{jar")));
+    }
+
+    @Test
+    void includesAndExcludes() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("app"));
+        touch(root.resolve("lib/app.jar"));
+        touch(root.resolve("lib/app.jar.bak"));
+        touch(root.resolve("logs/app.log"));
+        touch(root.resolve("config/app.yml"));
+        touch(root.resolve("empty/readme.txt"));
+
+        List<String> names = names(parse(write(root,Arrays.asList("*.jar","*.yml","*.log"),Collections.singletonList("/logs"))));
+        assertEquals(new HashSet<>(Arrays.asList("lib/","lib/app.jar","config/","config/app.yml")),new HashSet<>(names));
+        //父目录在文件之前
+        assertTrue(names.indexOf("lib/") < names.indexOf("lib/app.jar"));
+
+        TarArchive archive = TarArchive.scan(root.toFile(),null,Collections.singletonList("*.bak"));
+        assertEquals(4,archive.getFileCount());
+    }
+
+    @Test
+    void extractWithSystemTar() throws Exception {
+        assumeTrue(hasTar(),"系统中没有 tar");
+        //POSIX 等非 UTF-8 的 locale 下 Java 无法创建中文文件名，只验证其它文件
+        boolean unicodeNames = "UTF-8".equalsIgnoreCase(System.getProperty("sun.jnu.encoding"));
+        Path root = Files.createDirectories(dir.resolve("app"));
+        String longName = repeat("n",70) + "/" + repeat("m",70) + ".txt";
+        byte[] data = new byte[100_000];
+        new Random(1).nextBytes(data);
+        Files.createDirectories(root.resolve(longName).getParent());
+        Files.write(root.resolve(longName),data);
+        if (unicodeNames) {
+            Files.write(root.resolve("中文.txt"),"中文".getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(root.resolve("run.sh"),"echo".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(root.resolve("run.sh"),PosixFilePermissions.fromString("rwxr-xr-x"));
+        createSymbolicLink(root.resolve("current"),Paths.get(longName));
+
+        Path target = Files.createDirectories(dir.resolve("extract"));
+        Process process = new ProcessBuilder("tar","-xf","-","-C",target.toString()).redirectErrorStream(true).start();
+        try (OutputStream in = process.getOutputStream()) {
+            in.write(write(root,null,null));
+        }
+        String output = readAll(process.getInputStream());
+        assertEquals(0,process.waitFor(),output);
+
+        assertArrayEquals(data,Files.readAllBytes(target.resolve(longName)));
+        if (unicodeNames) {
+            assertEquals("中文",new String(Files.readAllBytes(target.resolve("中文.txt")),StandardCharsets.UTF_8));
+        }
+        assertEquals("rwxr-xr-x",PosixFilePermissions.toString(Files.getPosixFilePermissions(target.resolve("run.sh"))));
+        assertEquals(Paths.get(longName),Files.readSymbolicLink(target.resolve("current")));
+    }
+
+    private static byte[] write(Path root,List<String> includes,List<String> excludes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarArchive.scan(root.toFile(),includes,excludes).write(out,null);
+        return out.toByteArray();
+    }
+
+    /**
+     * 解析 tar 数据，GNU 长文件名合并到下一个条目中
+     */
+    private static List<Header> parse(byte[] tar) {
+        assertEquals(0,tar.length % BLOCK_SIZE);
+        List<Header> headers = new ArrayList<>();
+        String longName = null;
+        String longLink = null;
+        int offset = 0;
+        while (offset + BLOCK_SIZE <= tar.length) {
+            byte[] block = Arrays.copyOfRange(tar,offset,offset + BLOCK_SIZE);
+            offset += BLOCK_SIZE;
+            if (isZero(block)) {
+                //两个空块表示结束
+                assertTrue(isZero(Arrays.copyOfRange(tar,offset,offset + BLOCK_SIZE)));
+                assertEquals(tar.length,offset + BLOCK_SIZE);
+                return headers;
+            }
+            assertTrue(checksumMatches(block));
+            Header header = new Header();
+            header.name = string(block,0,100);
+            header.mode = (int) octal(block,100,8);
+            header.size = size(block);
+            header.type = (char) block[156];
+            header.link = string(block,157,100);
+            header.content = Arrays.copyOfRange(tar,offset,offset + (int) header.size);
+            offset += (header.size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            if (header.type == 'L') {
+                longName = string(header.content,0,header.content.length);
+            } else if (header.type == 'K') {
+                longLink = string(header.content,0,header.content.length);
+            } else {
+                if (longName != null) {
+                    assertTrue(longName.startsWith(header.name));
+                    header.name = longName;
+                }
+                if (longLink != null) {
+                    assertTrue(longLink.startsWith(header.link));
+                    header.link = longLink;
+                }
+                longName = null;
+                longLink = null;
+                headers.add(header);
+            }
+        }
+        fail("tar 数据没有结束块");
+        return headers;
+    }
+
+    private static long size(byte[] header) {
+        if ((header[124] & 0x80) == 0) {
+            return octal(header,124,12);
+        }
+        long size = header[124] & 0x7f;
+        for (int i = 125; i < 136; i++) {
+            size = (size << 8) | (header[i] & 0xff);
+        }
+        return size;
+    }
+
+    private static boolean checksumMatches(byte[] header) {
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        return sum == octal(header,148,8);
+    }
+
+    private static long octal(byte[] b,int offset,int length) {
+        String s = string(b,offset,length).trim();
+        return s.isEmpty() ? 0 : Long.parseLong(s,8);
+    }
+
+    private static String string(byte[] b,int offset,int length) {
+        int end = offset;
+        while (end < offset + length && b[end] != 0) end++;
+        return new String(b,offset,end - offset,StandardCharsets.UTF_8);
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) return false;
+        }
+        return block.length > 0;
+    }
+
+    private static Header find(List<Header> headers,String name) {
+        return headers.stream().filter(h -> h.name.equals(name)).findFirst()
+                .orElseThrow(() -> new AssertionError("没有找到 " + name + "：" + names(headers)));
+    }
+
+    private static List<String> names(List<Header> headers) {
+        List<String> names = new ArrayList<>();
+        headers.forEach(h -> names.add(h.name));
+        return names;
+    }
+
+    private static void assertMatches(String glob,String name,boolean expected) {
+        Pattern pattern = TarArchive.compile(Collections.singletonList(glob)).get(0);
+        assertEquals(expected,pattern.matcher(name).matches(),glob + " " + name);
+    }
+
+    private static boolean createSymbolicLink(Path link,Path target) throws IOException {
+        try {
+            Files.createSymbolicLink(link,target);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static void touch(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file,new byte[]{1});
+    }
+
+    private static boolean hasTar() {
+        try {
+            return new ProcessBuilder("tar","--version").start().waitFor() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer,0,len);
+        }
+        return new String(out.toByteArray(),StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(String s,int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append(s);
+        return sb.toString();
+    }
+
+    private static class Header {
+        private String name;
+        private int mode;
+        private long size;
+        private char type;
+        private String link;
+        private byte[] content;
+    }
+}
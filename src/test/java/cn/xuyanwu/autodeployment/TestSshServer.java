@@ -0,0 +1,41 @@
+package cn.xuyanwu.autodeployment;
+
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * 进程内的 ssh 服务器，接受任意用户名和 PASSWORD 登录
+ * exec 的命令由本机的 sh 执行，sftp 直接访问本机的文件系统，远程路径就是本地路径
+ */
+class TestSshServer implements AutoCloseable {
+    static final String PASSWORD = "test";
+
+    private final SshServer sshd;
+
+    TestSshServer() throws IOException {
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setPort(0);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        sshd.setPasswordAuthenticator((user,password,session) -> PASSWORD.equals(password));
+        sshd.setCommandFactory((channel,cmd) -> new ProcessShellFactory("/bin/sh","/bin/sh","-c",cmd).createShell(channel));
+        sshd.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        sshd.start();
+    }
+
+    /**
+     * 登录这个服务器的配置，不同的用户名在连接池中是不同的主机
+     */
+    Config config(String user) {
+        return new Config("127.0.0.1",sshd.getPort(),user,PASSWORD);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sshd.stop(true);
+    }
+}